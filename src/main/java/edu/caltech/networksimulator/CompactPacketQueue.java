@@ -0,0 +1,321 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A queue of packets which keeps no packet objects. The header fields of the
+ * queued packets live in parallel primitive arrays, one slot per packet,
+ * addressed by an int handle going round a ring. Addresses are numbered the
+ * first time they are seen, and a packet's type and flow ID share an int, so
+ * a slot takes 32 bytes, where a packet object and its reference in a queue
+ * take about 60.
+ *
+ * Adding a packet copies it, so the packet can be released afterwards, and
+ * taking one out fills in a pooled packet. Data packets and ACKs of a flow
+ * keep nothing else, as their payload and size follow from their type and
+ * their sequence ID and segment size from their flow. The payloads, sequence
+ * IDs and sizes of other packets, which are rare, are kept to the side.
+ *
+ * Only one thread may use a queue.
+ */
+class CompactPacketQueue extends AbstractQueue<Packet> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// The packet type is kept in the top three bits, then whether the packet
+	// is kept partly to the side, then its flow ID + 1
+	private static final int TYPE_SHIFT = 29;
+	private static final int SIDE = 1 << 28;
+	private static final int FLOW_MASK = SIDE - 1;
+
+	// One slot per queued packet
+	private int[] src, dest;
+	private long[] sentTime;
+	private int[] sequenceNumber;
+	private int[] flowAndType;
+	private long[] packetUID;
+
+	// The oldest packet's slot, and how many are queued
+	private int head;
+	private int size;
+
+	// Numbered addresses, in an open addressing table of address number + 1
+	private long[] addresses;
+	private int[] addressTable;
+	private int addressCount;
+
+	// Sequence IDs and data packet sizes of flows, by flow ID + 1
+	private String[] flowNames;
+	private int[] flowSizes;
+
+	// What is kept to the side of packets which need it, by slot
+	private final Map<Integer, Side> sidePackets;
+
+	CompactPacketQueue() {
+		src = new int[INITIAL_CAPACITY];
+		dest = new int[INITIAL_CAPACITY];
+		sentTime = new long[INITIAL_CAPACITY];
+		sequenceNumber = new int[INITIAL_CAPACITY];
+		flowAndType = new int[INITIAL_CAPACITY];
+		packetUID = new long[INITIAL_CAPACITY];
+		head = 0;
+		size = 0;
+
+		addresses = new long[INITIAL_CAPACITY];
+		addressTable = new int[2 * INITIAL_CAPACITY];
+		addressCount = 0;
+
+		flowNames = new String[INITIAL_CAPACITY];
+		flowSizes = new int[INITIAL_CAPACITY];
+
+		sidePackets = new HashMap<Integer, Side>();
+	}
+
+	@Override
+	public boolean offer(Packet p) {
+		if (size == src.length)
+			grow();
+
+		int slot = (head + size) & (src.length - 1);
+		src[slot] = addressNumber(p.getSrc());
+		dest[slot] = addressNumber(p.getDest());
+		sentTime[slot] = p.getSentTime();
+		sequenceNumber[slot] = p.getSeqNum();
+		packetUID[slot] = p.getUID();
+
+		int flow = p.getFlowId() + 1;
+		if (flow > FLOW_MASK)
+			throw new NetworkException("Flow ID too large for a compact queue: " + p.getFlowId());
+
+		int bits = (p.getType().ordinal() << TYPE_SHIFT) | flow;
+		if (!isFlowPacket(p, flow)) {
+			bits |= SIDE;
+			sidePackets.put(slot, new Side(p));
+		}
+		flowAndType[slot] = bits;
+
+		size++;
+		return true;
+	}
+
+	@Override
+	public Packet poll() {
+		if (size == 0)
+			return null;
+
+		int slot = head;
+		head = (head + 1) & (src.length - 1);
+		size--;
+
+		int bits = flowAndType[slot];
+		Side side = (bits & SIDE) == 0 ? null : sidePackets.remove(slot);
+		Packet p = Packet.obtain(Packet.Type.of(bits >>> TYPE_SHIFT), addresses[src[slot]], addresses[dest[slot]],
+				payloadOf(bits, side), sequenceNumber[slot], sequenceIdOf(bits, side), (bits & FLOW_MASK) - 1,
+				sentTime[slot], packetUID[slot]);
+		p.setPacketSize(sizeOf(bits, side));
+		return p;
+	}
+
+	/**
+	 * Look at the oldest packet. This makes a new packet, so should be left
+	 * to things off the fast path.
+	 */
+	@Override
+	public Packet peek() {
+		return size == 0 ? null : copyOf(head);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		head = 0;
+		size = 0;
+		sidePackets.clear();
+	}
+
+	/**
+	 * Iterates over copies of the queued packets, which are new objects
+	 */
+	@Override
+	public Iterator<Packet> iterator() {
+		return new Iterator<Packet>() {
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public Packet next() {
+				return copyOf((head + i++) & (src.length - 1));
+			}
+		};
+	}
+
+	private Packet copyOf(int slot) {
+		int bits = flowAndType[slot];
+		Side side = (bits & SIDE) == 0 ? null : sidePackets.get(slot);
+		Packet p = new Packet(Packet.Type.of(bits >>> TYPE_SHIFT), addresses[src[slot]], addresses[dest[slot]],
+				payloadOf(bits, side), sequenceNumber[slot], sequenceIdOf(bits, side), (bits & FLOW_MASK) - 1,
+				packetUID[slot]);
+		p.setSentTime(sentTime[slot]);
+		p.setPacketSize(sizeOf(bits, side));
+		return p;
+	}
+
+	/*
+	 * Whether a packet is a data packet or ACK of a flow, with the usual
+	 * payload and the sequence ID and size the flow's other packets have, so
+	 * nothing needs to be kept to the side. Remembers the flow's sequence ID
+	 * and data packet size if the flow is new.
+	 */
+	private boolean isFlowPacket(Packet p, int flow) {
+		if (flow == 0)
+			return false;
+
+		if (flow >= flowNames.length) {
+			int length = Math.max(2 * flowNames.length, flow + 1);
+			flowNames = Arrays.copyOf(flowNames, length);
+			flowSizes = Arrays.copyOf(flowSizes, length);
+		}
+		String id = p.getSeqID();
+		if (flowNames[flow] == null)
+			flowNames[flow] = id;
+		if (id == null || !id.equals(flowNames[flow]))
+			return false;
+
+		String payload = p.getPayload();
+		switch (p.getType()) {
+		case DATA:
+			if (flowSizes[flow] == 0)
+				flowSizes[flow] = (int) p.getPacketSize();
+			return Packet.DATA_PAYLOAD.equals(payload) && p.getPacketSize() == flowSizes[flow];
+		case ACK:
+			return Packet.ACK_PAYLOAD.equals(payload) && p.getPacketSize() == Packet.Type.ACK.size();
+		default:
+			return false;
+		}
+	}
+
+	private static String payloadOf(int bits, Side side) {
+		if (side != null)
+			return side.payload;
+		return (bits >>> TYPE_SHIFT) == Packet.Type.ACK.ordinal() ? Packet.ACK_PAYLOAD : Packet.DATA_PAYLOAD;
+	}
+
+	private String sequenceIdOf(int bits, Side side) {
+		return side != null ? side.sequenceId : flowNames[bits & FLOW_MASK];
+	}
+
+	private int sizeOf(int bits, Side side) {
+		if (side != null)
+			return side.size;
+		return (bits >>> TYPE_SHIFT) == Packet.Type.ACK.ordinal() ? Packet.Type.ACK.size()
+				: flowSizes[bits & FLOW_MASK];
+	}
+
+	/*
+	 * Double the number of slots, unwrapping the ring
+	 */
+	private void grow() {
+		int capacity = 2 * src.length;
+		src = unwrap(src, capacity);
+		dest = unwrap(dest, capacity);
+		sequenceNumber = unwrap(sequenceNumber, capacity);
+		flowAndType = unwrap(flowAndType, capacity);
+		packetUID = unwrap(packetUID, capacity);
+		sentTime = unwrap(sentTime, capacity);
+
+		if (!sidePackets.isEmpty()) {
+			Map<Integer, Side> moved = new HashMap<Integer, Side>();
+			for (Map.Entry<Integer, Side> side : sidePackets.entrySet())
+				moved.put((side.getKey() - head) & (capacity / 2 - 1), side.getValue());
+			sidePackets.clear();
+			sidePackets.putAll(moved);
+		}
+		head = 0;
+	}
+
+	private int[] unwrap(int[] slots, int capacity) {
+		int[] grown = new int[capacity];
+		for (int i = 0; i < size; i++)
+			grown[i] = slots[(head + i) & (slots.length - 1)];
+		return grown;
+	}
+
+	private long[] unwrap(long[] slots, int capacity) {
+		long[] grown = new long[capacity];
+		for (int i = 0; i < size; i++)
+			grown[i] = slots[(head + i) & (slots.length - 1)];
+		return grown;
+	}
+
+	/*
+	 * The number of an address, numbering it if it is new
+	 */
+	private int addressNumber(long address) {
+		int mask = addressTable.length - 1;
+		int i = hash(address) & mask;
+		while (addressTable[i] != 0) {
+			int n = addressTable[i] - 1;
+			if (addresses[n] == address)
+				return n;
+			i = (i + 1) & mask;
+		}
+
+		if (addressCount == addresses.length)
+			addresses = Arrays.copyOf(addresses, 2 * addresses.length);
+		addresses[addressCount] = address;
+		addressTable[i] = ++addressCount;
+
+		// Keep the table at most half full
+		if (2 * addressCount > addressTable.length)
+			rehashAddresses();
+		return addressCount - 1;
+	}
+
+	private void rehashAddresses() {
+		addressTable = new int[2 * addressTable.length];
+		int mask = addressTable.length - 1;
+		for (int n = 0; n < addressCount; n++) {
+			int i = hash(addresses[n]) & mask;
+			while (addressTable[i] != 0)
+				i = (i + 1) & mask;
+			addressTable[i] = n + 1;
+		}
+	}
+
+	private static int hash(long address) {
+		int h = Long.hashCode(address) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * The parts of a packet which do not follow from its type and flow
+	 */
+	private static final class Side {
+
+		final String payload;
+		final String sequenceId;
+		final int size;
+
+		Side(Packet p) {
+			payload = p.getPayload();
+			sequenceId = p.getSeqID();
+			size = (int) p.getPacketSize();
+		}
+	}
+
+}
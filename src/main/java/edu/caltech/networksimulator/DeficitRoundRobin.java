@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Shares a link fairly between flows, with deficit round robin (Shreedhar and
+ * Varghese). Each flow has its own queue, and the queues with packets take
+ * turns. A queue gets a quantum of bytes each turn, and sends packets while
+ * it has enough bytes left for the next one. Whatever it does not use is kept
+ * for its next turn, unless it runs out of packets. With a quantum of at
+ * least the largest packet, choosing the next packet takes constant time.
+ *
+ * Queues are either one per flow, or a fixed number of buckets which flows
+ * are hashed into (stochastic fair queueing), which bounds the memory used
+ * however many flows there are, at the cost of flows which share a bucket
+ * sharing its turns. Packets which belong to no flow, such as routing
+ * packets, share a queue of their own.
+ *
+ * Each queue holds at most a limited number of bytes, so one flow cannot
+ * fill the whole buffer.
+ */
+class DeficitRoundRobin extends PacketScheduler {
+
+	private final boolean hashed;
+	private final long flowLimit;
+	private final int quantum;
+	private final boolean compact;
+
+	// Queues by flow ID + 1, or by bucket when hashed
+	private Bucket[] buckets;
+
+	// Queues with packets, the one whose turn it is first
+	private final ArrayDeque<Bucket> active;
+
+	private int size;
+	private long lastArrival;
+
+	/**
+	 * @param hashed
+	 *            Whether to hash flows into a fixed number of buckets
+	 * @param bucketCount
+	 *            How many buckets, if hashed
+	 * @param flowLimit
+	 *            Most bytes each queue may hold
+	 * @param quantum
+	 *            Bytes each queue may send per turn
+	 * @param compact
+	 *            Whether to keep packets in compact queues
+	 */
+	DeficitRoundRobin(boolean hashed, int bucketCount, long flowLimit, int quantum, boolean compact) {
+		if (hashed && bucketCount <= 0)
+			throw new NetworkException("Need at least one bucket");
+		this.hashed = hashed;
+		this.flowLimit = flowLimit;
+		this.quantum = quantum;
+		this.compact = compact;
+		// Buckets made as they are needed
+		buckets = new Bucket[hashed ? bucketCount + 1 : 16];
+		active = new ArrayDeque<Bucket>();
+		size = 0;
+		lastArrival = 0;
+	}
+
+	@Override
+	boolean offer(Packet p, long now) {
+		Bucket b = bucketOf(p.getFlowId());
+		if (b.queue.bytes() + p.getPacketSize() > flowLimit)
+			return false;
+
+		if (b.queue.isEmpty())
+			active.addLast(b);
+		b.queue.offer(p, now);
+		size++;
+		return true;
+	}
+
+	@Override
+	Packet poll() {
+		while (true) {
+			Bucket b = active.peekFirst();
+			if (b == null)
+				return null;
+
+			// A new turn
+			if (!b.started) {
+				b.deficit += quantum;
+				b.started = true;
+			}
+
+			if (b.queue.headSize() <= b.deficit) {
+				Packet p = b.queue.poll();
+				b.deficit -= p.getPacketSize();
+				lastArrival = b.queue.lastArrival();
+				size--;
+				if (b.queue.isEmpty()) {
+					active.pollFirst();
+					b.deficit = 0;
+					b.started = false;
+				}
+				return p;
+			}
+
+			// Not enough left, so it is the next queue's turn
+			b.started = false;
+			active.addLast(active.pollFirst());
+		}
+	}
+
+	@Override
+	long lastArrival() {
+		return lastArrival;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	/*
+	 * The queue of a flow, made if it is the first of its flow or bucket
+	 */
+	private Bucket bucketOf(int flowId) {
+		int i;
+		if (flowId < 0) {
+			i = 0;
+		} else if (hashed) {
+			int h = flowId * 0x9E3779B9;
+			i = 1 + ((h ^ (h >>> 16)) & 0x7FFFFFFF) % (buckets.length - 1);
+		} else {
+			i = flowId + 1;
+			if (i >= buckets.length)
+				buckets = Arrays.copyOf(buckets, Math.max(2 * buckets.length, i + 1));
+		}
+
+		if (buckets[i] == null)
+			buckets[i] = new Bucket(i);
+		return buckets[i];
+	}
+
+	/**
+	 * Saves the queues with packets in the order of their turns
+	 */
+	@Override
+	public Object saveState() {
+		Object[] queues = new Object[active.size()];
+		int i = 0;
+		for (Bucket b : active)
+			queues[i++] = new Object[] { b.index, b.deficit, b.started, b.queue.saveState() };
+		return new Object[] { queues, lastArrival };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		for (Bucket b : active) {
+			b.queue.clear();
+			b.deficit = 0;
+			b.started = false;
+		}
+		active.clear();
+		size = 0;
+
+		for (Object queue : (Object[]) saved[0]) {
+			Object[] fields = (Object[]) queue;
+			int index = (Integer) fields[0];
+			if (index >= buckets.length)
+				buckets = Arrays.copyOf(buckets, index + 1);
+			if (buckets[index] == null)
+				buckets[index] = new Bucket(index);
+
+			Bucket b = buckets[index];
+			b.deficit = (Long) fields[1];
+			b.started = (Boolean) fields[2];
+			b.queue.restoreState(fields[3]);
+			size += b.queue.size();
+			active.addLast(b);
+		}
+		lastArrival = (Long) saved[1];
+	}
+
+	/**
+	 * The queue of one flow or bucket
+	 */
+	private final class Bucket {
+
+		final int index;
+		final FifoScheduler queue;
+
+		// Bytes it may still send this turn, and whether its turn has begun
+		long deficit;
+		boolean started;
+
+		Bucket(int index) {
+			this.index = index;
+			queue = new FifoScheduler(compact);
+			deficit = 0;
+			started = false;
+		}
+	}
+
+}
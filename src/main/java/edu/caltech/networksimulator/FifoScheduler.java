@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Sends packets in the order they arrived. The arrival time and size of each
+ * packet are kept in rings alongside the packets.
+ */
+class FifoScheduler extends PacketScheduler {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Queue<Packet> packets;
+
+	// Arrival times and sizes, in the same order as the packets
+	private long[] arrivals;
+	private int[] sizes;
+	private int first;
+
+	private long lastArrival;
+
+	// Bytes queued
+	private long bytes;
+
+	/**
+	 * @param compact
+	 *            Whether to keep the packets in a compact queue
+	 */
+	FifoScheduler(boolean compact) {
+		packets = compact ? new CompactPacketQueue() : new ArrayDeque<Packet>();
+		arrivals = new long[INITIAL_CAPACITY];
+		sizes = new int[INITIAL_CAPACITY];
+		first = 0;
+		lastArrival = 0;
+		bytes = 0;
+	}
+
+	@Override
+	boolean offer(Packet p, long now) {
+		int queued = packets.size();
+		if (queued == arrivals.length)
+			grow();
+
+		int i = (first + queued) & (arrivals.length - 1);
+		arrivals[i] = now;
+		sizes[i] = (int) p.getPacketSize();
+		bytes += sizes[i];
+		packets.add(p);
+		return true;
+	}
+
+	@Override
+	Packet poll() {
+		Packet p = packets.poll();
+		if (p == null)
+			return null;
+
+		lastArrival = arrivals[first];
+		bytes -= sizes[first];
+		first = (first + 1) & (arrivals.length - 1);
+		return p;
+	}
+
+	@Override
+	long lastArrival() {
+		return lastArrival;
+	}
+
+	@Override
+	int size() {
+		return packets.size();
+	}
+
+	/**
+	 * @return the size of the next packet to send, which there must be
+	 */
+	int headSize() {
+		return sizes[first];
+	}
+
+	/**
+	 * @return the bytes queued
+	 */
+	long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Drop everything queued, without releasing it
+	 */
+	void clear() {
+		packets.clear();
+		first = 0;
+		bytes = 0;
+	}
+
+	private void grow() {
+		int queued = packets.size();
+		long[] grownArrivals = new long[2 * arrivals.length];
+		int[] grownSizes = new int[2 * arrivals.length];
+		for (int i = 0; i < queued; i++) {
+			grownArrivals[i] = arrivals[(first + i) & (arrivals.length - 1)];
+			grownSizes[i] = sizes[(first + i) & (arrivals.length - 1)];
+		}
+		arrivals = grownArrivals;
+		sizes = grownSizes;
+		first = 0;
+	}
+
+	@Override
+	public Object saveState() {
+		long[] queuedArrivals = new long[packets.size()];
+		for (int i = 0; i < queuedArrivals.length; i++)
+			queuedArrivals[i] = arrivals[(first + i) & (arrivals.length - 1)];
+		return new Object[] { new ArrayDeque<Packet>(packets), queuedArrivals, lastArrival };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		clear();
+
+		long[] queuedArrivals = (long[]) saved[1];
+		int i = 0;
+		for (Packet p : (ArrayDeque<Packet>) saved[0])
+			offer(p, queuedArrivals[i++]);
+		lastArrival = (Long) saved[2];
+	}
+
+}
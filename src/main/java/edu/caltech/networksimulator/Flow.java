@@ -3,8 +3,14 @@
  */
 package edu.caltech.networksimulator;
 
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.clock.SimClock;
 import edu.caltech.networksimulator.datacapture.DataCaptureTool;
 import edu.caltech.networksimulator.datacapture.DataCaptureToolHelper;
+import edu.caltech.networksimulator.engine.Event;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.engine.StateSaving;
 import edu.caltech.networksimulator.windowalgs.ExponentialWindow;
 import edu.caltech.networksimulator.windowalgs.SimpleWindow;
 import edu.caltech.networksimulator.windowalgs.StaticWindow;
@@ -28,23 +34,41 @@ import edu.caltech.networksimulator.windowalgs.WindowAlgorithm;
  *         stream of data, or may send a finite user-specifiable amount of data;
  *         they may also start immediately or after some user-specifiable delay.
  */
-public class Flow extends NetworkComponent {
+public class Flow extends NetworkComponent implements StateSaving {
 
 	private static final boolean FLOW_DEBUG = false;
 
+	// Event types
+	private static final int CHECK_TIMERS = 0;
+
 	// Where it's going and what the flow is doing
 	private final long src, dest;
 	private final long data_size;
-	private final long start_at;
-	private final long num_packets;
+	private final long start_delay;
+	private volatile long start_at;
+	private long num_packets;
+	private long start_jitter; // random extra start delay, in nanoseconds
+
+	// Host sending this flow's packets
+	private Host source;
+
+	// Number the simulation gives the flow, which its packets carry
+	private int flowId;
+
+	// Largest segment the flow wants to send, and the size agreed with the
+	// links at both ends, in bytes
+	private int maxSegmentSize;
+	private int segmentSize;
 
 	// for window size adjustment
 	private WindowAlgorithm alg;
 
-	// detecting packet timeouts
-	private long TIMEOUT = 10000;
-	private static final long FLOW_SLEEP = 50;
+	// detecting packet timeouts, all times in nanoseconds of the flow's clock
+	private long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	// Longest time to wait between checks when threaded
+	private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
 	private long lastSentTime; // time of last sent packet
+	private long nextTimerCheck; // when event driven, earliest pending timer check
 
 	// Some algorithms do things every RTT
 	private long lastRTT; // length of last RTT
@@ -59,6 +83,16 @@ public class Flow extends NetworkComponent {
 	private int idxSent; // index of last sent packet
 	private int maxIdxSent;
 
+	// For working out how the flow did
+	private long packetsSent;
+	private long RTTtotal;
+	private long RTTsamples;
+	private long finished_at;
+
+	// Whether it is background traffic, simulated as fluid rather than
+	// packets in a hybrid simulation
+	private boolean background;
+
 	/**
 	 * @param src
 	 *            The source IP
@@ -77,9 +111,12 @@ public class Flow extends NetworkComponent {
 		this.src = src;
 		this.dest = dest;
 		this.data_size = data_size;
-		this.start_at = System.currentTimeMillis() + start_delay;
-		// convert MB to bytes then divide then round up
-		this.num_packets = ((data_size * 1000000) / 1024) + 1;
+		this.start_delay = start_delay;
+		// set for real once the flow starts running
+		this.start_at = Long.MAX_VALUE;
+		// packets are counted once the segment size is known
+		this.maxSegmentSize = Packet.PACKET_SIZE;
+		setSegmentSize(Packet.PACKET_SIZE);
 
 		// Set up the window algorithm
 		setupAlg(alg_name);
@@ -89,9 +126,16 @@ public class Flow extends NetworkComponent {
 		this.idxSent = -1;
 		this.dupACKcount = 0;
 		this.maxIdxSent = 1;
+		this.packetsSent = 0;
+		this.RTTtotal = 0;
+		this.RTTsamples = 0;
+		this.finished_at = Long.MAX_VALUE;
+		this.start_jitter = 0;
+		this.background = false;
 
 		this.lastRTT = TIMEOUT;
 		this.RTTcounter = start_at;
+		this.nextTimerCheck = Long.MAX_VALUE;
 	}
 
 	/*
@@ -103,49 +147,156 @@ public class Flow extends NetworkComponent {
 	 */
 	@Override
 	public void run() {
+		setupDataCollectors();
+
+		this.start_at = getClock().nanoTime() + getStartOffset();
+		this.RTTcounter = start_at;
+
+		// The host may be waiting to find out when we start
+		if (source != null)
+			source.wakeUp();
+
+		while (!super.receivedStop() && !finished()) {
+			checkTimers();
+
+			// Sleep until the next deadline; sending and ACKs wake us early
+			long wait = MAX_WAIT;
+			if (this.idxSent >= 0)
+				wait = Math.min(wait, getNextDeadline() - getClock().nanoTime());
+			await(wait);
+		}
+
+		System.out.println("DONE WITH FLOW");
+	}
+
+	@Override
+	public void start(EventSimulator sim) {
+		super.start(sim);
+		setupDataCollectors();
+
+		// The start delay counts from the start of the simulation
+		this.start_at = getClock().nanoTime() + getStartOffset();
+		this.RTTcounter = start_at;
+	}
+
+	@Override
+	public void handleEvent(Event e) {
+		switch (e.getType()) {
+		case CHECK_TIMERS:
+			if (e.getTime() == nextTimerCheck)
+				nextTimerCheck = Long.MAX_VALUE;
+
+			if (finished())
+				return;
+
+			checkTimers();
+
+			// A timeout or a new RTT may have changed the window
+			if (source != null)
+				source.sendPackets();
+
+			scheduleTimerCheck();
+			break;
+		default:
+			throw new NetworkException("Unknown event type for flow: " + e);
+		}
+	}
+
+	private void setupDataCollectors() {
 		for (DataCaptureTool dc: getDataCollectors()) { 
 			dc.setMax(this, "Percent Done", 1);
 			// flow rate
 			dc.setDataSmoothingRange(this, "Flow Rate", 10);
 		}
-		
-		while (!super.receivedStop() && !finished()) {
-			
-			// graph some things
-			DataCaptureToolHelper.addData(getDataCollectors(), this, "Window Size", System.currentTimeMillis(), this.alg.getW());
-			DataCaptureToolHelper.addData(getDataCollectors(), this, "Percent Done", System.currentTimeMillis(), ((double) idxReceived) / num_packets);
-
-			if (this.idxSent >= 0) { // make sure we've sent at least one
-				if (System.currentTimeMillis() > lastSentTime + TIMEOUT) {
-					if (FLOW_DEBUG) {
-						System.out.println("\t\t\t\t Dropped packet detected");
-					}
-					// detected dropped packet by timeout
-					alg.droppedPacket(false);
-					// Assume all our packets sent so far were in vain. Reset:
-					this.idxSent = this.idxReceived;
-					this.dupACKcount = 0;
-					this.lastRTT = TIMEOUT;
+	}
 
-				}
+	/*
+	 * Detects timeouts and tells the window algorithm about new RTTs. Called
+	 * continuously when threaded, and at the next deadline when event driven.
+	 */
+	private void checkTimers() {
+		long now = getClock().nanoTime();
 
-				if (System.currentTimeMillis() > RTTcounter + lastRTT) {
-					// it's been a while since we informed the alg there was
-					// another RTT
-					alg.newRTT();
-					RTTcounter = System.currentTimeMillis();
+		// graph some things
+		DataCaptureToolHelper.addData(getDataCollectors(), this, "Window Size", currentTimeMillis(), this.alg.getW());
+		DataCaptureToolHelper.addData(getDataCollectors(), this, "Percent Done", currentTimeMillis(),
+				((double) idxReceived) / num_packets);
+
+		if (this.idxSent >= 0) { // make sure we've sent at least one
+			if (now > lastSentTime + TIMEOUT) {
+				if (FLOW_DEBUG) {
+					System.out.println("\t\t\t\t Dropped packet detected");
 				}
+				// detected dropped packet by timeout
+				alg.droppedPacket(false);
+				// Assume all our packets sent so far were in vain. Reset:
+				this.idxSent = this.idxReceived;
+				this.dupACKcount = 0;
+				this.lastRTT = TIMEOUT;
 
+				if (source != null)
+					source.wakeUp();
 			}
 
-			try {
-				Thread.sleep(0, (int) FLOW_SLEEP); // don't try this too often
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if (now > RTTcounter + lastRTT) {
+				// it's been a while since we informed the alg there was
+				// another RTT
+				alg.newRTT();
+				RTTcounter = now;
+
+				if (source != null)
+					source.wakeUp();
 			}
+
 		}
+	}
 
-		System.out.println("DONE WITH FLOW");
+	/*
+	 * The earliest time at which checkTimers() will do something
+	 */
+	private long getNextDeadline() {
+		// Timers fire once strictly past their deadline
+		return Math.min(lastSentTime + TIMEOUT, RTTcounter + lastRTT) + 1;
+	}
+
+	/*
+	 * When event driven, make sure there is a timer check pending no later
+	 * than the next timeout or RTT deadline. Checks which turn out to be early
+	 * simply reschedule themselves.
+	 */
+	private void scheduleTimerCheck() {
+		if (!isEventDriven()) {
+			// the deadlines may have moved, let the flow's thread know
+			wakeUp();
+			return;
+		}
+		if (this.idxSent < 0 || finished())
+			return;
+
+		long time = Math.max(getNextDeadline(), getEventSimulator().now());
+
+		if (time < nextTimerCheck) {
+			nextTimerCheck = time;
+			getEventSimulator().scheduleAt(time, this, CHECK_TIMERS, null, null, 0);
+		}
+	}
+
+	@Override
+	public void setClock(SimClock clock) {
+		super.setClock(clock);
+		if (alg != null)
+			alg.setClock(clock);
+	}
+
+	/**
+	 * Switch to another window algorithm, which starts out as it would at the
+	 * start of a flow. May be called while the flow runs.
+	 * 
+	 * @param alg_name
+	 *            The name of the algorithm, as given to the constructor
+	 */
+	public void setWindowAlgorithm(String alg_name) {
+		setupAlg(alg_name);
 	}
 
 	/*
@@ -169,13 +320,15 @@ public class Flow extends NetworkComponent {
 		} else {
 			throw new NetworkException("Unrecognized window algorithm");
 		}
+		this.alg.setClock(getClock());
 	}
 
 	/*
 	 * Returns a Packet if there is one to send; otherwise returns null.
 	 */
 	public Packet getPacket() {
-		if ((this.start_at < System.currentTimeMillis()) && // head start over
+		if (!this.background && // background is fluid, never packets
+				(this.start_at <= getClock().nanoTime()) && // head start over
 				(!this.finished()) && // haven't sent all the packets yet
 				(this.idxReceived + alg.getW() > this.idxSent)) { // haven't
 																	// sent all
@@ -188,7 +341,8 @@ public class Flow extends NetworkComponent {
 
 			if (this.idxReceived + 1 == this.idxSent) {
 				// Start of the new window
-				this.lastSentTime = System.currentTimeMillis();
+				this.lastSentTime = getClock().nanoTime();
+				scheduleTimerCheck();
 			}
 
 			// print some stuff
@@ -203,8 +357,13 @@ public class Flow extends NetworkComponent {
 						+ "\t num sent: " + idxSent);
 			}
 
+			this.packetsSent++;
+
 			// create and return that packet
-			return new Packet(this.src, this.dest, "DOOM", this.idxSent, this.getComponentName());
+			Packet p = Packet.obtain(Packet.Type.DATA, this.src, this.dest, Packet.DATA_PAYLOAD, this.idxSent,
+					this.getComponentName(), this.flowId);
+			p.setPacketSize(segmentSize);
+			return p;
 		}
 		return null;
 	}
@@ -222,15 +381,19 @@ public class Flow extends NetworkComponent {
 	 */
 	@Override
 	public void offerPacket(Packet p, NetworkComponent n) {
-		if (p.getSeqID().equals(getComponentName())) {
+		if (p.getFlowId() == flowId) {
 			// packet meant for us
 			if (p.getSeqNum() == this.idxReceived + 1) { // Correct packet!
 				// Extract the RTT and update the timemout
-				this.lastRTT = (System.currentTimeMillis() - p.getSentTime());
+				this.lastRTT = (getClock().nanoTime() - p.getSentTime());
 				this.TIMEOUT = Math.max(this.TIMEOUT, this.lastRTT);
+				this.RTTtotal += this.lastRTT;
+				this.RTTsamples++;
 				
+				// bits per millisecond
 				DataCaptureToolHelper.addData(getDataCollectors(), this, "Flow Rate",
-						System.currentTimeMillis() - (lastRTT) / 2, p.getPacketSizeBits() / (lastRTT));
+						TimeUnit.NANOSECONDS.toMillis(getClock().nanoTime() - (lastRTT) / 2),
+						p.getPacketSizeBits() * 1000000.0 / Math.max(lastRTT, 1));
 
 				// Next packet in the sequence: an ACK! Inform the window
 				// algorithm
@@ -239,6 +402,21 @@ public class Flow extends NetworkComponent {
 				dupACKcount = 0;
 				// Can now send more packets
 				idxReceived++;
+				if (finished()) {
+					finished_at = getClock().nanoTime();
+					signalCompletion();
+				}
+				scheduleTimerCheck();
+
+				if (isEventDriven() && finished()) {
+					EventSimulator.whenCommitted(new Runnable() {
+
+						@Override
+						public void run() {
+							System.out.println("DONE WITH FLOW");
+						}
+					});
+				}
 			} else if (p.getSeqNum() == this.dupACKnum) {
 				// start of a dupACK trail
 				dupACKcount++;
@@ -261,8 +439,8 @@ public class Flow extends NetworkComponent {
 		}
 
 		// graph some things
-		DataCaptureToolHelper.addData(getDataCollectors(), this, "RTT", System.currentTimeMillis(),
-				this.lastRTT);
+		DataCaptureToolHelper.addData(getDataCollectors(), this, "RTT", currentTimeMillis(),
+				this.lastRTT / 1000000.0);
 
 		// Print some things
 		if (FLOW_DEBUG) {
@@ -272,6 +450,272 @@ public class Flow extends NetworkComponent {
 
 	}
 
+	/**
+	 * Get the delay between the start of the simulation and the flow sending
+	 * its first packet
+	 * 
+	 * @return The delay in milliseconds
+	 */
+	public long getStartDelay() {
+		return start_delay;
+	}
+
+	/**
+	 * Get the time at which the flow starts sending
+	 * 
+	 * @return The time in nanoseconds of the flow's clock, or Long.MAX_VALUE
+	 *         if the flow has not been started yet
+	 */
+	public long getStartTime() {
+		return start_at;
+	}
+
+	/**
+	 * Get the delay between the start of the simulation and the flow sending
+	 * its first packet, including any start jitter
+	 * 
+	 * @return The delay in nanoseconds
+	 */
+	public long getStartOffset() {
+		return TimeUnit.MILLISECONDS.toNanos(start_delay) + start_jitter;
+	}
+
+	/**
+	 * Have the flow start up to the given time later than its start delay,
+	 * chosen at random. Must be called before the flow starts.
+	 * 
+	 * @param nanos
+	 *            The largest extra delay in nanoseconds, zero for none
+	 */
+	public void setStartJitter(long nanos) {
+		this.start_jitter = nanos > 0 ? (long) (getRandom().nextDouble() * nanos) : 0;
+	}
+
+	/**
+	 * Make the flow background traffic, which only loads the links. In a
+	 * DISCRETE_EVENT simulation it is simulated as fluid while the other
+	 * flows send packets, which is much faster but only roughly right for
+	 * this flow. Must be called before the flow starts.
+	 * 
+	 * @param background
+	 *            Whether it is background traffic
+	 */
+	public void setBackground(boolean background) {
+		this.background = background;
+	}
+
+	/**
+	 * @return whether the flow is background traffic
+	 */
+	public boolean isBackground() {
+		return background;
+	}
+
+	/**
+	 * Get the time at which the last packet of the flow was acknowledged
+	 * 
+	 * @return The time in nanoseconds of the flow's clock, or Long.MAX_VALUE
+	 *         if the flow has not finished
+	 */
+	public long getFinishTime() {
+		return finished_at;
+	}
+
+	/**
+	 * @return the number of packets acknowledged in order so far
+	 */
+	public long getPacketsAcked() {
+		return idxReceived + 1;
+	}
+
+	/**
+	 * @return the number of bytes of data acknowledged in order so far
+	 */
+	public long getBytesAcked() {
+		return getPacketsAcked() * segmentSize;
+	}
+
+	/**
+	 * @return the number of packets sent so far, counting every time a packet
+	 *         was sent again
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * Get the average round trip time of the packets acknowledged so far
+	 * 
+	 * @return The time in nanoseconds, or zero if nothing has been
+	 *         acknowledged
+	 */
+	public long getMeanRTT() {
+		return RTTsamples == 0 ? 0 : RTTtotal / RTTsamples;
+	}
+
+	/**
+	 * Get the host which sends this flow's packets
+	 * 
+	 * @return The host, or null if the flow was never added to one
+	 */
+	public Host getSource() {
+		return source;
+	}
+
+	/**
+	 * Set the host which sends this flow's packets
+	 * 
+	 * @param h
+	 */
+	void setSource(Host h) {
+		this.source = h;
+	}
+
+	/**
+	 * Get the number identifying this flow, which every packet and ACK of the
+	 * flow carries. Flows are numbered from zero in the order they are added
+	 * to a simulation.
+	 * 
+	 * @return The flow ID
+	 */
+	public int getFlowId() {
+		return flowId;
+	}
+
+	/**
+	 * Set the largest segment the flow may send, which it sends unless the
+	 * links at either end cannot carry it. Must be called before the flow
+	 * starts.
+	 * 
+	 * @param bytes
+	 *            The largest segment in bytes
+	 */
+	public void setMaxSegmentSize(int bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Segments must have something in them");
+		this.maxSegmentSize = bytes;
+		setSegmentSize(bytes);
+	}
+
+	/**
+	 * @return the size of the flow's data packets in bytes
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Agree the segment size, as TCP does with path MTU discovery: the largest
+	 * segment the flow wants to send which every link on its way can carry.
+	 * Links drop segments bigger than they carry, so a flow sending them would
+	 * never finish.
+	 * 
+	 * @param pathMTU
+	 *            The smallest MTU of the links the flow may be routed over
+	 */
+	public void negotiateMSS(int pathMTU) {
+		setSegmentSize(Math.min(maxSegmentSize, pathMTU));
+	}
+
+	private void setSegmentSize(int bytes) {
+		this.segmentSize = bytes;
+		// convert MB to bytes then divide then round up
+		this.num_packets = ((data_size * 1000000) / bytes) + 1;
+	}
+
+	/**
+	 * Get the IP the flow sends to
+	 * 
+	 * @return The destination IP
+	 */
+	public long getDest() {
+		return dest;
+	}
+
+	/**
+	 * Set the number identifying this flow
+	 * 
+	 * @param flowId
+	 */
+	void setFlowId(int flowId) {
+		this.flowId = flowId;
+	}
+
+	/**
+	 * @return the window algorithm, for simulations which work out the
+	 *         window themselves
+	 */
+	WindowAlgorithm getWindowAlgorithm() {
+		return alg;
+	}
+
+	/**
+	 * @return the number of packets acknowledged once the flow is finished
+	 */
+	long getPacketCount() {
+		return num_packets + 1;
+	}
+
+	/**
+	 * Record how the flow did in a fluid simulation, which does not send
+	 * packets one by one
+	 * 
+	 * @param startAt
+	 *            When it started, in nanoseconds
+	 * @param sent
+	 *            Packets sent
+	 * @param acked
+	 *            Packets acknowledged
+	 * @param meanRTT
+	 *            Mean round trip time of the packets acknowledged, in
+	 *            nanoseconds
+	 * @param finishedAt
+	 *            When it finished, or Long.MAX_VALUE if it did not
+	 */
+	void setFluidResults(long startAt, long sent, long acked, long meanRTT, long finishedAt) {
+		this.start_at = startAt;
+		this.packetsSent = sent;
+		this.idxReceived = (int) acked - 1;
+		this.RTTtotal = meanRTT * acked;
+		this.RTTsamples = acked;
+		this.finished_at = finishedAt;
+	}
+
+	@Override
+	public Object saveState() {
+		// Plain arrays, so that states can be written to snapshots
+		return new Object[] {
+				new long[] { start_at, TIMEOUT, lastSentTime, nextTimerCheck, lastRTT, RTTcounter, packetsSent,
+						RTTtotal, RTTsamples, finished_at },
+				new int[] { dupACKcount, dupACKnum, idxReceived, idxSent, maxIdxSent }, alg.saveState() };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+
+		long[] longs = (long[]) saved[0];
+		start_at = longs[0];
+		TIMEOUT = longs[1];
+		lastSentTime = longs[2];
+		nextTimerCheck = longs[3];
+		lastRTT = longs[4];
+		RTTcounter = longs[5];
+		packetsSent = longs[6];
+		RTTtotal = longs[7];
+		RTTsamples = longs[8];
+		finished_at = longs[9];
+
+		int[] ints = (int[]) saved[1];
+		dupACKcount = ints[0];
+		dupACKnum = ints[1];
+		idxReceived = ints[2];
+		idxSent = ints[3];
+		maxIdxSent = ints[4];
+
+		alg.restoreState(saved[2]);
+	}
+
 	@Override
 	public String toString() {
 		return "{Src: " + src + " Dest: " + dest + "}";
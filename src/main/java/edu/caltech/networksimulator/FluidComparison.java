@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.caltech.networksimulator.experiment.FlowResult;
+
+/**
+ * Compares fluid simulations with sending packets, by running each of the
+ * standard cases both ways. For each flow it reports throughput, mean round
+ * trip time and loss from each, and for each link the mean bytes queued, with
+ * how far the fluid answer is from the packet one. Then how much faster the
+ * fluid run was. What it found is summed up in FluidSimulator.
+ *
+ * Cases with more than one flow are also run hybrid, with every flow but the
+ * first as background fluid, to compare the throughput, round trip time and
+ * loss of the first flow with what it does among packets alone.
+ *
+ * Arguments, all optional: the congestion algorithm (TCPReno), and the cases
+ * to run (all).
+ */
+public class FluidComparison {
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String alg = args.length > 0 ? args[0] : "TCPReno";
+
+		int[] cases = { 0, 1, 2, 3 };
+		if (args.length > 1) {
+			cases = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				cases[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		List<String> report = new ArrayList<String>();
+		for (int n : cases) {
+			long start = System.nanoTime();
+			NetworkSimulator packets = run(n, alg, NetworkSimulator.ExecutionMode.DISCRETE_EVENT, false);
+			long packetTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			NetworkSimulator fluid = run(n, alg, NetworkSimulator.ExecutionMode.FLUID, false);
+			long fluidTime = System.nanoTime() - start;
+
+			report.add("");
+			report.add("Case " + n + ", " + alg + ": packets then fluid");
+			report.add(String.format("%-10s%12s%12s%8s%10s%10s%8s%8s%8s%8s", "Flow", "Mbps", "Mbps", "err",
+					"RTT ms", "RTT ms", "err", "loss", "loss", "err"));
+			List<FlowResult> packetFlows = FlowResult.ofAll(packets);
+			List<FlowResult> fluidFlows = FlowResult.ofAll(fluid);
+			for (int i = 0; i < packetFlows.size(); i++) {
+				FlowResult p = packetFlows.get(i);
+				FlowResult f = fluidFlows.get(i);
+				report.add(String.format("%-10s%12.3f%12.3f%8s%10.2f%10.2f%8s%8.4f%8.4f%8s", p.getFlow(),
+						p.getThroughput(), f.getThroughput(), error(p.getThroughput(), f.getThroughput()), p.getRTT(),
+						f.getRTT(), error(p.getRTT(), f.getRTT()), p.getLoss(), f.getLoss(),
+						error(p.getLoss(), f.getLoss())));
+			}
+
+			report.add(String.format("%-10s%12s%12s%8s", "Link", "queued B", "queued B", "err"));
+			List<NetworkComponent> fluidComponents = fluid.getComponents();
+			List<NetworkComponent> packetComponents = packets.getComponents();
+			for (int i = 0; i < packetComponents.size(); i++) {
+				if (!(packetComponents.get(i) instanceof Link))
+					continue;
+				double p = ((Link) packetComponents.get(i)).getMeanBufferUsed();
+				double f = ((Link) fluidComponents.get(i)).getMeanBufferUsed();
+				// Next to nothing queued makes any error huge
+				report.add(String.format("%-10s%12.0f%12.0f%8s", packetComponents.get(i).getComponentName(), p, f,
+						p >= 1 ? error(p, f) : "-"));
+			}
+
+			report.add(String.format("%d events in %d ms, %d steps in %d ms: %.0fx faster",
+					packets.getEventsProcessed(), packetTime / 1000000, fluid.getEventsProcessed(),
+					fluidTime / 1000000, packetTime / (double) Math.max(fluidTime, 1)));
+
+			if (packetFlows.size() < 2)
+				continue;
+
+			start = System.nanoTime();
+			NetworkSimulator hybrid = run(n, alg, NetworkSimulator.ExecutionMode.DISCRETE_EVENT, true);
+			long hybridTime = System.nanoTime() - start;
+
+			report.add("Hybrid, the rest as background: packets then hybrid");
+			FlowResult p = packetFlows.get(0);
+			FlowResult h = FlowResult.ofAll(hybrid).get(0);
+			report.add(String.format("%-10s%12.3f%12.3f%8s%10.2f%10.2f%8s%8.4f%8.4f%8s", p.getFlow(),
+					p.getThroughput(), h.getThroughput(), error(p.getThroughput(), h.getThroughput()), p.getRTT(),
+					h.getRTT(), error(p.getRTT(), h.getRTT()), p.getLoss(), h.getLoss(), error(p.getLoss(), h.getLoss())));
+			report.add(String.format("%d events in %d ms, %d events in %d ms: %.0fx fewer events",
+					packets.getEventsProcessed(), packetTime / 1000000, hybrid.getEventsProcessed(),
+					hybridTime / 1000000, packets.getEventsProcessed() / (double) hybrid.getEventsProcessed()));
+		}
+
+		for (String line : report)
+			System.out.println(line);
+	}
+
+	private static NetworkSimulator run(int n, String alg, NetworkSimulator.ExecutionMode mode, boolean hybrid) {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(mode);
+		SimulationRunner.setupCase(n, sim, alg, null);
+		if (hybrid) {
+			boolean first = true;
+			for (NetworkComponent c : sim.getComponents()) {
+				if (c instanceof Flow) {
+					((Flow) c).setBackground(!first);
+					first = false;
+				}
+			}
+		}
+		sim.run();
+		return sim;
+	}
+
+	/*
+	 * How far the fluid answer is from the packet one, as a percentage
+	 */
+	private static String error(double packets, double fluid) {
+		if (packets == 0)
+			return fluid == 0 ? "0%" : "-";
+		return String.format("%+.0f%%", 100 * (fluid - packets) / packets);
+	}
+
+}
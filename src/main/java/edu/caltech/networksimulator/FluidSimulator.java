@@ -0,0 +1,525 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.engine.Event;
+import edu.caltech.networksimulator.engine.EventHandler;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.windowalgs.WindowAlgorithm;
+
+/**
+ * Simulates a network as fluid rather than packets, for quick approximate
+ * answers about networks too big to send every packet through. Each flow
+ * sends at its window over its round trip time, and each end of a link has a
+ * queue which fills at the rate data arrives and empties at the link's
+ * capacity, dropping what overflows the buffer. Windows change smoothly, as
+ * their window algorithm's fluid model says, with the rates of ACKs and
+ * losses. Everything moves on in fixed steps of simulated time.
+ *
+ * Flows take the path with fewest hops to their destination, found once at
+ * the start, where routers would find the least loaded one as they go. Losses
+ * reach windows a round trip after they happen, as the missing ACKs would,
+ * but round trip times straight away. The two directions of a half duplex link share its
+ * capacity in proportion to what they have to send, with no time lost
+ * turning around. Buffers are drop-tail and first-in, first-out, whatever
+ * queue discipline and scheduler the links have.
+ *
+ * It can also run just the background flows, alongside an event driven
+ * simulation of packets from the rest (hybrid). Each step the fluid sees how
+ * many bytes of packets arrived at each end of each link and how many are
+ * queued there, and shares the capacity and buffer with them. First in,
+ * first out, each is sent in proportion to how much of it is queued, and
+ * when the buffer overflows the fluid loses the same fraction of what
+ * arrives as the packets and fluid together. The link then sends its packets
+ * with the capacity the fluid leaves, and drops packets which do not fit in
+ * the buffer beside the fluid.
+ *
+ * It is only roughly right. FluidComparison with TCPReno on the standard
+ * cases, in 1 ms steps, finds fluid throughput 23% to 165% higher than with
+ * packets, round trip times from 12% lower to 50% higher, and loss 3 to 360
+ * times lower. Mean queues are off by anything from -100% to over +10000%,
+ * since the fluid keeps the bottleneck buffer full and the others all but
+ * empty. Flows sending packets go back N and wait out long timeouts after a
+ * loss, which the fluid model leaves out, so most of what they count as lost
+ * is packets sent again. Hybrid does better: the foreground flow of case 2
+ * comes within 1% on throughput, 14% on round trip time and 18% on loss.
+ */
+class FluidSimulator implements EventHandler {
+
+	// Event type of a hybrid step
+	private static final int STEP = 0;
+
+	private final long step;
+	private final boolean hybrid;
+
+	private final List<FluidFlow> flows;
+	private final List<FluidLink> links;
+
+	private long now;
+	private long steps;
+
+	private EventSimulator sim;
+
+	/**
+	 * @param components
+	 *            Everything in the simulation, set up as for sending packets
+	 * @param step
+	 *            How far each step moves on, in nanoseconds
+	 * @param hybrid
+	 *            Whether only background flows are fluid, alongside packets
+	 *            from the rest
+	 */
+	FluidSimulator(List<NetworkComponent> components, long step, boolean hybrid) {
+		if (step <= 0)
+			throw new NetworkException("Fluid steps must take some time");
+		this.step = step;
+		this.hybrid = hybrid;
+
+		links = new ArrayList<FluidLink>();
+		Map<Link, FluidLink> byLink = new HashMap<Link, FluidLink>();
+		Map<NetworkComponent, List<Link>> linksAt = new HashMap<NetworkComponent, List<Link>>();
+		for (NetworkComponent n : components) {
+			if (n instanceof Link) {
+				Link l = (Link) n;
+				FluidLink fl = new FluidLink(l);
+				links.add(fl);
+				byLink.put(l, fl);
+				linksOf(linksAt, l.getEnd1()).add(l);
+				linksOf(linksAt, l.getEnd2()).add(l);
+			}
+		}
+
+		flows = new ArrayList<FluidFlow>();
+		for (NetworkComponent n : components) {
+			if (n instanceof Flow && (!hybrid || ((Flow) n).isBackground()))
+				flows.add(new FluidFlow((Flow) n, route((Flow) n, components, linksAt, byLink)));
+		}
+
+		now = 0;
+		steps = 0;
+	}
+
+	private static List<Link> linksOf(Map<NetworkComponent, List<Link>> linksAt, NetworkComponent n) {
+		List<Link> at = linksAt.get(n);
+		if (at == null) {
+			at = new ArrayList<Link>();
+			linksAt.put(n, at);
+		}
+		return at;
+	}
+
+	/*
+	 * The ends a flow's data is sent through, on the path with fewest hops
+	 * from its source to its destination. Only routers pass data on.
+	 */
+	private static List<FluidPort> route(Flow f, List<NetworkComponent> components,
+			Map<NetworkComponent, List<Link>> linksAt, Map<Link, FluidLink> byLink) {
+		Host source = f.getSource();
+		Host destination = null;
+		for (NetworkComponent n : components) {
+			if (n instanceof Host && ((Host) n).getIP() == f.getDest())
+				destination = (Host) n;
+		}
+		if (source == null || destination == null)
+			throw new NetworkException("Flow " + f.getComponentName() + " has no source or destination");
+
+		// Breadth first, remembering the link each component was reached by
+		Map<NetworkComponent, Link> reachedBy = new HashMap<NetworkComponent, Link>();
+		ArrayDeque<NetworkComponent> frontier = new ArrayDeque<NetworkComponent>();
+		reachedBy.put(source, null);
+		frontier.add(source);
+		while (!frontier.isEmpty() && !reachedBy.containsKey(destination)) {
+			NetworkComponent n = frontier.poll();
+			if (n != source && !(n instanceof Router))
+				continue;
+			for (Link l : linksOf(linksAt, n)) {
+				NetworkComponent next = l.getEnd1() == n ? l.getEnd2() : l.getEnd1();
+				if (next != null && !reachedBy.containsKey(next)) {
+					reachedBy.put(next, l);
+					frontier.add(next);
+				}
+			}
+		}
+		if (!reachedBy.containsKey(destination))
+			throw new NetworkException("No route for flow " + f.getComponentName());
+
+		List<FluidPort> path = new ArrayList<FluidPort>();
+		NetworkComponent n = destination;
+		while (n != source) {
+			Link l = reachedBy.get(n);
+			FluidLink fl = byLink.get(l);
+			NetworkComponent from = l.getEnd1() == n ? l.getEnd2() : l.getEnd1();
+			FluidPort port = l.getEnd1() == from ? fl.port1 : fl.port2;
+			if (f.getSegmentSize() > l.getMTU())
+				throw new NetworkException("Flow " + f.getComponentName() + " sends segments bigger than "
+						+ l.getComponentName() + " carries, so would never finish");
+			path.add(0, port);
+			n = from;
+		}
+		return path;
+	}
+
+	/**
+	 * Run until every flow has finished or the time is up, then record what
+	 * happened in the flows and links
+	 *
+	 * @param until
+	 *            Simulated time to stop at, in nanoseconds
+	 * @return The simulated time run to, in nanoseconds
+	 */
+	long run(long until) {
+		while (now < until && !allFinished()) {
+			step();
+			now += step;
+		}
+
+		for (FluidFlow f : flows)
+			f.record();
+		double seconds = now / (double) TimeUnit.SECONDS.toNanos(1);
+		for (FluidLink l : links)
+			l.link.setFluidMeanBufferUsed(now > 0 ? (l.port1.area + l.port2.area) / seconds : 0);
+		return now;
+	}
+
+	/**
+	 * Start running the background flows alongside packets, a step at a time
+	 * 
+	 * @param sim
+	 *            The simulator sending the packets
+	 */
+	void start(EventSimulator sim) {
+		if (!hybrid)
+			throw new NetworkException("Only hybrid fluid simulations run alongside packets");
+		this.sim = sim;
+		sim.register(this);
+		if (!flows.isEmpty())
+			sim.schedule(0, this, STEP);
+	}
+
+	@Override
+	public void handleEvent(Event e) {
+		if (e.getType() != STEP)
+			throw new NetworkException("Unknown event type for fluid: " + e);
+
+		now = sim.now();
+		step();
+		for (FluidFlow f : flows) {
+			// So the simulation knows it has finished
+			if (f.finishedAt <= now + step)
+				f.record();
+		}
+		if (!allFinished())
+			sim.schedule(step, this, STEP);
+	}
+
+	/**
+	 * Record how the background flows have done so far, once the packets
+	 * have stopped
+	 */
+	void finish() {
+		for (FluidFlow f : flows)
+			f.record();
+	}
+
+	/*
+	 * Move everything on by one step
+	 */
+	private void step() {
+		double dt = step / (double) TimeUnit.SECONDS.toNanos(1);
+
+		for (FluidLink l : links) {
+			l.port1.arrivals = 0;
+			l.port2.arrivals = 0;
+			if (hybrid) {
+				l.port1.fromPackets(dt);
+				l.port2.fromPackets(dt);
+			}
+		}
+		for (FluidFlow f : flows)
+			f.send(now);
+		for (FluidLink l : links)
+			l.serve(dt);
+		for (FluidFlow f : flows)
+			f.update(now, steps, dt);
+
+		if (hybrid) {
+			for (FluidLink l : links) {
+				l.port1.toPackets();
+				l.port2.toPackets();
+			}
+		}
+		steps++;
+	}
+
+	/**
+	 * @return how many steps have been run
+	 */
+	long getSteps() {
+		return steps;
+	}
+
+	private boolean allFinished() {
+		for (FluidFlow f : flows) {
+			if (f.finishedAt == Long.MAX_VALUE)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A flow as a rate of packets, and what it has sent so far
+	 */
+	private static final class FluidFlow {
+
+		final Flow flow;
+		final WindowAlgorithm alg;
+		final List<FluidPort> path;
+
+		// Sizes of data packets and ACKs, in bytes
+		final int segment, ack;
+
+		final long startAt;
+		final long packetCount;
+
+		// Round trip time with empty queues, in seconds
+		final double baseRTT;
+
+		// Window in packets, and the rate sent at and round trip time in
+		// this step
+		double window;
+		double rate, rtt;
+
+		double sent, acked, rttTotal;
+		long finishedAt;
+
+		// Packets lost a second in each recent step, so losses can be felt a
+		// round trip later
+		double[] lost;
+
+		FluidFlow(Flow flow, List<FluidPort> path) {
+			this.flow = flow;
+			this.alg = flow.getWindowAlgorithm();
+			this.path = path;
+			segment = flow.getSegmentSize();
+			ack = Packet.Type.ACK.size();
+			startAt = flow.getStartOffset();
+			packetCount = flow.getPacketCount();
+
+			double base = 0;
+			for (FluidPort p : path)
+				base += p.delay(segment) + p.reverse.delay(ack);
+			baseRTT = base;
+
+			window = Math.max(alg.getW(), 1);
+			finishedAt = Long.MAX_VALUE;
+			lost = new double[64];
+		}
+
+		boolean active(long now) {
+			return now >= startAt && finishedAt == Long.MAX_VALUE;
+		}
+
+		/*
+		 * Add the data and ACKs of this step to the ends they pass through
+		 */
+		void send(long now) {
+			if (!active(now))
+				return;
+
+			rtt = 0;
+			for (FluidPort p : path)
+				rtt += p.delay(segment) + p.queueingDelay() + p.reverse.delay(ack) + p.reverse.queueingDelay();
+			rate = window / rtt;
+
+			// Each end passes on what got through it last step
+			double reaching = rate;
+			for (FluidPort p : path) {
+				p.arrivals += reaching * segment;
+				reaching *= p.passed;
+			}
+			for (FluidPort p : path)
+				p.reverse.arrivals += reaching * ack;
+		}
+
+		/*
+		 * Count what got through this step, and move the window on
+		 */
+		void update(long now, long step, double dt) {
+			if (!active(now))
+				return;
+
+			double through = 1;
+			for (FluidPort p : path)
+				through *= 1 - p.loss;
+
+			double delivered = rate * through * dt;
+			sent += rate * dt;
+			acked += delivered;
+			rttTotal += rtt * delivered;
+			if (acked >= packetCount)
+				finishedAt = now + (long) (dt * TimeUnit.SECONDS.toNanos(1));
+
+			// Losses from a round trip ago
+			int back = (int) (rtt / dt);
+			if (back >= lost.length)
+				grow(back, step);
+			lost[(int) (step % lost.length)] = rate * (1 - through);
+			double lossRate = step >= back ? lost[(int) ((step - back) % lost.length)] : 0;
+
+			window += alg.fluidRate(window, rtt, baseRTT, lossRate) * dt;
+			window = Math.max(window, 1);
+		}
+
+		/*
+		 * Make room for more than the given number of steps of losses, keeping
+		 * the ones from before this step
+		 */
+		private void grow(int steps, long step) {
+			double[] grown = new double[Integer.highestOneBit(steps) * 2];
+			for (long s = Math.max(0, step - lost.length); s < step; s++)
+				grown[(int) (s % grown.length)] = lost[(int) (s % lost.length)];
+			lost = grown;
+		}
+
+		void record() {
+			long meanRTT = acked > 0 ? (long) (rttTotal / acked * TimeUnit.SECONDS.toNanos(1)) : 0;
+			flow.setFluidResults(startAt, (long) sent, Math.min((long) acked, packetCount), meanRTT, finishedAt);
+		}
+	}
+
+	/**
+	 * A link, with a queue at each end
+	 */
+	private static final class FluidLink {
+
+		final Link link;
+		final FluidPort port1, port2;
+
+		// Capacity in bytes a second
+		final double capacity;
+
+		FluidLink(Link link) {
+			this.link = link;
+			capacity = link.getCapacity() / 8.0;
+			port1 = new FluidPort(this, true);
+			port2 = new FluidPort(this, false);
+			port1.reverse = port2;
+			port2.reverse = port1;
+		}
+
+		/*
+		 * Share out the capacity and move the queues on by a step
+		 */
+		void serve(double dt) {
+			if (link.isDuplex()) {
+				port1.serve(Math.min(port1.demand(), capacity), dt);
+				port2.serve(Math.min(port2.demand(), capacity), dt);
+				return;
+			}
+
+			double demand1 = port1.demand();
+			double demand2 = port2.demand();
+			double share = demand1 + demand2 <= capacity ? 1 : capacity / (demand1 + demand2);
+			port1.serve(demand1 * share, dt);
+			port2.serve(demand2 * share, dt);
+		}
+	}
+
+	/**
+	 * The queue at one end of a link, of what that end sends
+	 */
+	private static final class FluidPort {
+
+		final FluidLink link;
+		final boolean first;
+		FluidPort reverse;
+
+		// Bytes a second arriving and sent this step, and of that sent, how
+		// much was fluid
+		double arrivals, service, fluidService;
+
+		// When hybrid, bytes a second of packets which arrived last step, and
+		// bytes of packets queued
+		double packetArrivals, packetQueue;
+
+		// Bytes queued, the fraction of arrivals dropped this step, and the
+		// fraction sent on
+		double queue, loss, passed;
+
+		// Bytes queued times seconds
+		double area;
+
+		FluidPort(FluidLink link, boolean first) {
+			this.link = link;
+			this.first = first;
+			passed = 1;
+		}
+
+		/*
+		 * Find out what packets arrived at and are queued at this end
+		 */
+		void fromPackets(double dt) {
+			packetArrivals = link.link.takeOfferedBytes(first) / dt;
+			packetQueue = link.link.getPacketBytesQueued(first);
+		}
+
+		/*
+		 * Tell the link how much of its buffer and capacity the fluid takes
+		 */
+		void toPackets() {
+			link.link.setBackground(first, queue, fluidService);
+		}
+
+		/*
+		 * Bytes a second this end would send if it could; a backlogged end
+		 * would take all of it
+		 */
+		double demand() {
+			return queue + packetQueue > 0 ? link.capacity : arrivals + packetArrivals;
+		}
+
+		/*
+		 * Time for a packet to cross the link with nothing queued, in seconds
+		 */
+		double delay(int size) {
+			return TimeUnit.MILLISECONDS.toNanos(link.link.getPropagationDelay()) / 1e9 + size / link.capacity;
+		}
+
+		double queueingDelay() {
+			return (queue + packetQueue) / (service > 0 ? service : link.capacity);
+		}
+
+		void serve(double service, double dt) {
+			this.service = service;
+
+			// First in, first out, so fluid and packets are sent in
+			// proportion to how much of each is queued, counting what
+			// arrives this step
+			double fluid = queue + arrivals * dt;
+			double packets = packetQueue + packetArrivals * dt;
+			fluidService = fluid > 0 ? service * fluid / (fluid + packets) : 0;
+
+			// When the buffer overflows both lose the same fraction of what
+			// arrives, as they would at the tail of one queue
+			double total = arrivals + packetArrivals;
+			double next = queue + packetQueue + (total - service) * dt;
+			double buffer = link.link.getBufferSize();
+			loss = next > buffer && total > 0 ? Math.min((next - buffer) / (total * dt), 1) : 0;
+
+			next = queue + (arrivals * (1 - loss) - fluidService) * dt;
+			// Packets may have taken room the fluid had
+			queue = Math.max(Math.min(next, buffer - packetQueue), 0);
+			passed = arrivals > 0 ? Math.min(fluidService / arrivals, 1) : 1;
+			area += queue * dt;
+		}
+	}
+
+}
@@ -3,8 +3,12 @@
  */
 package edu.caltech.networksimulator;
 
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.engine.Event;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.engine.StateSaving;
 
 /**
  * @authors Francesco, Carly
@@ -14,18 +18,23 @@ import java.util.TreeMap;
  * 
  *          Hosts will have at most one link connected.
  */
-public class Host extends NetworkComponent implements Addressable {
+public class Host extends NetworkComponent implements Addressable, StateSaving {
+
+	// Longest time to wait for the flow to tell us it has something
+	private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// Event types
+	private static final int SEND = 0;
 
-	private static final long SLEEP_TIME = 50;
 	private long macAddress;
 	private long ip;
 	private Link link;
 	private Flow flow;
 
 	// Stuff for responding to requests
-	// Map between flow IDs and sequence numbers
-	// keeps track of last seen sequence number for each flow
-	private Map<String, Integer> acks;
+	// Last seen sequence number for each flow, indexed by flow ID, -1 for
+	// flows not seen yet
+	private int[] acks;
 
 	/**
 	 * @param name
@@ -35,7 +44,7 @@ public class Host extends NetworkComponent implements Addressable {
 		l.setConnection(this);
 		this.link = l;
 		macAddress = physicalAddr;
-		this.acks = new TreeMap<String, Integer>();
+		this.acks = new int[0];
 	}
 
 	/*
@@ -50,28 +59,65 @@ public class Host extends NetworkComponent implements Addressable {
 			if (flow != null) {
 				Packet nextPacket = flow.getPacket();
 				if (nextPacket != null) {
-					nextPacket.setSentTime();
+					nextPacket.setSentTime(getClock().nanoTime());
 					link.offerPacket(nextPacket, this);
 				} else {
-					try {
-						Thread.sleep(0, (int) SLEEP_TIME);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+					// Nothing until the flow starts, an ACK arrives or the
+					// flow times out, all of which wake us up. Waking up
+					// anyway now and then covers a missed wake up.
+					long untilStart = flow.getStartTime() - getClock().nanoTime();
+					await(untilStart > 0 ? Math.min(untilStart, MAX_WAIT) : MAX_WAIT);
 				}
 			} else {
 
 				// Don't run too often
 				try {
-					Thread.sleep(1000);
+					getClock().sleep(TimeUnit.SECONDS.toNanos(1));
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					// Interrupted to stop
+					return;
 				}
 			}
 		}
 
 	}
 
+	@Override
+	public void start(EventSimulator sim) {
+		super.start(sim);
+
+		// Nothing to do until the flow wants to start sending
+		if (flow != null)
+			sim.schedule(flow.getStartOffset(), this, SEND);
+	}
+
+	@Override
+	public void handleEvent(Event e) {
+		switch (e.getType()) {
+		case SEND:
+			sendPackets();
+			break;
+		default:
+			throw new NetworkException("Unknown event type for host: " + e);
+		}
+	}
+
+	/**
+	 * Send every packet the flow is currently willing to give us. When event
+	 * driven this is called whenever the flow's window may have opened up,
+	 * rather than polling the flow.
+	 */
+	void sendPackets() {
+		if (flow == null)
+			return;
+
+		Packet nextPacket;
+		while ((nextPacket = flow.getPacket()) != null) {
+			nextPacket.setSentTime(getClock().nanoTime());
+			link.offerPacket(nextPacket, this);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -84,44 +130,68 @@ public class Host extends NetworkComponent implements Addressable {
 		if (NetworkSimulator.PRINT_HOST_PACKETS) {
 			System.out.println(getComponentName() + "\t recieved packet p: " + p + "\t from " + n.getComponentName());
 		}
-		String message = p.getPayload();
 		if (p.getDest() == this.ip) { // message meant for us
-			if (!(message.equals("ACK"))) { // Message needs an ACK
-				String id = p.getSeqID();
+			if (p.getType() == Packet.Type.DATA) { // Message needs an ACK
+				int id = p.getFlowId();
 				int idx = p.getSeqNum();
+				if (id < 0) { // not part of a flow, so nothing to acknowledge
+					p.release();
+					return;
+				}
+				if (id >= acks.length)
+					growAcks(id);
 				// If this is the next packet in the sequence, increment the
 				// sequence number
-				if (acks.containsKey(id)) { // we have seen this flow before
-					if (acks.get(id) + 1 == idx) { // we got the next packet
-						acks.put(id, idx);
-					} else if (acks.get(id) > idx) { // we thought we got a
-														// higher idx than
+				if (acks[id] >= 0) { // we have seen this flow before
+					if (acks[id] + 1 == idx) { // we got the next packet
+						acks[id] = idx;
+					} else if (acks[id] > idx) { // we thought we got a
+													// higher idx than
 						// the flow thinks we did
-						acks.put(id, idx);
+						acks[id] = idx;
 					} // otherwise, wasn't the next, so don't update last seen
 				} else { // we have not seen the flow before
 					if (idx == 0) { // start right with the first packet
-						acks.put(id, 0);
+						acks[id] = 0;
 					} // otherwise started with the wrong one, pretend we didn't
 						// see it.
 				}
 
 				// Send an acknowledgement to the original message made
 				// with the highest sequence number we have gotten so far
-				if (acks.containsKey(id)) { // we have seen flow before
-					n.offerPacket(p.getACK(acks.get(id)), this);
+				if (acks[id] >= 0) { // we have seen flow before
+					n.offerPacket(p.getACK(acks[id]), this);
 				} // otherwise we pretend packet was dropped.
 
-			} else { // payload is ACK meant for us, inform the flow
+			} else if (p.getType() == Packet.Type.ACK) { // ACK meant for us, inform the flow
 				if (flow != null) {
 					flow.offerPacket(p, this);
+
+					// The ACK may have opened the window
+					if (isEventDriven())
+						sendPackets();
+					else
+						wakeUp();
 				}
 			}
 		} else if (p.getDest() == -1) {
-			if (p.getPayload().startsWith("HELLO")) {
-				n.offerPacket(new Packet(ip, p.getSrc(), "HI " + ComponentType.HOST), this);
+			if (p.getType() == Packet.Type.HELLO) {
+				n.offerPacket(Packet.obtain(Packet.Type.HI, ip, p.getSrc(),
+						Router.IDENTITY_REQUEST_RESPONSE_HEADER + " " + ComponentType.HOST), this);
 			}
 		}
+
+		// Everything a host receives ends here
+		p.release();
+	}
+
+	/*
+	 * Make room for the flow with the given ID
+	 */
+	private void growAcks(int id) {
+		int length = acks.length;
+		acks = Arrays.copyOf(acks, Math.max(2 * length, id + 1));
+		Arrays.fill(acks, length, acks.length, -1);
 	}
 
 	@Override
@@ -148,6 +218,15 @@ public class Host extends NetworkComponent implements Addressable {
 		this.ip = ip;
 	}
 
+	/**
+	 * Gets the link this host is connected to
+	 * 
+	 * @return The link
+	 */
+	public Link getLink() {
+		return link;
+	}
+
 	/**
 	 * Adds a flow to this Host
 	 * 
@@ -155,6 +234,21 @@ public class Host extends NetworkComponent implements Addressable {
 	 */
 	public void addFlow(Flow f) {
 		this.flow = f;
+		f.setSource(this);
+
+		// Added while running, so start() has already been and gone
+		if (isEventDriven())
+			getEventSimulator().schedule(f.getStartOffset(), this, SEND);
+	}
+
+	@Override
+	public Object saveState() {
+		return acks.clone();
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		acks = ((int[]) state).clone();
 	}
 
 	@Override
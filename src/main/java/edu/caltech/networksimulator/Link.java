@@ -3,11 +3,18 @@
  */
 package edu.caltech.networksimulator;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.caltech.networksimulator.datacapture.DataCaptureTool;
 import edu.caltech.networksimulator.datacapture.DataCaptureToolHelper;
+import edu.caltech.networksimulator.engine.Event;
+import edu.caltech.networksimulator.engine.EventHandler;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.engine.StateSaving;
+import edu.caltech.networksimulator.queuedisciplines.QueueDiscipline;
+import edu.caltech.networksimulator.random.RandomStream;
 
 /**
  * @authors Francesco, Carly
@@ -23,6 +30,23 @@ import edu.caltech.networksimulator.datacapture.DataCaptureToolHelper;
  *          first-out. Packets that try to enter a full buffer will be dropped.
  *          For the purpose of this project, all links are half-duplex (data can
  *          flow in both directions, but only in one direction at a time).
+ * 
+ *          When event driven, each end of the link has its own buffer and
+ *          transmitter. An end will not start transmitting while it can hear
+ *          the other end's signal, which is how the link stays half-duplex. An
+ *          end only hears a transmission once it has propagated across the
+ *          link, so nothing one end does affects the other end sooner than the
+ *          propagation delay.
+ * 
+ *          Links can also be made full duplex, where each direction has its
+ *          own buffer and transmitter and never waits for the other. When
+ *          threaded, the second direction then gets a thread of its own.
+ * 
+ *          When event driven, each buffer has a queue discipline which may
+ *          drop packets before the buffer is full, and a scheduler which may
+ *          share the link fairly between flows rather than sending packets
+ *          first-in, first-out. Threaded links only drop packets which do not
+ *          fit, and are always first-in, first-out.
  */
 public class Link extends NetworkComponent {
 
@@ -32,18 +56,64 @@ public class Link extends NetworkComponent {
 	private static final String SENT_LINE_NAME = "Link Rate";
 	private static final String DROPPED_LINE_NAME = "Dropped Rate";
 	private static final String BUFFER_LINE_NAME = "Buffer size (% capacity)";
+	private static final String SOJOURN_LINE_NAME = "Sojourn time (ms)";
 
 	private static final int DATA_HIST_SIZE = 50;
 
+	// Event types, all handled by ports
+	private static final int TRANSMIT = 0, SIGNAL = 1, DELIVER = 2;
+
+	// Least share of a port's capacity left to packets by background fluid,
+	// so packets are never held up for ever
+	private static final double MIN_PACKET_SHARE = 0.01;
+
 	private long lastPacketDropped, lastPacketSent;
 
 	private NetworkComponent end1, end2;
 
-	// Packets trying to enter a full queue will be dropped
-	private LinkedBlockingQueue<Sendable> queue;
+	// When threaded, the queues and buffers of the packets each end offers,
+	// which are the same unless full duplex
+	private Channel channel1, channel2;
 
 	private long capacity, propagationDelay, bufferSize;
-	private Long bufferUsed;
+
+	// Whether the two directions send independently of each other
+	private boolean duplex;
+
+	// Makes the thread for the reverse direction of a full duplex link
+	private ThreadFactory threadFactory;
+
+	// Largest data packet the link carries, in bytes
+	private int mtu;
+
+	// When event driven, the transmitting side of each end
+	private Port port1, port2;
+
+	// Whether event driven ports keep their packets in compact queues
+	private boolean compactQueues;
+
+	// Queue discipline of event driven ports, and the line their drops are
+	// graphed on
+	private String queueDiscipline;
+	private String disciplineLineName;
+
+	// Scheduler of event driven ports, how many buckets it hashes flows into
+	// and how many bytes it may hold for each
+	private String scheduler;
+	private int schedulerBuckets;
+	private long flowQueueLimit;
+
+	// Mean bytes in the buffers worked out by a fluid simulation, or -1 if
+	// none has run
+	private double fluidMeanBufferUsed;
+
+	// Smallest packet offered to the link in bytes, which sizes the threaded
+	// queues
+	private int smallestPacket;
+
+	// Random numbers for packets offered by each end, which may be on
+	// different threads
+	private RandomStream random1, random2;
 
 	/**
 	 * @param name
@@ -60,12 +130,30 @@ public class Link extends NetworkComponent {
 		this.capacity = capacity;
 		this.propagationDelay = propagationDelay;
 		this.bufferSize = bufferSize;
+		this.mtu = Packet.PACKET_SIZE;
 
-		queue = new LinkedBlockingQueue<Sendable>();
+		duplex = false;
+		smallestPacket = Packet.Type.ACK.size();
+		newChannels();
+		compactQueues = false;
+		setQueueDiscipline(QueueDiscipline.DEFAULT);
+		scheduler = "FIFO";
+		schedulerBuckets = 1024;
+		flowQueueLimit = Long.MAX_VALUE;
+		fluidMeanBufferUsed = -1;
 
-		bufferUsed = 0L;
 		lastPacketDropped = 0;
 		lastPacketSent = 0;
+
+		random1 = getRandom().split();
+		random2 = getRandom().split();
+	}
+
+	@Override
+	public void setRandom(RandomStream random) {
+		super.setRandom(random);
+		random1 = random.split();
+		random2 = random.split();
 	}
 
 	/**
@@ -80,6 +168,251 @@ public class Link extends NetworkComponent {
 			throw new NetworkException("Links can only link 2 network components");
 	}
 
+	/**
+	 * @return the component at the first end of this link
+	 */
+	public NetworkComponent getEnd1() {
+		return end1;
+	}
+
+	/**
+	 * @return the component at the second end of this link
+	 */
+	public NetworkComponent getEnd2() {
+		return end2;
+	}
+
+	/**
+	 * @return the propagation delay of this link in milliseconds
+	 */
+	public long getPropagationDelay() {
+		return propagationDelay;
+	}
+
+	/**
+	 * Set the propagation delay. Must be called before the link starts.
+	 * 
+	 * @param propagationDelay
+	 *            The delay in milliseconds
+	 */
+	public void setPropagationDelay(long propagationDelay) {
+		this.propagationDelay = propagationDelay;
+	}
+
+	/**
+	 * @return the capacity of this link in bits per second
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Set the capacity. Must be called before the link starts.
+	 * 
+	 * @param capacity
+	 *            The capacity in bits per second
+	 */
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the size of the buffer at each end of this link in bytes
+	 */
+	public long getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Set the size of the buffer. Must be called before the link starts.
+	 * 
+	 * @param bufferSize
+	 *            The size in bytes
+	 */
+	public void setBufferSize(long bufferSize) {
+		this.bufferSize = bufferSize;
+		newChannels();
+	}
+
+	/**
+	 * @return whether the two directions of this link send independently
+	 */
+	public boolean isDuplex() {
+		return duplex;
+	}
+
+	/**
+	 * Make the link full duplex, with a buffer and transmitter for each
+	 * direction which never wait for the other direction, or half duplex,
+	 * where an end waits until it cannot hear the other end. Must be called
+	 * before the link starts.
+	 * 
+	 * @param duplex
+	 *            Whether the link is full duplex
+	 */
+	public void setDuplex(boolean duplex) {
+		this.duplex = duplex;
+		newChannels();
+	}
+
+	/**
+	 * Say how small the packets offered to the link may be, such as data
+	 * segments smaller than ACKs, so a threaded queue can hold as many of
+	 * them as fit in the buffer. Must be called before the link starts.
+	 * 
+	 * @param bytes
+	 *            The size of the smallest packet, ACKs unless set
+	 */
+	void setSmallestPacket(int bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Packets must have something in them");
+		this.smallestPacket = bytes;
+		newChannels();
+	}
+
+	/**
+	 * Give the link what it should make the thread for the reverse direction
+	 * of a full duplex link with, so that it is the same kind of thread as the
+	 * link's own. Plain threads are made if this is never called.
+	 * 
+	 * @param threadFactory
+	 *            The factory, or null for plain threads
+	 */
+	void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	private void newChannels() {
+		channel1 = new Channel();
+		channel2 = duplex ? new Channel() : channel1;
+	}
+
+	/**
+	 * @return the largest data packet this link carries in bytes
+	 */
+	public int getMTU() {
+		return mtu;
+	}
+
+	/**
+	 * Set the largest data packet the link carries. Bigger ones are dropped,
+	 * as they cannot be split up. Routing and other control packets are
+	 * assumed to always fit. Must be called before the link starts.
+	 * 
+	 * @param mtu
+	 *            The size in bytes
+	 */
+	public void setMTU(int mtu) {
+		if (mtu <= 0)
+			throw new IllegalArgumentException("MTU must be positive");
+		this.mtu = mtu;
+	}
+
+	/**
+	 * Keep the packets waiting at each end in a compact queue, which stores
+	 * their header fields in primitive arrays instead of keeping the packet
+	 * objects, for networks with very many packets in flight. Only has an
+	 * effect when event driven, and must be called before the link starts.
+	 * 
+	 * @param compact
+	 *            Whether to use compact queues
+	 */
+	public void setCompactQueues(boolean compact) {
+		this.compactQueues = compact;
+	}
+
+	boolean hasCompactQueues() {
+		return compactQueues;
+	}
+
+	/**
+	 * @return the name of the queue discipline of each buffer
+	 */
+	public String getQueueDiscipline() {
+		return queueDiscipline;
+	}
+
+	/**
+	 * Set the queue discipline, which decides which packets to drop before the
+	 * buffer is full. Each end gets its own. Only has an effect when event
+	 * driven, and must be called before the link starts.
+	 * 
+	 * @param name
+	 *            One of DropTail (the default), RED, CoDel or PIE
+	 */
+	public void setQueueDiscipline(String name) {
+		// Fail now rather than when starting
+		QueueDiscipline.forName(name, bufferSize);
+		this.queueDiscipline = name;
+		this.disciplineLineName = name + " drops";
+	}
+
+	/**
+	 * @return the name of the scheduler at each end
+	 */
+	public String getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Set the scheduler, which decides the order waiting packets are sent in.
+	 * Each end gets its own. Only has an effect when event driven, and must be
+	 * called before the link starts.
+	 * 
+	 * @param name
+	 *            FIFO (the default) to send packets in the order they arrive,
+	 *            DRR for deficit round robin between flows or SFQ for
+	 *            deficit round robin between buckets flows are hashed into
+	 */
+	public void setScheduler(String name) {
+		if (!name.equals("FIFO") && !name.equals("DRR") && !name.equals("SFQ"))
+			throw new NetworkException("Unrecognized packet scheduler " + name);
+		this.scheduler = name;
+	}
+
+	/**
+	 * @return how many buckets an SFQ scheduler hashes flows into
+	 */
+	public int getSchedulerBuckets() {
+		return schedulerBuckets;
+	}
+
+	/**
+	 * Set how many buckets an SFQ scheduler hashes flows into. More buckets
+	 * means fewer flows sharing one. Must be called before the link starts.
+	 * 
+	 * @param buckets
+	 *            The number of buckets, 1024 unless set
+	 */
+	public void setSchedulerBuckets(int buckets) {
+		if (buckets <= 0)
+			throw new IllegalArgumentException("Need at least one bucket");
+		this.schedulerBuckets = buckets;
+	}
+
+	/**
+	 * @return the most bytes a DRR or SFQ scheduler queues for one flow or
+	 *         bucket
+	 */
+	public long getFlowQueueLimit() {
+		return flowQueueLimit;
+	}
+
+	/**
+	 * Set the most bytes a DRR or SFQ scheduler queues for one flow or
+	 * bucket, beyond which its packets are dropped even if the buffer has
+	 * room. Unless set, only the buffer limits them. Must be called before the
+	 * link starts.
+	 * 
+	 * @param limit
+	 *            The limit in bytes
+	 */
+	public void setFlowQueueLimit(long limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException("Flow queue limit must be positive");
+		this.flowQueueLimit = limit;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -88,36 +421,51 @@ public class Link extends NetworkComponent {
 	@Override
 	public void run() {
 
-		// Initialize data capture tools
-		for (DataCaptureTool dc : getDataCollectors()) {
+		setupDataCollectors();
 
-			dc.addData(this, DROPPED_LINE_NAME, System.currentTimeMillis(), 0);
-			dc.addData(this, BUFFER_LINE_NAME, System.currentTimeMillis(), bufferUsed);
-			dc.setMax(this, SENT_LINE_NAME, this.capacity);
-			dc.setMax(this, DROPPED_LINE_NAME, 1);
-			dc.setMax(this, BUFFER_LINE_NAME, bufferSize);
+		if (channel2 == channel1) {
+			transmit(channel1);
+			return;
+		}
 
-			dc.setDataSmoothingRange(this, SENT_LINE_NAME, DATA_HIST_SIZE);
-			dc.setDataSmoothingRange(this, DROPPED_LINE_NAME, DATA_HIST_SIZE);
+		// Full duplex, so the other direction gets a thread of its own
+		Runnable reverseDirection = new Runnable() {
+
+			@Override
+			public void run() {
+				transmit(channel2);
+			}
+		};
+		Thread reverse = threadFactory == null ? new Thread(reverseDirection) : threadFactory.newThread(reverseDirection);
+		reverse.setName(getComponentName() + "ReverseThread");
+		reverse.start();
+
+		transmit(channel1);
+
+		reverse.interrupt();
+		try {
+			reverse.join();
+		} catch (InterruptedException e) {
+			// Interrupted to stop
 		}
+	}
 
+	/*
+	 * Send the packets of one channel until stopped. A channel carrying both
+	 * directions waits for the link to clear when it changes direction.
+	 */
+	private void transmit(Channel c) {
+		Sendable next = c.next;
 		int linkState = IDLE;
 		while (!super.receivedStop()) {
 
 			DataCaptureToolHelper.addData(getDataCollectors(), this, DROPPED_LINE_NAME,
-					System.currentTimeMillis() - (System.currentTimeMillis() - this.lastPacketDropped) / 2,
-					1.0 / (System.currentTimeMillis() - this.lastPacketDropped + 1));
+					currentTimeMillis() - (currentTimeMillis() - this.lastPacketDropped) / 2,
+					1.0 / (currentTimeMillis() - this.lastPacketDropped + 1));
 
 			// Try to get another sendable. if fails, allow loop to start again
-			Sendable next;
-			try {
-				next = queue.poll(500, TimeUnit.MILLISECONDS);
-				if (next == null)
-					continue;
-
-			} catch (InterruptedException e1) {
+			if (!c.queue.poll(next, TimeUnit.MILLISECONDS.toNanos(500)))
 				continue;
-			}
 
 			// Send data. If the link is switching directions, we wait for the
 			// last packet
@@ -129,7 +477,7 @@ public class Link extends NetworkComponent {
 				linkState = next.to.equals(end1) ? SENDING_FROM_2 : SENDING_FROM_1;
 
 				try {
-					Thread.sleep(propagationDelay);
+					getClock().sleep(TimeUnit.MILLISECONDS.toNanos(propagationDelay));
 				} catch (InterruptedException e) {
 				}
 
@@ -142,54 +490,160 @@ public class Link extends NetworkComponent {
 					linkState = next.to.equals(end1) ? SENDING_FROM_2 : SENDING_FROM_1;
 
 					try {
-						Thread.sleep(propagationDelay);
+						getClock().sleep(TimeUnit.MILLISECONDS.toNanos(propagationDelay));
 					} catch (InterruptedException e) {
 					}
 
 				} else {
 
-					long minWait = next.sendNET - System.currentTimeMillis();
+					long minWait = next.sendNET - getClock().nanoTime();
 
 					if (minWait > 0)
 						try {
-							Thread.sleep(minWait);
+							getClock().sleep(minWait);
 						} catch (InterruptedException e) {
 						}
 				}
 			}
 
 			// Alright. Now wait for the packet to transmit.
-			double capacityWait = (next.packet.getPacketSizeBits() * 1000.0) / (double) capacity;
-			
 			try {
-				Thread.sleep(0, (int) (capacityWait * 1000));
+				getClock().sleep(getTransmissionTime(next.packet));
 			} catch (InterruptedException e) {
 			}
 
-			// Having waited, now send
+			// Having waited, now send. The receiver may release the packet,
+			// so nothing may look at it afterwards
+			Packet packet = next.packet;
+			long size = packet.getPacketSize();
+			NetworkComponent to = next.to;
+			next.packet = null;
+			next.to = null;
 
-			synchronized (bufferUsed) {
-				bufferUsed -= next.packet.getPacketSize();
-				DataCaptureToolHelper.addData(getDataCollectors(), this, BUFFER_LINE_NAME, System.currentTimeMillis(),
-						bufferUsed);
-			}
-			next.to.offerPacket(next.packet, this);
+			c.bufferUsed.addAndGet(-size);
+			DataCaptureToolHelper.addData(getDataCollectors(), this, BUFFER_LINE_NAME, currentTimeMillis(),
+					threadedBufferUsed());
+			to.offerPacket(packet, this);
 
 			// If nothing else is happening, move back to idle state
-			if (queue.isEmpty())
+			if (c.queue.isEmpty()) {
 				linkState = IDLE;
+				signalCompletion();
+			}
 
 			// kilobits per millisecond = megabits per second
-			DataCaptureToolHelper.addData(getDataCollectors(), this, SENT_LINE_NAME, System.currentTimeMillis(),
-					(1000.0 * next.packet.getPacketSizeBits())
-							/ (System.currentTimeMillis() - this.lastPacketSent + 1));
+			DataCaptureToolHelper.addData(getDataCollectors(), this, SENT_LINE_NAME, currentTimeMillis(),
+					(1000.0 * 8 * size) / (currentTimeMillis() - this.lastPacketSent + 1));
 			
 			
 
-			lastPacketSent = System.currentTimeMillis();
+			lastPacketSent = currentTimeMillis();
+
+		}
+
+	}
+
+	@Override
+	public void start(EventSimulator sim) {
+		super.start(sim);
+
+		// Each port runs wherever its end runs, which may be a different
+		// partition of a parallel simulation
+		port1 = new Port(1, end1, sim.simulatorOf(end1));
+		port2 = new Port(2, end2, sim.simulatorOf(end2));
+
+		setupDataCollectors();
+	}
+
+	/*
+	 * The link itself never gets events, they all go to its ports
+	 */
+	@Override
+	public void handleEvent(Event e) {
+		throw new NetworkException("Link events should go to its ports: " + e);
+	}
+
+	/*
+	 * Event driven transmission. A TRANSMIT event starts sending the next
+	 * packet of a port once the transmitter is free and the other end's signal
+	 * has died down. The start of the signal reaches the other end a
+	 * propagation delay later (SIGNAL), and the packet is delivered once its
+	 * last bit has arrived (DELIVER).
+	 * 
+	 * Only SIGNAL crosses from one port to the other, and always a full
+	 * propagation delay ahead, which is what lets a parallel simulation run
+	 * the two ends in different partitions.
+	 */
+	private void handlePortEvent(Port port, Event e) {
+		EventSimulator sim = port.sim;
+		long now = sim.now();
+		long nowMillis = TimeUnit.NANOSECONDS.toMillis(now);
+
+		switch (e.getType()) {
+		case TRANSMIT:
+			port.transmitScheduled = false;
+
+			// Still busy, or we found out about an incoming signal since this
+			// was scheduled
+			if (port.earliestTransmit() > now) {
+				port.scheduleTransmit();
+				return;
+			}
+
+			Packet p = port.poll(now, nowMillis);
+			if (p == null)
+				return;
 
+			DataCaptureToolHelper.addData(getDataCollectors(), this, BUFFER_LINE_NAME, nowMillis,
+					port1.bufferUsed + port2.bufferUsed);
+			DataCaptureToolHelper.addData(getDataCollectors(), this, SOJOURN_LINE_NAME, nowMillis,
+					(now - port.queue.lastArrival()) / 1000000.0);
+
+			port.transmitterFree = now + port.holdTime(p);
+			sim.scheduleAt(now + TimeUnit.MILLISECONDS.toNanos(propagationDelay), port.opposite(), SIGNAL, p, null,
+					0);
+
+			// kilobits per millisecond = megabits per second
+			DataCaptureToolHelper.addData(getDataCollectors(), this, SENT_LINE_NAME, nowMillis,
+					(1000.0 * p.getPacketSizeBits()) / (nowMillis - port.lastPacketSent + 1));
+			port.lastPacketSent = nowMillis;
+
+			port.scheduleTransmit();
+			break;
+		case SIGNAL:
+			// The port at the receiving end can't send until the signal passes
+			long end = now + getTransmissionTime(e.getPacket());
+			port.carrierUntil = Math.max(port.carrierUntil, end);
+			sim.scheduleAt(end, port, DELIVER, e.getPacket(), null, 0);
+			break;
+		case DELIVER:
+			port.end.offerPacket(e.getPacket(), this);
+			break;
+		default:
+			throw new NetworkException("Unknown event type for link: " + e);
 		}
+	}
+
+	private void setupDataCollectors() {
+		// Initialize data capture tools
+		for (DataCaptureTool dc : getDataCollectors()) {
+
+			dc.addData(this, DROPPED_LINE_NAME, currentTimeMillis(), 0);
+			dc.addData(this, BUFFER_LINE_NAME, currentTimeMillis(), threadedBufferUsed());
+			dc.setMax(this, SENT_LINE_NAME, this.capacity);
+			dc.setMax(this, DROPPED_LINE_NAME, 1);
+			dc.setMax(this, BUFFER_LINE_NAME, bufferSize);
 
+			dc.setDataSmoothingRange(this, SENT_LINE_NAME, DATA_HIST_SIZE);
+			dc.setDataSmoothingRange(this, DROPPED_LINE_NAME, DATA_HIST_SIZE);
+		}
+	}
+
+	/*
+	 * Time for all of a packet's bits to be put on the link, in nanoseconds
+	 */
+	private long getTransmissionTime(Packet p) {
+		return (p.getPacketSizeBits() * 1000000000L) / capacity;
 	}
 
 	/*
@@ -202,37 +656,130 @@ public class Link extends NetworkComponent {
 	@Override
 	public void offerPacket(Packet p, NetworkComponent n) {
 
-		// keeps packet if the buffer is not full, but drops a small percentage
-		if ((bufferUsed + p.getPacketSize() <= bufferSize) && (Math.random() >= DROPPED_FRACTION)) {
-
-			if ((NetworkSimulator.PRINT_ROUTING && p.isRouting()) && NetworkSimulator.PRINT_LINK_PACKETS
-					|| (!p.isRouting() && NetworkSimulator.PRINT_LINK_PACKETS))
-				System.out.println(getComponentName() + "\t successfully received packet p: " + p + "\t from "
-						+ n.getComponentName());
-			// Add the packet to the queue, with the delay as specified
-			queue.add(new Sendable(System.currentTimeMillis() + propagationDelay, p, end1.equals(n) ? end2 : end1));
-			synchronized (bufferUsed) {
-				bufferUsed += p.getPacketSize();
-				DataCaptureToolHelper.addData(getDataCollectors(), this, BUFFER_LINE_NAME, System.currentTimeMillis(),
-						bufferUsed);
+		// When event driven the buffer belongs to the end offering the packet
+		Port port = isEventDriven() ? (n == end1 ? port1 : port2) : null;
+		long nowMillis = port != null ? TimeUnit.NANOSECONDS.toMillis(port.sim.now()) : currentTimeMillis();
+		RandomStream random = n == end1 ? random1 : random2;
+		long size = p.getPacketSize();
+
+		// Data too big for the link never gets on it
+		boolean fits = p.getType() != Packet.Type.DATA || size <= mtu;
+
+		if (port == null) {
+			offerThreaded(p, n, fits, random, nowMillis);
+			return;
+		}
+
+		if (fits && (port.bufferUsed + port.fluidQueue + size > bufferSize
+				|| port.discipline.dropOnEnqueue(p, port.bufferUsed, port.sim.now(), random))) {
+			disciplineDrop(p, n, port, nowMillis);
+			return;
+		}
+
+		// keeps packet if it fits, but drops a small percentage
+		if (fits && (random.nextDouble() >= DROPPED_FRACTION)) {
+			if (!port.queue.offer(p, port.sim.now())) {
+				// No room left for its flow
+				disciplineDrop(p, n, port, nowMillis);
+				return;
 			}
+			printReceived(p, n);
+
+			port.noteQueue(port.sim.now());
+			port.bufferUsed += size;
+			port.offeredBytes += size;
+			// A compact queue keeps a copy
+			if (compactQueues)
+				p.release();
+			DataCaptureToolHelper.addData(getDataCollectors(), this, BUFFER_LINE_NAME, nowMillis,
+					port1.bufferUsed + port2.bufferUsed);
+			port.scheduleTransmit();
 		} else {
-			DataCaptureToolHelper.addData(getDataCollectors(), this, DROPPED_LINE_NAME,
-					System.currentTimeMillis() - (System.currentTimeMillis() - this.lastPacketDropped) / 2,
-					1.0 / (System.currentTimeMillis() - this.lastPacketDropped + 1));
+			drop(p, n, port, nowMillis);
+		}
+	}
+
+	/*
+	 * Offer a packet to the threaded queue. Room in the buffer is claimed
+	 * before the packet is queued, so ends offering at once cannot both get
+	 * the last of it.
+	 */
+	private void offerThreaded(Packet p, NetworkComponent n, boolean fits, RandomStream random, long nowMillis) {
+		Channel c = n == end1 ? channel1 : channel2;
+		long size = p.getPacketSize();
+		if (!fits || !c.claimBuffer(size)) {
+			drop(p, n, null, nowMillis);
+			return;
+		}
+
+		// drops a small percentage
+		if (random.nextDouble() < DROPPED_FRACTION) {
+			c.bufferUsed.addAndGet(-size);
+			drop(p, n, null, nowMillis);
+			return;
+		}
 
-			lastPacketDropped = System.currentTimeMillis();
+		printReceived(p, n);
 
-			if ((NetworkSimulator.PRINT_ROUTING && p.isRouting() && NetworkSimulator.PRINT_LINK_PACKETS)
-					|| (!p.isRouting() && NetworkSimulator.PRINT_LINK_PACKETS))
-				System.out.println(
-						getComponentName() + "\t is dropping packet p: " + p + "\t from " + n.getComponentName());
+		// Add the packet to the queue, with the delay as specified. Once
+		// queued it may be sent and released at any time.
+		if (!c.queue.offer(getClock().nanoTime() + TimeUnit.MILLISECONDS.toNanos(propagationDelay), p,
+				end1.equals(n) ? end2 : end1)) {
+			c.bufferUsed.addAndGet(-size);
+			drop(p, n, null, nowMillis);
+			return;
 		}
+		DataCaptureToolHelper.addData(getDataCollectors(), this, BUFFER_LINE_NAME, nowMillis, threadedBufferUsed());
+	}
+
+	/*
+	 * Bytes in the threaded buffers of both directions
+	 */
+	private long threadedBufferUsed() {
+		long used = channel1.bufferUsed();
+		return channel2 == channel1 ? used : used + channel2.bufferUsed();
+	}
+
+	private void drop(Packet p, NetworkComponent n, Port port, long nowMillis) {
+		long lastDropped = port != null ? port.lastPacketDropped : this.lastPacketDropped;
+		DataCaptureToolHelper.addData(getDataCollectors(), this, DROPPED_LINE_NAME,
+				nowMillis - (nowMillis - lastDropped) / 2, 1.0 / (nowMillis - lastDropped + 1));
+
+		if (port != null)
+			port.lastPacketDropped = nowMillis;
+		else
+			lastPacketDropped = nowMillis;
+
+		if ((NetworkSimulator.PRINT_ROUTING && p.isRouting() && NetworkSimulator.PRINT_LINK_PACKETS)
+				|| (!p.isRouting() && NetworkSimulator.PRINT_LINK_PACKETS))
+			System.out.println(
+					getComponentName() + "\t is dropping packet p: " + p + "\t from " + n.getComponentName());
+
+		p.release();
+	}
+
+	/*
+	 * Drop a packet because of the queue discipline or a full buffer
+	 */
+	private void disciplineDrop(Packet p, NetworkComponent n, Port port, long nowMillis) {
+		port.disciplineDrops++;
+		DataCaptureToolHelper.addData(getDataCollectors(), this, disciplineLineName, nowMillis,
+				port1.disciplineDrops + port2.disciplineDrops);
+		drop(p, n, port, nowMillis);
+	}
+
+	private void printReceived(Packet p, NetworkComponent n) {
+		if ((NetworkSimulator.PRINT_ROUTING && p.isRouting()) && NetworkSimulator.PRINT_LINK_PACKETS
+				|| (!p.isRouting() && NetworkSimulator.PRINT_LINK_PACKETS))
+			System.out.println(getComponentName() + "\t successfully received packet p: " + p + "\t from "
+					+ n.getComponentName());
 	}
 
 	@Override
 	public boolean finished() {
-		return queue.isEmpty();
+		if (isEventDriven())
+			return port1.queue.isEmpty() && port2.queue.isEmpty();
+		return channel1.queue.isEmpty() && channel2.queue.isEmpty();
 	}
 
 	@Override
@@ -253,10 +800,334 @@ public class Link extends NetworkComponent {
 	 * @return A double value from 0 to 1
 	 */
 	public double getBufferFill() {
-		if (bufferUsed < 0) {
+		long used = isEventDriven() ? port1.bufferUsed + port2.bufferUsed : threadedBufferUsed();
+		long size = isEventDriven() || duplex ? 2 * bufferSize : bufferSize;
+		if (used < 0) {
+			throw new NetworkException("Buffer used is negative???");
+		}
+		return ((double) used) / size;
+	}
+
+	/**
+	 * Get the percentage filled of the buffer a given end sends into. This is
+	 * the whole buffer unless event driven or full duplex, when each end has
+	 * its own.
+	 * 
+	 * @param n
+	 *            One of the ends of this link
+	 * @return A double value from 0 to 1
+	 */
+	public double getBufferFill(NetworkComponent n) {
+		if (!isEventDriven()) {
+			if (!duplex)
+				return getBufferFill();
+			return ((double) (n == end1 ? channel1 : channel2).bufferUsed()) / bufferSize;
+		}
+
+		Port port = n == end1 ? port1 : port2;
+		if (port.bufferUsed < 0) {
 			throw new NetworkException("Buffer used is negative???");
 		}
-		return ((double) bufferUsed) / bufferSize;
+		return ((double) port.bufferUsed) / bufferSize;
+	}
+
+	/**
+	 * Get the mean number of bytes waiting in the buffers of both ends since
+	 * the simulation started, weighted by how long they waited. Only known
+	 * when event driven, or once a fluid simulation has worked it out.
+	 * 
+	 * @return The mean in bytes
+	 */
+	public double getMeanBufferUsed() {
+		if (fluidMeanBufferUsed >= 0)
+			return fluidMeanBufferUsed;
+		if (!isEventDriven())
+			throw new NetworkException("Buffers are only measured when event driven");
+
+		long end = Math.max(port1.sim.now(), port2.sim.now());
+		return end > 0 ? (port1.queueArea(end) + port2.queueArea(end)) / end : 0;
+	}
+
+	/**
+	 * Have background fluid share an end's buffer and capacity with the
+	 * packets it sends, until set again
+	 * 
+	 * @param first
+	 *            Whether it is the end at end1
+	 * @param queue
+	 *            Bytes of fluid in its buffer
+	 * @param service
+	 *            Bytes a second of fluid it sends
+	 */
+	void setBackground(boolean first, double queue, double service) {
+		Port port = first ? port1 : port2;
+		port.fluidQueue = queue;
+		port.fluidService = service;
+	}
+
+	/**
+	 * @return the bytes of packets an end has queued since last asked
+	 */
+	long takeOfferedBytes(boolean first) {
+		Port port = first ? port1 : port2;
+		long bytes = port.offeredBytes;
+		port.offeredBytes = 0;
+		return bytes;
+	}
+
+	/**
+	 * @return the bytes of packets in an end's buffer
+	 */
+	long getPacketBytesQueued(boolean first) {
+		return (first ? port1 : port2).bufferUsed;
+	}
+
+	/**
+	 * Record the mean bytes in the buffers worked out by a fluid simulation
+	 */
+	void setFluidMeanBufferUsed(double bytes) {
+		this.fluidMeanBufferUsed = bytes;
+	}
+
+	/**
+	 * The sending side of one end of the link, used when event driven
+	 */
+	private class Port implements EventHandler, StateSaving {
+
+		public final int index;
+
+		/**
+		 * The end which sends through this port, and receives the other
+		 * port's packets
+		 */
+		public final NetworkComponent end;
+
+		/**
+		 * The simulator running this port's end
+		 */
+		public final EventSimulator sim;
+
+		public final PacketScheduler queue;
+		public long bufferUsed;
+
+		public final QueueDiscipline discipline;
+
+		/**
+		 * Packets dropped by the discipline or for want of room
+		 */
+		public long disciplineDrops;
+
+		// Bytes queued times how long they were queued, up to when the
+		// buffer last changed
+		private double queueArea;
+		private long queueChanged;
+
+		// Background fluid in the buffer, in bytes, and sent, in bytes a
+		// second, and bytes of packets queued since the fluid last looked
+		public double fluidQueue, fluidService;
+		public long offeredBytes;
+
+		/**
+		 * Simulated time (in ns) the packet currently being sent is done
+		 */
+		public long transmitterFree;
+
+		/**
+		 * Simulated time (in ns) until which the other end's signal can be
+		 * heard at this end
+		 */
+		public long carrierUntil;
+
+		public boolean transmitScheduled;
+
+		// For graphing the link and drop rates
+		public long lastPacketSent, lastPacketDropped;
+
+		public Port(int index, NetworkComponent end, EventSimulator sim) {
+			this.index = index;
+			this.end = end;
+			this.sim = sim;
+			this.queue = PacketScheduler.forName(scheduler, Link.this);
+			bufferUsed = 0;
+			discipline = QueueDiscipline.forName(queueDiscipline, bufferSize);
+			disciplineDrops = 0;
+			queueArea = 0;
+			queueChanged = 0;
+			fluidQueue = 0;
+			fluidService = 0;
+			offeredBytes = 0;
+			transmitterFree = 0;
+			carrierUntil = 0;
+			transmitScheduled = false;
+			lastPacketSent = 0;
+			lastPacketDropped = 0;
+
+			sim.register(this);
+		}
+
+		@Override
+		public void handleEvent(Event e) {
+			handlePortEvent(this, e);
+		}
+
+		/**
+		 * Take the next packet to send, dropping any the discipline says to
+		 * 
+		 * @return The packet, or null if there are none left
+		 */
+		public Packet poll(long now, long nowMillis) {
+			while (true) {
+				Packet p = queue.poll();
+				if (p == null)
+					return null;
+
+				noteQueue(now);
+				bufferUsed -= p.getPacketSize();
+				if (!discipline.dropOnDequeue(p, now - queue.lastArrival(), bufferUsed, now))
+					return p;
+				disciplineDrop(p, end, this, nowMillis);
+			}
+		}
+
+		/**
+		 * How long sending a packet keeps the transmitter busy. With no
+		 * background fluid this is its transmission time. Otherwise the fluid
+		 * is sent in between the packets at the rate the fluid simulation
+		 * worked out, which shares the capacity first in, first out, and the
+		 * packets get what is left, so the two add up to the capacity.
+		 */
+		public long holdTime(Packet p) {
+			long time = getTransmissionTime(p);
+			double fluid = fluidService;
+			// The other end's fluid takes its turns too unless full duplex
+			if (!duplex)
+				fluid += opposite().fluidService;
+			if (fluid == 0)
+				return time;
+
+			double share = 1 - fluid / (capacity / 8.0);
+			return (long) (time / Math.max(share, MIN_PACKET_SHARE));
+		}
+
+		/**
+		 * Add up the bytes queued until now, before the buffer changes
+		 */
+		public void noteQueue(long now) {
+			queueArea += (double) bufferUsed * (now - queueChanged);
+			queueChanged = now;
+		}
+
+		/**
+		 * @return bytes queued times how long they were queued, up to the
+		 *         given time
+		 */
+		public double queueArea(long end) {
+			return queueArea + (double) bufferUsed * (end - queueChanged);
+		}
+
+		@Override
+		public Object saveState() {
+			return new Object[] { queue.saveState(),
+					new long[] { bufferUsed, transmitterFree, carrierUntil, lastPacketSent, lastPacketDropped,
+							disciplineDrops, queueChanged },
+					transmitScheduled, random().saveState(), discipline.saveState(), queueArea };
+		}
+
+		@Override
+		public void restoreState(Object state) {
+			Object[] saved = (Object[]) state;
+			queue.restoreState(saved[0]);
+
+			long[] fields = (long[]) saved[1];
+			bufferUsed = fields[0];
+			transmitterFree = fields[1];
+			carrierUntil = fields[2];
+			lastPacketSent = fields[3];
+			lastPacketDropped = fields[4];
+			disciplineDrops = fields[5];
+			queueChanged = fields[6];
+
+			transmitScheduled = (Boolean) saved[2];
+			random().restoreState(saved[3]);
+			discipline.restoreState(saved[4]);
+			queueArea = (Double) saved[5];
+		}
+
+		/**
+		 * @return the random numbers used for packets this port's end offers
+		 */
+		public RandomStream random() {
+			return this == port1 ? random1 : random2;
+		}
+
+		public Port opposite() {
+			return this == port1 ? port2 : port1;
+		}
+
+		public long earliestTransmit() {
+			// Full duplex ends do not mind hearing each other
+			return duplex ? transmitterFree : Math.max(transmitterFree, carrierUntil);
+		}
+
+		/**
+		 * Make sure a TRANSMIT event is pending if there is anything to send
+		 */
+		public void scheduleTransmit() {
+			if (transmitScheduled || queue.isEmpty())
+				return;
+
+			transmitScheduled = true;
+			sim.scheduleAt(Math.max(sim.now(), earliestTransmit()), this, TRANSMIT, null, null, 0);
+		}
+
+		@Override
+		public String toString() {
+			return Link.this.getComponentName() + "." + index;
+		}
+	}
+
+	/**
+	 * The queue and buffer of one or both directions, used when threaded
+	 */
+	private class Channel {
+
+		public final SendableRing queue;
+		public final AtomicLong bufferUsed;
+
+		/**
+		 * Where the thread sending this channel's packets puts each one it
+		 * takes from the queue
+		 */
+		public final Sendable next;
+
+		public Channel() {
+			// Holds as many of the smallest packets as fit in the buffer, so
+			// it only fills up when the buffer does. Rings have a most slots
+			// they may have, so a buffer with room for more tiny packets than
+			// that can have its ring fill first, which drops the packet as a
+			// full buffer would: its bytes are given back and the drop is
+			// graphed like any other.
+			queue = new SendableRing(bufferSize / smallestPacket + 1);
+			bufferUsed = new AtomicLong();
+			next = new Sendable();
+		}
+
+		public long bufferUsed() {
+			return bufferUsed.get();
+		}
+
+		/**
+		 * Take room in the buffer if there is enough
+		 */
+		public boolean claimBuffer(long size) {
+			while (true) {
+				long used = bufferUsed.get();
+				if (used + size > bufferSize)
+					return false;
+				if (bufferUsed.compareAndSet(used, used + size))
+					return true;
+			}
+		}
 	}
 
 	/**
@@ -265,10 +1136,10 @@ public class Link extends NetworkComponent {
 	 * @author Francesco
 	 *
 	 */
-	private class Sendable {
+	static class Sendable {
 
 		/**
-		 * A system time (in ms) that this packet cannot be sent earlier than
+		 * A clock time (in ns) that this packet cannot be sent earlier than
 		 */
 		public long sendNET;
 
@@ -281,23 +1152,6 @@ public class Link extends NetworkComponent {
 		 * The end to send it to
 		 */
 		public NetworkComponent to;
-
-		/**
-		 * Creates a new Sendable with the given information
-		 * 
-		 * @param sendNET
-		 *            The time which is the absolute easrliest the packet can
-		 *            arrive
-		 * @param packet
-		 *            The packet to send
-		 * @param to
-		 *            Who to send it to
-		 */
-		public Sendable(long sendNET, Packet packet, NetworkComponent to) {
-			this.sendNET = sendNET;
-			this.packet = packet;
-			this.to = to;
-		}
 	}
 
 }
@@ -5,14 +5,22 @@ package edu.caltech.networksimulator;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import edu.caltech.networksimulator.clock.RealTimeClock;
+import edu.caltech.networksimulator.clock.SimClock;
 import edu.caltech.networksimulator.datacapture.DataCaptureTool;
+import edu.caltech.networksimulator.engine.EventHandler;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.random.RandomStream;
+import edu.caltech.networksimulator.random.RandomStreams;
 
 /**
  * @authors Francesco, Carly
  *
  */
-public abstract class NetworkComponent implements Runnable, Comparable<NetworkComponent> {
+public abstract class NetworkComponent implements Runnable, EventHandler, Comparable<NetworkComponent> {
 	
 	/**
 	 * Used to differentiate between hosts and network components which switch between multiple components
@@ -24,13 +32,20 @@ public abstract class NetworkComponent implements Runnable, Comparable<NetworkCo
 	}
 	
 	private String name;
-	private boolean stop;
+	private volatile boolean stop;
 	private List<DataCaptureTool> dataCollectors;
+	private EventSimulator eventSimulator;
+	private SimClock clock;
+	private volatile Thread runner;
+	private RandomStream random;
+	private volatile Runnable completionListener;
 
 	public NetworkComponent(String name){
 		this.name = name;
 		stop = false;
 		dataCollectors = new ArrayList<>();
+		clock = new RealTimeClock();
+		random = new RandomStreams(0).streamFor(name);
 	}
 	
 	/**
@@ -56,6 +71,138 @@ public abstract class NetworkComponent implements Runnable, Comparable<NetworkCo
 	 */
 	public abstract boolean finished();
 	
+	/**
+	 * Start this component under a discrete event simulator instead of
+	 * running it on its own thread. Implementations should call this, then
+	 * schedule whatever initial events they need; afterwards all their work is
+	 * done in handleEvent and offerPacket.
+	 * 
+	 * @param sim
+	 *            The simulator this component runs under
+	 */
+	public void start(EventSimulator sim) {
+		this.eventSimulator = sim;
+		sim.register(this);
+		setClock(sim.getClock());
+	}
+
+	/**
+	 * Get the event simulator this component was started under
+	 * 
+	 * @return The simulator, or null if this component runs on its own thread
+	 */
+	protected EventSimulator getEventSimulator() {
+		return eventSimulator;
+	}
+
+	/**
+	 * Return whether this component was started under an event simulator
+	 * @return
+	 */
+	protected boolean isEventDriven() {
+		return eventSimulator != null;
+	}
+
+	/**
+	 * Set the clock this component takes all its timestamps from. Components
+	 * in the same simulation should share a clock.
+	 * 
+	 * @param clock
+	 *            A non-null clock
+	 */
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Get the clock this component takes all its timestamps from
+	 * 
+	 * @return The clock
+	 */
+	public SimClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Set where this component takes its random numbers from. Every component
+	 * has its own stream, so drawing numbers never contends with other
+	 * components, and runs with the same seed are the same.
+	 * 
+	 * @param random
+	 *            A non-null stream, only used by this component
+	 */
+	public void setRandom(RandomStream random) {
+		this.random = random;
+	}
+
+	/**
+	 * Get where this component takes its random numbers from
+	 * 
+	 * @return The stream
+	 */
+	public RandomStream getRandom() {
+		return random;
+	}
+
+	/**
+	 * Get the current time of this component's clock in milliseconds, which is
+	 * the resolution data capture tools work in.
+	 * 
+	 * @return The time in milliseconds
+	 */
+	protected long currentTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+	}
+
+	/**
+	 * Block the thread running this component until wakeUp() is called, or
+	 * for at most the given amount of clock time. Threaded components use
+	 * this to wait for work instead of polling, so that idle components park
+	 * rather than spin. May return early, so callers should re-check what
+	 * they are waiting for.
+	 * 
+	 * @param nanos
+	 *            The longest time to wait, in nanoseconds of the clock
+	 */
+	protected void await(long nanos) {
+		runner = Thread.currentThread();
+		if (nanos > 0)
+			clock.park(nanos);
+	}
+
+	/**
+	 * Wake the thread running this component if it is waiting in await().
+	 * If it is not waiting, its next await() returns immediately. Does nothing
+	 * when event driven.
+	 */
+	public void wakeUp() {
+		Thread t = runner;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/**
+	 * Set what to call when this component may have just finished
+	 * 
+	 * @param listener
+	 *            Called on whichever thread the component finishes on, may be
+	 *            null
+	 */
+	public void setCompletionListener(Runnable listener) {
+		this.completionListener = listener;
+	}
+
+	/**
+	 * Tell the simulation that finished() may have just become true, so that
+	 * it checks whether everything is done right away rather than at its next
+	 * regular check. Should be cheap enough to call often.
+	 */
+	protected void signalCompletion() {
+		Runnable listener = completionListener;
+		if (listener != null)
+			listener.run();
+	}
+
 	/**
 	 * Cause this component to gracefully stop
 	 */
@@ -4,36 +4,168 @@
 package edu.caltech.networksimulator;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.caltech.networksimulator.clock.RealTimeClock;
+import edu.caltech.networksimulator.clock.ScaledClock;
+import edu.caltech.networksimulator.clock.SimClock;
+import edu.caltech.networksimulator.clock.VirtualClock;
 import edu.caltech.networksimulator.datacapture.DataCaptureTool;
+import edu.caltech.networksimulator.engine.EventScheduler;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.engine.OptimisticEventSimulator;
+import edu.caltech.networksimulator.engine.ParallelEventSimulator;
+import edu.caltech.networksimulator.engine.Snapshot;
+import edu.caltech.networksimulator.random.RandomStreams;
 
 /**
  * @author Francesco, Carly
  *
  */
 public class NetworkSimulator implements Runnable {
-	
+
+	/**
+	 * How the components of a simulation are run
+	 */
+	public static enum ExecutionMode {
+		/**
+		 * Every component runs on its own thread in real time
+		 */
+		THREADED,
+
+		/**
+		 * Every component runs on its own virtual thread, multiplexed onto a
+		 * small pool of carrier threads. Falls back to platform threads with
+		 * small stacks where virtual threads are not available.
+		 */
+		VIRTUAL_THREADS,
+
+		/**
+		 * Components are driven by a discrete event simulator on a simulated
+		 * clock, as fast as possible
+		 */
+		DISCRETE_EVENT,
+
+		/**
+		 * Like DISCRETE_EVENT, but the network is split into partitions which
+		 * are simulated on several threads. Gives the same results as
+		 * DISCRETE_EVENT.
+		 */
+		PARALLEL_EVENT,
+
+		/**
+		 * Like PARALLEL_EVENT, but partitions run ahead of each other and
+		 * roll back when they got something wrong. Better than PARALLEL_EVENT
+		 * when link delays are tiny, and also gives the same results as
+		 * DISCRETE_EVENT.
+		 */
+		OPTIMISTIC_EVENT,
+
+		/**
+		 * No packets are sent: flows are rates and link buffers are queues
+		 * of fluid, moved on in small steps of simulated time. Much faster
+		 * than sending packets, but only roughly right: throughput can be
+		 * more than double and loss a hundredth of what packets give.
+		 */
+		FLUID;
+	}
+
+	// Stack size of platform threads standing in for virtual threads
+	private static final long COMPACT_STACK_SIZE = 256 * 1024;
+
+	// How often an event driven simulation checks whether it is done, in
+	// simulated millis
+	private static final long FINISHED_CHECK_INTERVAL = 100;
+
+	// Components signal when they may have finished, but a threaded
+	// simulation also checks this often in case one was missed, in clock
+	// millis
+	private static final long FINISHED_CHECK_FALLBACK = 1000;
+
+	// How long to wait for each component thread to exit when stopping, in
+	// real millis
+	private static final long JOIN_TIMEOUT = 5000;
+	
 	public static boolean PRINT_ROUTING = false;
 	
 	// Print packets at each destination?
 	public static boolean PRINT_LINK_PACKETS = false;
 	public static boolean PRINT_ROUTER_PACKETS = false;
 	public static boolean PRINT_HOST_PACKETS = false;
-	
-	public static boolean PRINT_FLOW_STUFF = false;
+	
+	public static boolean PRINT_FLOW_STUFF = false;
+	
+	// Print how many packets each run made and reused?
+	public static boolean PRINT_PACKET_POOL = false;
 
 	private ArrayList<NetworkComponent> networkComponents;
 
-	private boolean forceStop;
+	private volatile boolean forceStop;
+
+	// The thread waiting for threaded components to finish, woken by stop()
+	private volatile Thread runner;
 
 	private InputListener inputListener;
 
 	private List<DataCaptureTool> dataCollectors;
 
+	private ExecutionMode mode;
+
+	private SimClock clock;
+
+	private boolean warnedNoVirtualThreads;
+
+	private int partitions;
+
+	private EventScheduler.Type scheduler;
+
+	private long eventsProcessed;
+	private long packetAllocations, packetReuses;
+
+	// Gives each component its random stream as it is added
+	private RandomStreams streams;
+
+	private long flowStartJitter;
+
+	// How far each step of a fluid simulation moves on, in nanoseconds
+	private long fluidStep;
+
+	// Limits on how long a run may take, in simulated and real millis
+	private long simulatedTimeBudget;
+	private long wallTimeBudget;
+
+	// When to save the simulation and where to, the saved simulation, and
+	// the one to restore and what to change after restoring it
+	private long snapshotTime;
+	private File snapshotFile;
+	private Snapshot snapshot;
+	private Snapshot restoreFrom;
+	private Runnable afterRestore;
+
+	private boolean compactPackets;
+
+	private boolean fullDuplex;
+
+	// Queue discipline for every link, or null to leave them as set up
+	private String queueDiscipline;
+
+	// Packet scheduler for every link, or null to leave them as set up
+	private String linkScheduler;
+
+	// How many flows have been added, which numbers them
+	private int flowCount;
+
 	/**
 	 * 
 	 */
@@ -44,15 +176,332 @@ public class NetworkSimulator implements Runnable {
 		inputListener = new InputListener();
 		
 		dataCollectors = new ArrayList<DataCaptureTool>();
+
+		mode = ExecutionMode.THREADED;
+		clock = new RealTimeClock();
+		partitions = Runtime.getRuntime().availableProcessors();
+		scheduler = EventSimulator.DEFAULT_SCHEDULER;
+		eventsProcessed = 0;
+		packetAllocations = 0;
+		packetReuses = 0;
+		streams = new RandomStreams(0);
+		flowStartJitter = 0;
+		fluidStep = TimeUnit.MILLISECONDS.toNanos(1);
+		simulatedTimeBudget = Long.MAX_VALUE;
+		wallTimeBudget = Long.MAX_VALUE;
+		snapshotTime = -1;
+		snapshotFile = null;
+		snapshot = null;
+		restoreFrom = null;
+		afterRestore = null;
+		compactPackets = false;
+		fullDuplex = false;
+		queueDiscipline = null;
+		linkScheduler = null;
+		flowCount = 0;
 		
 	}
+
+	/**
+	 * Set how the components of this simulation will be run. Must be called
+	 * before run().
+	 * 
+	 * @param mode
+	 *            The execution mode
+	 */
+	public void setExecutionMode(ExecutionMode mode) {
+		this.mode = mode;
+	}
 	
+	/**
+	 * Set how many threads a parallel event driven simulation is split over.
+	 * Defaults to the number of processors.
+	 * 
+	 * @param partitions
+	 *            The number of partitions, at least 1
+	 */
+	public void setPartitions(int partitions) {
+		if (partitions < 1)
+			throw new IllegalArgumentException("Need at least one partition");
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Set what kind of scheduler an event driven simulation keeps its pending
+	 * events in. This only changes how fast the simulation runs, never its
+	 * results.
+	 * 
+	 * @param scheduler
+	 *            The scheduler type
+	 */
+	public void setScheduler(EventScheduler.Type scheduler) {
+		this.scheduler = scheduler;
+	}
+	
+	/**
+	 * @return the number of events an event driven simulation processed, once
+	 *         it has run
+	 */
+	public long getEventsProcessed() {
+		return eventsProcessed;
+	}
+
+	/**
+	 * @return the number of packets made with new while the simulation ran.
+	 *         Packets are counted for every simulation in the JVM, so this is
+	 *         only roughly right if several run at once.
+	 */
+	public long getPacketAllocations() {
+		return packetAllocations;
+	}
+
+	/**
+	 * @return the number of times a released packet was reused while the
+	 *         simulation ran, counted like getPacketAllocations()
+	 */
+	public long getPacketReuses() {
+		return packetReuses;
+	}
+
+	/**
+	 * Seed the random numbers of this simulation. Runs with the same seed are
+	 * the same; the seed is zero unless set. Must be called before any
+	 * components are added.
+	 * 
+	 * @param seed
+	 *            The seed
+	 */
+	public void setSeed(long seed) {
+		if (!networkComponents.isEmpty())
+			throw new IllegalArgumentException("Cannot seed the simulation after adding network components!");
+		streams = new RandomStreams(seed);
+	}
+
+	/**
+	 * Set how far each step of a FLUID simulation, or of the background flows
+	 * of a DISCRETE_EVENT one, moves on. Shorter steps
+	 * are closer to right but take longer. Steps should be well under the
+	 * shortest round trip time.
+	 * 
+	 * @param nanos
+	 *            The step in simulated nanoseconds, one millisecond unless
+	 *            set
+	 */
+	public void setFluidStep(long nanos) {
+		if (nanos <= 0)
+			throw new IllegalArgumentException("Fluid steps must take some time");
+		this.fluidStep = nanos;
+	}
+
+	/**
+	 * Have every flow start up to the given time later than its start delay,
+	 * chosen at random. Independent replications of a scenario use this so
+	 * that they do not all run in lockstep.
+	 * 
+	 * @param millis
+	 *            The largest extra delay in milliseconds, zero for none
+	 */
+	public void setFlowStartJitter(long millis) {
+		this.flowStartJitter = millis;
+	}
+
+	/**
+	 * Stop the simulation once it has simulated the given time, even if not
+	 * everything is finished
+	 * 
+	 * @param millis
+	 *            The time in simulated milliseconds
+	 */
+	public void setSimulatedTimeBudget(long millis) {
+		this.simulatedTimeBudget = millis;
+	}
+
+	/**
+	 * Stop the simulation once it has run for the given time, even if not
+	 * everything is finished
+	 * 
+	 * @param millis
+	 *            The time in real milliseconds
+	 */
+	public void setWallTimeBudget(long millis) {
+		this.wallTimeBudget = millis;
+	}
+
+	/**
+	 * Save the whole simulation once it has simulated the given time, and
+	 * carry on running. The snapshot is kept for getSnapshot(), and written
+	 * to a file if one is given. Only DISCRETE_EVENT simulations can be
+	 * saved.
+	 * 
+	 * @param millis
+	 *            The time in simulated milliseconds, which is rounded up to the
+	 *            next time the simulation checks whether it is done
+	 * @param file
+	 *            Where to save the simulation, or null to only keep it in
+	 *            memory
+	 */
+	public void setSnapshot(long millis, File file) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Cannot save a simulation before it starts");
+		this.snapshotTime = millis;
+		this.snapshotFile = file;
+	}
+
+	/**
+	 * @return the snapshot asked for by setSnapshot(), or null if the run has
+	 *         not got that far
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Start the simulation from a file saved by setSnapshot() instead of from
+	 * the beginning. The network must be set up exactly as it was in the
+	 * simulation which was saved, and the execution mode must be
+	 * DISCRETE_EVENT. The run then continues as the saved one did.
+	 * 
+	 * @param file
+	 *            The saved simulation
+	 */
+	public void setRestore(File file) {
+		setRestore(Snapshot.read(file));
+	}
+
+	/**
+	 * Start the simulation from a snapshot instead of from the beginning, as
+	 * setRestore(File) does
+	 * 
+	 * @param snapshot
+	 *            The saved simulation
+	 */
+	public void setRestore(Snapshot snapshot) {
+		this.restoreFrom = snapshot;
+	}
+
+	/**
+	 * Change the simulation once it has been restored, before it carries on.
+	 * Any components the action adds are started at the restored time, so
+	 * the start delay of an added flow counts from then.
+	 * 
+	 * @param action
+	 *            What to change, or null for nothing
+	 */
+	public void setAfterRestore(Runnable action) {
+		this.afterRestore = action;
+	}
+
+	/**
+	 * Keep packets waiting in link buffers in compact queues of primitive
+	 * arrays instead of as objects, which uses less than half the memory per
+	 * packet. Only event driven simulations use compact queues; results are
+	 * the same either way. Must be called before run().
+	 * 
+	 * @param compact
+	 *            Whether to use compact queues
+	 */
+	public void setCompactPackets(boolean compact) {
+		this.compactPackets = compact;
+	}
+
+	/**
+	 * Make every link full duplex, so each direction has its own buffer and
+	 * transmitter and ACKs no longer hold up data going the other way.
+	 * Otherwise links are left as they were set up. Must be called before
+	 * run().
+	 * 
+	 * @param duplex
+	 *            Whether to make every link full duplex
+	 */
+	public void setFullDuplex(boolean duplex) {
+		this.fullDuplex = duplex;
+	}
+
+	/**
+	 * Give every link buffer the same queue discipline. Otherwise links are
+	 * left as they were set up. Only event driven simulations use queue
+	 * disciplines. Must be called before run().
+	 * 
+	 * @param name
+	 *            One of DropTail, RED, CoDel or PIE, or null to leave links
+	 *            as they are
+	 */
+	public void setQueueDiscipline(String name) {
+		this.queueDiscipline = name;
+	}
+
+	/**
+	 * Give every link the same packet scheduler. Otherwise links are left as
+	 * they were set up. Only event driven simulations use schedulers. Must be
+	 * called before run().
+	 * 
+	 * @param name
+	 *            One of FIFO, DRR or SFQ, or null to leave links as they are
+	 */
+	public void setLinkScheduler(String name) {
+		this.linkScheduler = name;
+	}
+
+	/**
+	 * @return every component added to this simulation
+	 */
+	public List<NetworkComponent> getComponents() {
+		return Collections.unmodifiableList(networkComponents);
+	}
+
 	public void addDataCollector(DataCaptureTool dct) {
 		if(!networkComponents.isEmpty())
 			throw new IllegalArgumentException("Cannot add data capture tools after network components!");
 		dataCollectors.add(dct);
 	}
 
+	/**
+	 * Set the clock every component of a threaded simulation takes its
+	 * timestamps from. Event driven simulations always use the simulated
+	 * clock of their event simulator.
+	 * 
+	 * @param clock
+	 *            A non-null clock
+	 */
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+		for (NetworkComponent n : networkComponents)
+			n.setClock(clock);
+	}
+
+	/**
+	 * Set how many carrier threads virtual threads are scheduled onto. Only
+	 * has an effect before the first virtual thread in the JVM is started.
+	 * 
+	 * @param carriers
+	 *            The number of carrier threads, e.g. the number of cores
+	 */
+	public void setCarrierThreads(int carriers) {
+		System.setProperty("jdk.virtualThreadScheduler.parallelism", Integer.toString(carriers));
+	}
+
+	/**
+	 * Run a threaded simulation the given number of times faster than real
+	 * time. Every delay and every timestamp of every component is scaled, so
+	 * protocol behavior stays the same as long as thread scheduling jitter,
+	 * scaled up by the same factor, stays small compared to link delays.
+	 * 
+	 * @param speedup
+	 *            How many times faster than real time to run, e.g. 10
+	 */
+	public void setSpeedup(double speedup) {
+		setClock(new ScaledClock(speedup));
+	}
+
+	/**
+	 * Get the clock of this simulation
+	 * 
+	 * @return The clock
+	 */
+	public SimClock getClock() {
+		return clock;
+	}
+
 	/**
 	 * Add a network component to this simulation
 	 * 
@@ -62,54 +511,440 @@ public class NetworkSimulator implements Runnable {
 	public void addComponent(NetworkComponent comp) {
 		for(DataCaptureTool dct : dataCollectors)
 			comp.addDataDollector(dct);
+		comp.setClock(clock);
+		comp.setRandom(streams.streamFor(comp.getComponentName()));
+		if (comp instanceof Flow)
+			((Flow) comp).setFlowId(flowCount++);
 		networkComponents.add(comp);
 	}
 
 	@Override
 	public void run() {
+
+		if ((snapshotTime >= 0 || restoreFrom != null) && mode != ExecutionMode.DISCRETE_EVENT)
+			throw new NetworkException("Only DISCRETE_EVENT simulations can be saved and restored");
+		if (hasBackground() && mode != ExecutionMode.DISCRETE_EVENT && mode != ExecutionMode.FLUID)
+			throw new NetworkException("Background flows need a DISCRETE_EVENT or FLUID simulation");
+		if (hasBackground() && (snapshotTime >= 0 || restoreFrom != null))
+			throw new NetworkException("Simulations with background flows cannot be saved and restored");
+
+		for (NetworkComponent n : networkComponents) {
+			if (n instanceof Flow) {
+				((Flow) n).setStartJitter(TimeUnit.MILLISECONDS.toNanos(flowStartJitter));
+				negotiateMSS((Flow) n);
+			}
+			if (n instanceof Link) {
+				((Link) n).setCompactQueues(compactPackets);
+				if (fullDuplex)
+					((Link) n).setDuplex(true);
+				if (queueDiscipline != null)
+					((Link) n).setQueueDiscipline(queueDiscipline);
+				if (linkScheduler != null)
+					((Link) n).setScheduler(linkScheduler);
+			}
+		}
+		if (mode == ExecutionMode.THREADED || mode == ExecutionMode.VIRTUAL_THREADS)
+			sizeThreadedQueues();
+
+		EventSimulator events = null;
+		ParallelEventSimulator parallelEvents = null;
+		if (mode == ExecutionMode.DISCRETE_EVENT) {
+			events = new EventSimulator(scheduler);
+			clock = events.getClock();
+		} else if (mode == ExecutionMode.PARALLEL_EVENT) {
+			parallelEvents = new ParallelEventSimulator(networkComponents, partitions, scheduler);
+			clock = parallelEvents.getClock();
+		} else if (mode == ExecutionMode.OPTIMISTIC_EVENT) {
+			parallelEvents = new OptimisticEventSimulator(networkComponents, partitions, scheduler);
+			clock = parallelEvents.getClock();
+		} else if (mode == ExecutionMode.FLUID) {
+			clock = new VirtualClock();
+			for (NetworkComponent n : networkComponents)
+				n.setClock(clock);
+		}
 		
-		for(DataCaptureTool dct : dataCollectors)
+		for(DataCaptureTool dct : dataCollectors) {
+			dct.setClock(clock);
 			dct.start();
+		}
+
+		// Shared by every simulation in the JVM, so only roughly right if
+		// several run at once
+		long allocations = Packet.getAllocations();
+		long reuses = Packet.getReuses();
+
+		if (events != null)
+			runEventDriven(events);
+		else if (parallelEvents != null)
+			runParallelEventDriven(parallelEvents);
+		else if (mode == ExecutionMode.FLUID)
+			runFluid();
+		else
+			runThreaded();
+		
+		System.out.println("Stopping simulation...");
+		packetAllocations = Packet.getAllocations() - allocations;
+		packetReuses = Packet.getReuses() - reuses;
+		if (PRINT_PACKET_POOL)
+			System.out.println(packetAllocations + " packets allocated, " + packetReuses + " reused");
+
+		inputListener.stop();
+
+		for (NetworkComponent n : networkComponents)
+			n.stop();
+		
+		for(DataCaptureTool dct : dataCollectors)
+			dct.finish();
+		
+
+		System.out.println("Simulations finished");
+
+		// Complete calculations, get data and print it, etc.
+	}
+
+	/*
+	 * Let the threaded queues of every link hold as many of the smallest
+	 * packets as fit in its buffer, once segment sizes have been agreed
+	 */
+	private void sizeThreadedQueues() {
+		int smallest = Packet.Type.ACK.size();
+		for (NetworkComponent n : networkComponents) {
+			if (n instanceof Flow)
+				smallest = Math.min(smallest, ((Flow) n).getSegmentSize());
+		}
+		if (smallest == Packet.Type.ACK.size())
+			return;
+
+		for (NetworkComponent n : networkComponents) {
+			if (n instanceof Link)
+				((Link) n).setSmallestPacket(smallest);
+		}
+	}
 
+	/*
+	 * Agree a flow's segment size, once the links of the network are known
+	 */
+	private void negotiateMSS(Flow f) {
+		Host destination = null;
 		for (NetworkComponent n : networkComponents) {
-			Thread t = new Thread(n);
-			t.setName(n.getComponentName() + "Thread");
+			if (n instanceof Host && ((Host) n).getIP() == f.getDest())
+				destination = (Host) n;
+		}
+		f.negotiateMSS(pathMTU(f.getSource(), destination));
+	}
+
+	/*
+	 * The smallest MTU of any link a flow's packets may cross: the links of
+	 * both hosts, and every link between the routers the source can reach.
+	 * Routers change routes as links fill up, so any of those may carry it.
+	 */
+	private int pathMTU(Host source, Host destination) {
+		int mtu = Integer.MAX_VALUE;
+		if (destination != null && destination.getLink() != null)
+			mtu = Math.min(mtu, destination.getLink().getMTU());
+		if (source == null || source.getLink() == null)
+			return mtu;
+		Link first = source.getLink();
+		mtu = Math.min(mtu, first.getMTU());
+
+		Map<NetworkComponent, List<Link>> linksAt = new IdentityHashMap<NetworkComponent, List<Link>>();
+		for (NetworkComponent n : networkComponents) {
+			if (!(n instanceof Link))
+				continue;
+			Link l = (Link) n;
+			for (NetworkComponent end : new NetworkComponent[] { l.getEnd1(), l.getEnd2() }) {
+				if (!(end instanceof Router))
+					continue;
+				List<Link> links = linksAt.get(end);
+				if (links == null) {
+					links = new ArrayList<Link>();
+					linksAt.put(end, links);
+				}
+				links.add(l);
+			}
+		}
+
+		// Breadth first through the routers
+		Map<NetworkComponent, Boolean> reached = new IdentityHashMap<NetworkComponent, Boolean>();
+		ArrayDeque<NetworkComponent> frontier = new ArrayDeque<NetworkComponent>();
+		NetworkComponent start = first.getEnd1() == source ? first.getEnd2() : first.getEnd1();
+		if (start instanceof Router) {
+			reached.put(start, true);
+			frontier.add(start);
+		}
+		while (!frontier.isEmpty()) {
+			NetworkComponent r = frontier.poll();
+			for (Link l : linksAt.get(r)) {
+				NetworkComponent next = l.getEnd1() == r ? l.getEnd2() : l.getEnd1();
+				if (!(next instanceof Router))
+					continue;
+				mtu = Math.min(mtu, l.getMTU());
+				if (!reached.containsKey(next)) {
+					reached.put(next, true);
+					frontier.add(next);
+				}
+			}
+		}
+		return mtu;
+	}
+
+	/*
+	 * Run every component on its own thread until they are all finished,
+	 * then stop them and wait for their threads to exit
+	 */
+	private void runThreaded() {
+		// Components wake this thread whenever they may have finished
+		final Thread waiter = Thread.currentThread();
+		runner = waiter;
+		Runnable listener = new Runnable() {
+
+			@Override
+			public void run() {
+				LockSupport.unpark(waiter);
+			}
+		};
+
+		// Full duplex links make a second thread of the same kind
+		ThreadFactory factory = new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return newComponentThread(r, "ReverseThread");
+			}
+		};
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (NetworkComponent n : networkComponents) {
+			n.setCompletionListener(listener);
+			if (n instanceof Link)
+				((Link) n).setThreadFactory(factory);
+			Thread t = newComponentThread(n, n.getComponentName() + "Thread");
+			threads.add(t);
 			t.start();
 		}
 
 		new Thread(inputListener).start();
 
-		while (!forceStop) {
+		long wallStart = System.currentTimeMillis();
+		long simulatedStart = clock.nanoTime();
+		long simulatedEnd = simulatedTimeBudget == Long.MAX_VALUE ? Long.MAX_VALUE
+				: simulatedStart + TimeUnit.MILLISECONDS.toNanos(simulatedTimeBudget);
+
+		while (!forceStop && !allFinished()) {
+			if (overBudget(clock.nanoTime() - simulatedStart, wallStart))
+				break;
+
+			long wait = TimeUnit.MILLISECONDS.toNanos(FINISHED_CHECK_FALLBACK);
+			wait = Math.min(wait, simulatedEnd - clock.nanoTime());
+			clock.park(wait);
+		}
+
+		for (NetworkComponent n : networkComponents)
+			n.stop();
+		for (Thread t : threads)
+			t.interrupt();
+
+		for (Thread t : threads) {
 			try {
-				Thread.sleep(5000);
+				t.join(JOIN_TIMEOUT);
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				break;
 			}
+			if (t.isAlive())
+				System.err.println(t.getName() + " did not stop");
+		}
+
+		for (NetworkComponent n : networkComponents) {
+			n.setCompletionListener(null);
+			if (n instanceof Link)
+				((Link) n).setThreadFactory(null);
+		}
+		runner = null;
+	}
 
-			boolean isFinished = true;
-			for (NetworkComponent n : networkComponents) {
-				if (!n.finished())
-					isFinished = false;
+	/*
+	 * Whether any flow is background traffic
+	 */
+	private boolean hasBackground() {
+		for (NetworkComponent n : networkComponents) {
+			if (n instanceof Flow && ((Flow) n).isBackground())
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Run the simulation as fluid, leaving its results in the flows and links
+	 * as if packets had been sent
+	 */
+	private void runFluid() {
+		VirtualClock fluidClock = (VirtualClock) clock;
+		long wallStart = System.currentTimeMillis();
+		FluidSimulator fluid = new FluidSimulator(networkComponents, fluidStep, false);
+		long until = simulatedTimeBudget == Long.MAX_VALUE ? Long.MAX_VALUE
+				: TimeUnit.MILLISECONDS.toNanos(simulatedTimeBudget);
+		fluidClock.advanceTo(fluid.run(until));
+
+		eventsProcessed = fluid.getSteps();
+		System.out.println("Simulated " + TimeUnit.NANOSECONDS.toMillis(fluidClock.nanoTime()) + " ms in "
+				+ (System.currentTimeMillis() - wallStart) + " ms (" + eventsProcessed + " fluid steps)");
+	}
+
+	/*
+	 * Whether a run has used up its simulated or real time budget
+	 */
+	private boolean overBudget(long simulatedNanos, long wallStart) {
+		if (TimeUnit.NANOSECONDS.toMillis(simulatedNanos) >= simulatedTimeBudget
+				|| System.currentTimeMillis() - wallStart >= wallTimeBudget) {
+			System.out.println("Time budget used up, stopping early");
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Run every component under a single discrete event simulator on this
+	 * thread until they are all finished
+	 */
+	private void runEventDriven(EventSimulator events) {
+		for (NetworkComponent n : networkComponents)
+			n.start(events);
+
+		// Background flows are fluid, moved on in steps alongside the packets
+		FluidSimulator background = null;
+		if (hasBackground()) {
+			background = new FluidSimulator(networkComponents, fluidStep, true);
+			background.start(events);
+		}
+
+		new Thread(inputListener).start();
+
+		long wallStart = System.currentTimeMillis();
+
+		// Check whether everything is done between chunks of simulated time,
+		// the same way runParallelEventDriven does so both give the same run
+		long nextCheck = 0;
+		if (restoreFrom != null) {
+			nextCheck = restoreFrom.restore(events, networkComponents);
+			System.out.println("Restored simulation at " + TimeUnit.NANOSECONDS.toMillis(nextCheck) + " ms");
+
+			if (afterRestore != null) {
+				int restored = networkComponents.size();
+				afterRestore.run();
+				for (NetworkComponent n : networkComponents.subList(restored, networkComponents.size())) {
+					if (n instanceof Flow)
+						negotiateMSS((Flow) n);
+					n.start(events);
+				}
 			}
+		}
 
-			if (isFinished)
+		while (!forceStop && !allFinished() && events.getPendingEvents() > 0) {
+			// Saved before stopping, so that a run can be stopped where it
+			// is saved by a simulated time budget
+			if (snapshot == null && snapshotTime >= 0 && nextCheck >= TimeUnit.MILLISECONDS.toNanos(snapshotTime)) {
+				snapshot = Snapshot.take(events, networkComponents, nextCheck);
+				if (snapshotFile != null)
+					snapshot.write(snapshotFile);
+				System.out.println("Saved simulation at " + TimeUnit.NANOSECONDS.toMillis(nextCheck) + " ms ("
+						+ snapshot.size() + " bytes)");
+			}
+			if (overBudget(nextCheck, wallStart))
 				break;
-		}
-		
-		System.out.println("Stopping simulation...");
 
-		inputListener.stop();
+			nextCheck = nextCheck(nextCheck);
+			events.runUntil(nextCheck - 1);
+		}
+		if (snapshot == null && snapshotTime >= 0)
+			System.err.println("Simulation ended before it could be saved");
+		if (background != null)
+			background.finish();
+
+		eventsProcessed = events.getEventsProcessed();
+		System.out.println("Simulated " + TimeUnit.NANOSECONDS.toMillis(events.now()) + " ms in "
+				+ (System.currentTimeMillis() - wallStart) + " ms (" + eventsProcessed + " events)");
+	}
 
+	/*
+	 * Run every component under a partitioned parallel event simulator, either
+	 * conservative or optimistic, until they are all finished
+	 */
+	private void runParallelEventDriven(ParallelEventSimulator events) {
 		for (NetworkComponent n : networkComponents)
-			n.stop();
-		
-		for(DataCaptureTool dct : dataCollectors)
-			dct.finish();
-		
+			n.start(events.getPartition(n));
 
-		System.out.println("Simulations finished");
+		new Thread(inputListener).start();
 
-		// Complete calculations, get data and print it, etc.
+		if (events instanceof OptimisticEventSimulator || events.getLookahead() == Long.MAX_VALUE)
+			System.out.println("Running " + events.getPartitions() + " partitions");
+		else
+			System.out.println("Running " + events.getPartitions() + " partitions with a lookahead of "
+					+ TimeUnit.NANOSECONDS.toMicros(events.getLookahead()) + " us");
+
+		long wallStart = System.currentTimeMillis();
+
+		long nextCheck = 0;
+		while (!forceStop && !allFinished() && events.hasPendingEvents() && !overBudget(nextCheck, wallStart)) {
+			nextCheck = nextCheck(nextCheck);
+			events.runUntil(nextCheck - 1);
+		}
+		events.shutdown();
+
+		eventsProcessed = events.getEventsProcessed();
+		System.out.println("Simulated " + TimeUnit.NANOSECONDS.toMillis(events.now()) + " ms in "
+				+ (System.currentTimeMillis() - wallStart) + " ms (" + eventsProcessed + " events)");
+
+		if (events instanceof OptimisticEventSimulator) {
+			OptimisticEventSimulator optimistic = (OptimisticEventSimulator) events;
+			System.out.println(optimistic.getRollbacks() + " rollbacks undid " + optimistic.getEventsRolledBack()
+					+ " events");
+		}
+	}
+
+	/*
+	 * The simulated time an event driven simulation next checks whether it is
+	 * done, which is never past the simulated time budget
+	 */
+	private long nextCheck(long lastCheck) {
+		long next = lastCheck + TimeUnit.MILLISECONDS.toNanos(FINISHED_CHECK_INTERVAL);
+		if (simulatedTimeBudget != Long.MAX_VALUE)
+			next = Math.min(next, TimeUnit.MILLISECONDS.toNanos(simulatedTimeBudget));
+		return next;
+	}
+
+	/*
+	 * Create an unstarted thread to run a component on, according to the
+	 * execution mode. Virtual threads are created reflectively so that the
+	 * simulator still builds and runs on JVMs without them.
+	 */
+	private Thread newComponentThread(Runnable r, String name) {
+		if (mode == ExecutionMode.VIRTUAL_THREADS) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+				return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, r);
+			} catch (ReflectiveOperationException e) {
+				if (!warnedNoVirtualThreads) {
+					System.err.println("Virtual threads are not available, using compact platform threads");
+					warnedNoVirtualThreads = true;
+				}
+				return new Thread(null, r, name, COMPACT_STACK_SIZE);
+			}
+		}
+
+		Thread t = new Thread(r);
+		t.setName(name);
+		return t;
+	}
+
+	private boolean allFinished() {
+		for (NetworkComponent n : networkComponents) {
+			if (!n.finished())
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -117,6 +952,9 @@ public class NetworkSimulator implements Runnable {
 	 */
 	public void stop() {
 		forceStop = true;
+		Thread waiter = runner;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
 	}
 
 	/**
@@ -126,7 +964,7 @@ public class NetworkSimulator implements Runnable {
 	 */
 	private class InputListener implements Runnable {
 
-		private boolean stop;
+		private volatile boolean stop;
 		
 		public InputListener() {
 			stop = false;
@@ -161,7 +999,7 @@ public class NetworkSimulator implements Runnable {
 
 				}
 
-				reader.close();
+				// Leave System.in open for any later simulation in this JVM
 
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -4,31 +4,140 @@
  */
 package edu.caltech.networksimulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.engine.UniqueIds;
+
 /**
  * 
  * Stores a single packet of indeterminate size
+ * 
+ * Packets are reused rather than left to the garbage collector: obtain()
+ * takes one from a pool, and whoever consumes or drops a packet gives it back
+ * with release(). Each thread keeps its own pool, so this needs no locking.
+ * Only packets are pooled: event driven simulations still make an Event for
+ * every hop, which getEventsProcessed() of the simulator counts.
+ * When threaded, packets are often released by a different thread from the
+ * one which made them, so a thread with more released packets than it needs
+ * hands a batch of them to a shared queue, and a thread which has run out
+ * takes a batch from there before making new ones.
+ * 
+ * Every packet made gets a new UID, from blocks of IDs taken by each
+ * simulator partition or thread, so UIDs are unique without a shared
+ * counter, and never go down for packets made by the same partition.
  * 
  * @authors Francesco, Carly
  *
  */
 public class Packet {
 	
-	private static final int PACKET_SIZE = 1024; // bytes
+	static final int PACKET_SIZE = 1024; // bytes
 	private static final int ACK_SIZE = 64; // bytes
 	
-	private static int lastPacketID = 0;
+	// Payloads of flow data and ACKs
+	static final String DATA_PAYLOAD = "DOOM", ACK_PAYLOAD = "ACK";
+	
+	/**
+	 * What a packet is for. This is worked out once when the packet is made,
+	 * so nothing on the way needs to look at the payload.
+	 */
+	public static enum Type {
+		/** Flow data */
+		DATA,
+		/** Acknowledgement of flow data */
+		ACK,
+		/** Asks a neighbour what it is */
+		HELLO,
+		/** Answers a HELLO */
+		HI,
+		/** Part of a router's routing table */
+		ROUTING;
+		
+		private static final Type[] values = values();
+		
+		/**
+		 * @param ordinal The ordinal of a type
+		 * @return the type
+		 */
+		static Type of(int ordinal) {
+			return values[ordinal];
+		}
+		
+		/**
+		 * Work out the type of a packet from its payload, for packets made
+		 * without saying what they are
+		 * @param payload The packet payload
+		 * @return The type
+		 */
+		public static Type of(String payload) {
+			if (payload.equals(ACK_PAYLOAD))
+				return ACK;
+			if (payload.startsWith(Router.IDENTITY_REQUEST_HEADER))
+				return HELLO;
+			if (payload.startsWith(Router.IDENTITY_REQUEST_RESPONSE_HEADER))
+				return HI;
+			if (payload.startsWith(Router.ROUTING_PACKET_HEADER))
+				return ROUTING;
+			return DATA;
+		}
+		
+		/**
+		 * @return the size in bytes of a packet of this type
+		 */
+		int size() {
+			return this == ACK ? ACK_SIZE : PACKET_SIZE;
+		}
+	}
+	
+	// Most released packets each thread keeps for itself, how many it hands
+	// on at once when it has too many, and the most batches left waiting for
+	// other threads; any more are left to the garbage collector
+	private static final int POOL_SIZE = 512;
+	private static final int BATCH_SIZE = 256;
+	private static final int SPARE_BATCHES = 64;
+	
+	private static final ThreadLocal<ArrayDeque<Packet>> pool = new ThreadLocal<ArrayDeque<Packet>>() {
+		
+		@Override
+		protected ArrayDeque<Packet> initialValue() {
+			return new ArrayDeque<Packet>();
+		}
+	};
+	
+	// Batches of released packets handed on between threads
+	private static final ConcurrentLinkedQueue<ArrayDeque<Packet>> spare =
+			new ConcurrentLinkedQueue<ArrayDeque<Packet>>();
+	private static final AtomicInteger spareBatches = new AtomicInteger();
+	
+	// How many packets were ever created, and how many times one was reused
+	private static final LongAdder allocations = new LongAdder();
+	private static final LongAdder reuses = new LongAdder();
 	
 	// public static final int CHAR_SIZE = 2;
-	private final long src, dest;
+	private long src, dest;
 	private long sent_time;
 	
-	// to identify its flow
-	private final int sequence_number;
-	private final String sequence_id;
+	private Type type;
+	private int size; // bytes
+	
+	// to identify its flow, -1 if it is not part of one
+	private int sequence_number;
+	private String sequence_id;
+	private int flowId;
 	
 	private String payload;
 	
-	private int packetUID;
+	private long packetUID;
+	
+	private boolean released;
 	
 	/**
 	 * Creates a packet as part of a sequence
@@ -39,13 +148,32 @@ public class Packet {
 	 * @param sequence_id The sequence ID
 	 */
 	public Packet(long src, long dest, String payload, int sequence_number, String sequence_id) {
+		this(Type.of(payload), src, dest, payload, sequence_number, sequence_id, -1);
+	}
+	
+	/**
+	 * Creates a packet of a known type
+	 * @param type What the packet is for
+	 * @param src The source of the packet's IP
+	 * @param dest The destination IP
+	 * @param payload The packet payload
+	 * @param sequence_number The sequence number
+	 * @param sequence_id The sequence ID
+	 * @param flowId The ID of the flow it belongs to, or -1
+	 */
+	public Packet(Type type, long src, long dest, String payload, int sequence_number, String sequence_id,
+			int flowId) {
+		this.type = type;
+		this.size = type.size();
 		this.src = src;
 		this.dest = dest;
 		this.payload = payload;
 		this.sequence_number = sequence_number;
 		this.sequence_id = sequence_id;
+		this.flowId = flowId;
 		
-		packetUID = lastPacketID++;
+		packetUID = UniqueIds.next();
+		allocations.increment();
 	}
 	
 	/**
@@ -58,20 +186,211 @@ public class Packet {
 		this(src, dest, payload, -1, null);
 	}
 
+	/**
+	 * Creates a copy of a packet kept somewhere else, such as a compact queue
+	 * or a snapshot. The UID is kept as it is; one read back from outside the
+	 * running simulation must be reserved as well, as read() does.
+	 */
+	Packet(Type type, long src, long dest, String payload, int sequence_number, String sequence_id, int flowId,
+			long packetUID) {
+		this.type = type;
+		this.size = type.size();
+		this.src = src;
+		this.dest = dest;
+		this.payload = payload;
+		this.sequence_number = sequence_number;
+		this.sequence_id = sequence_id;
+		this.flowId = flowId;
+		this.packetUID = packetUID;
+		allocations.increment();
+	}
+
+	/**
+	 * Get a packet as part of a sequence, reusing a released one if there is
+	 * one
+	 * @param src The source of the packet's IP
+	 * @param dest The destination IP
+	 * @param payload The packet payload
+	 * @param sequence_number The sequence number
+	 * @param sequence_id The sequence ID
+	 * @return The packet, with a sent time of zero
+	 */
+	public static Packet obtain(long src, long dest, String payload, int sequence_number, String sequence_id) {
+		return obtain(Type.of(payload), src, dest, payload, sequence_number, sequence_id, -1);
+	}
+	
+	/**
+	 * Get a packet of a known type, reusing a released one if there is one
+	 * @param type What the packet is for
+	 * @param src The source of the packet's IP
+	 * @param dest The destination IP
+	 * @param payload The packet payload
+	 * @param sequence_number The sequence number
+	 * @param sequence_id The sequence ID
+	 * @param flowId The ID of the flow it belongs to, or -1
+	 * @return The packet, with a sent time of zero
+	 */
+	public static Packet obtain(Type type, long src, long dest, String payload, int sequence_number,
+			String sequence_id, int flowId) {
+		Packet p = take();
+		if (p == null)
+			return new Packet(type, src, dest, payload, sequence_number, sequence_id, flowId);
+		
+		p.reuse(type, src, dest, payload, sequence_number, sequence_id, flowId, 0, UniqueIds.next());
+		return p;
+	}
+	
+	/**
+	 * Get a packet of a known type that is not part of a sequence, reusing a
+	 * released one if there is one
+	 * @param type What the packet is for
+	 * @param src The src of the packet's IP
+	 * @param dest The destination of the packet's IP
+	 * @param payload The packet payload
+	 * @return The packet
+	 */
+	public static Packet obtain(Type type, long src, long dest, String payload) {
+		return obtain(type, src, dest, payload, -1, null, -1);
+	}
+	
+	/**
+	 * Get a copy of a packet kept somewhere else, reusing a released packet
+	 * if there is one
+	 */
+	static Packet obtain(Type type, long src, long dest, String payload, int sequence_number, String sequence_id,
+			int flowId, long sent_time, long packetUID) {
+		Packet p = take();
+		if (p == null) {
+			p = new Packet(type, src, dest, payload, sequence_number, sequence_id, flowId, packetUID);
+			p.sent_time = sent_time;
+			return p;
+		}
+		
+		p.reuse(type, src, dest, payload, sequence_number, sequence_id, flowId, sent_time, packetUID);
+		return p;
+	}
+	
+	/*
+	 * A released packet from this thread's pool, or from a batch another
+	 * thread handed on, or null if there are none
+	 */
+	private static Packet take() {
+		Packet p = pool.get().poll();
+		if (p != null)
+			return p;
+		
+		ArrayDeque<Packet> batch = spare.poll();
+		if (batch == null)
+			return null;
+		spareBatches.decrementAndGet();
+		pool.set(batch);
+		return batch.poll();
+	}
+	
+	private void reuse(Type type, long src, long dest, String payload, int sequence_number, String sequence_id,
+			int flowId, long sent_time, long packetUID) {
+		this.type = type;
+		this.size = type.size();
+		this.src = src;
+		this.dest = dest;
+		this.payload = payload;
+		this.sequence_number = sequence_number;
+		this.sequence_id = sequence_id;
+		this.flowId = flowId;
+		this.sent_time = sent_time;
+		this.packetUID = packetUID;
+		this.released = false;
+		reuses.increment();
+	}
+	
+	/**
+	 * Get a packet that is not part of a sequence, reusing a released one if
+	 * there is one
+	 * @param src The src of the packet's IP
+	 * @param dest The destination of the packet's IP
+	 * @param payload The packet payload
+	 * @return The packet
+	 */
+	public static Packet obtain(long src, long dest, String payload) {
+		return obtain(src, dest, payload, -1, null);
+	}
+	
+	/**
+	 * Give this packet back once it has been consumed or dropped, so that it
+	 * can be reused. Nothing may use the packet afterwards.
+	 */
+	public void release() {
+		if (released)
+			throw new NetworkException("Packet released twice: " + this);
+		
+		// The event releasing it may be undone and handled again, which
+		// needs the packet as it was
+		if (EventSimulator.isSpeculative())
+			return;
+		
+		released = true;
+		ArrayDeque<Packet> free = pool.get();
+		free.push(this);
+		if (free.size() < POOL_SIZE)
+			return;
+		
+		// Too many here, so hand some on to threads which have run out
+		ArrayDeque<Packet> batch = new ArrayDeque<Packet>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++)
+			batch.push(free.pop());
+		if (spareBatches.incrementAndGet() <= SPARE_BATCHES)
+			spare.add(batch);
+		else
+			spareBatches.decrementAndGet();
+	}
+	
+	/**
+	 * @return how many packets have been created with new, in every thread
+	 */
+	public static long getAllocations() {
+		return allocations.sum();
+	}
+	
+	/**
+	 * @return how many times a released packet has been reused, in every
+	 *         thread
+	 */
+	public static long getReuses() {
+		return reuses.sum();
+	}
+
 	/**
 	 * Gets the size of this packet in bytes, depending on whether this packet is an ACK or a regular packet.
 	 * @return The number of bytes this packets contents use
 	 */
 	public long getPacketSize() {
-		return this.payload.equals("ACK") ? ACK_SIZE : PACKET_SIZE;
+		return size;
 	}
 	
 	/**
-	 * Set the data payload of this packet
+	 * Set the size of this packet, which otherwise depends on its type
+	 * @param size The size in bytes
+	 */
+	public void setPacketSize(int size) {
+		this.size = size;
+	}
+	
+	/**
+	 * Set the data payload of this packet, which also works out its type
+	 * again
 	 * @param payload
 	 */
 	public void setPayload(String payload) {
 		this.payload = payload;
+		this.type = Type.of(payload);
+		this.size = type.size();
+	}
+	
+	/**
+	 * @return what this packet is for
+	 */
+	public Type getType() {
+		return type;
 	}
 	
 	/**
@@ -111,7 +430,21 @@ public class Packet {
 	}
 	
 	/**
-	 * @return the sent time
+	 * @return the ID of the flow this packet belongs to, or -1 if none
+	 */
+	public int getFlowId() {
+		return flowId;
+	}
+	
+	/**
+	 * @return the number identifying this packet
+	 */
+	long getUID() {
+		return packetUID;
+	}
+	
+	/**
+	 * @return the sent time in nanoseconds
 	 */
 	public long getSentTime() {
 		return sent_time;
@@ -119,7 +452,8 @@ public class Packet {
 	
 	@Override
 	public String toString() {
-		return "{Src: " + getSrc() +
+		return "{Type: " + type +
+				" Src: " + getSrc() +
 				" Dest: " + getDest() +
 				" Payload: " + getPayload() +
 				" Sequence ID: " + getSeqID() + 
@@ -137,9 +471,10 @@ public class Packet {
 	
 	/**
 	 * Set the time at which the packet was sent
+	 * @param time The time of the sender's clock in nanoseconds
 	 */
-	public void setSentTime() {
-		this.sent_time = System.currentTimeMillis();
+	public void setSentTime(long time) {
+		this.sent_time = time;
 	}
 	
 	/**
@@ -148,7 +483,7 @@ public class Packet {
 	 * @return
 	 */
 	public Packet getACK(int seq_num) {
-		Packet p = new Packet(this.dest, this.src, "ACK", seq_num, this.sequence_id);
+		Packet p = obtain(Type.ACK, this.dest, this.src, ACK_PAYLOAD, seq_num, this.sequence_id, this.flowId);
 		p.sent_time = this.sent_time;
 		return p;
 	}
@@ -158,8 +493,74 @@ public class Packet {
 	 * @return True if it is, otherwise false
 	 */
 	public boolean isRouting() {
-		return payload.startsWith(Router.ROUTING_PACKET_HEADER);
+		return type == Type.ROUTING;
 	}
 
+	/**
+	 * Write this packet in binary, to be read back by read()
+	 * @param out Where to write it
+	 * @throws IOException If writing fails
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(src);
+		out.writeLong(dest);
+		out.writeLong(sent_time);
+		out.writeByte(type.ordinal());
+		out.writeInt(sequence_number);
+		out.writeInt(flowId);
+		out.writeInt(size);
+		out.writeLong(packetUID);
+		writeString(out, sequence_id);
+		writeString(out, payload);
+	}
+	
+	/**
+	 * Read a packet written by write(), such as from a snapshot. Its UID is
+	 * reserved so no new packet gets it, which means this should only be
+	 * called before the simulation starts other threads.
+	 * @param in Where to read it from
+	 * @return The packet
+	 * @throws IOException If reading fails
+	 */
+	public static Packet read(DataInput in) throws IOException {
+		long src = in.readLong();
+		long dest = in.readLong();
+		long sent_time = in.readLong();
+		Type type = Type.of(in.readUnsignedByte());
+		int sequence_number = in.readInt();
+		int flowId = in.readInt();
+		int size = in.readInt();
+		long packetUID = in.readLong();
+		String sequence_id = readString(in);
+		String payload = readString(in);
+		
+		// Packets made after a restore must not reuse the IDs of saved ones
+		UniqueIds.reserve(packetUID);
+		
+		Packet p = new Packet(type, src, dest, payload, sequence_number, sequence_id, flowId, packetUID);
+		p.sent_time = sent_time;
+		p.size = size;
+		return p;
+	}
+	
+	// Routing payloads can be longer than writeUTF() allows
+	private static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
 	
 }
@@ -0,0 +1,329 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes packets to and reads them from ByteBuffers, in a fixed binary layout
+ * for traces, checkpoints and sending packets between processes. Numbers are
+ * in the buffer's byte order, big endian unless it was changed.
+ *
+ * <pre>
+ *  0  byte    layout version
+ *  1  byte    packet type
+ *  2  short   what the body holds: nothing, routes or text
+ *  4  int     length of the whole packet in bytes
+ *  8  long    source address
+ * 16  long    destination address
+ * 24  long    sent time
+ * 32  long    UID
+ * 40  int     sequence number
+ * 44  int     flow ID
+ * 48  int     size in bytes
+ * 52  int     length of the sequence ID in chars, -1 for none
+ * 56  char[]  the sequence ID
+ *     body    routes: int count, then count times long address, double cost
+ *             text:   int length in chars, then the chars of the payload
+ * </pre>
+ *
+ * Data packets and ACKs have no body, as their payload follows from their
+ * type, and routing packets from Router carry their routes as numbers rather
+ * than text. Anything else keeps its payload as text.
+ *
+ * Writing data packets and ACKs, and reading them back, makes no objects
+ * other than the pooled packet read, as long as packets of the same flow
+ * follow each other. Routing packets are rare, so are not held to that.
+ */
+public final class PacketCodec {
+
+	/**
+	 * Version of the layout, written at the start of every packet
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Bytes taken by the fixed part of every packet
+	 */
+	public static final int HEADER_SIZE = 56;
+
+	// What follows the header and sequence ID
+	private static final int BODY_NONE = 0, BODY_ROUTES = 1, BODY_TEXT = 2;
+
+	// Bytes taken by each route
+	private static final int ROUTE_SIZE = 16;
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private PacketCodec() {
+	}
+
+	/**
+	 * @param p
+	 *            A packet
+	 * @return how many bytes writing the packet takes
+	 */
+	public static int size(Packet p) {
+		Scratch s = scratch.get();
+		return size(p, bodyOf(p, s), s);
+	}
+
+	/**
+	 * Write a packet at the buffer's position, moving it past the packet
+	 *
+	 * @param p
+	 *            The packet, which is left as it is
+	 * @param buf
+	 *            Where to write it
+	 * @throws BufferOverflowException
+	 *             If the packet does not fit, in which case nothing is
+	 *             written
+	 */
+	public static void write(Packet p, ByteBuffer buf) {
+		Scratch s = scratch.get();
+		int body = bodyOf(p, s);
+		int length = size(p, body, s);
+		if (buf.remaining() < length)
+			throw new BufferOverflowException();
+
+		buf.put((byte) VERSION);
+		buf.put((byte) p.getType().ordinal());
+		buf.putShort((short) body);
+		buf.putInt(length);
+		buf.putLong(p.getSrc());
+		buf.putLong(p.getDest());
+		buf.putLong(p.getSentTime());
+		buf.putLong(p.getUID());
+		buf.putInt(p.getSeqNum());
+		buf.putInt(p.getFlowId());
+		buf.putInt((int) p.getPacketSize());
+
+		String id = p.getSeqID();
+		if (id == null) {
+			buf.putInt(-1);
+		} else {
+			buf.putInt(id.length());
+			putChars(buf, id);
+		}
+
+		switch (body) {
+		case BODY_ROUTES:
+			buf.putInt(s.routes);
+			for (int i = 0; i < s.routes; i++) {
+				buf.putLong(s.addresses[i]);
+				buf.putDouble(s.costs[i]);
+			}
+			break;
+		case BODY_TEXT:
+			buf.putInt(p.getPayload().length());
+			putChars(buf, p.getPayload());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Read a packet written by write() at the buffer's position, moving it
+	 * past the packet
+	 *
+	 * @param buf
+	 *            Where to read it from
+	 * @return The packet, which should be released once done with
+	 */
+	public static Packet read(ByteBuffer buf) {
+		int version = buf.get() & 0xFF;
+		if (version != VERSION)
+			throw new NetworkException("Unknown packet layout version " + version);
+
+		Packet.Type type = Packet.Type.of(buf.get() & 0xFF);
+		int body = buf.getShort();
+		buf.getInt(); // length, for skipping packets without reading them
+		long src = buf.getLong();
+		long dest = buf.getLong();
+		long sent_time = buf.getLong();
+		long packetUID = buf.getLong();
+		int sequence_number = buf.getInt();
+		int flowId = buf.getInt();
+		int size = buf.getInt();
+		String sequence_id = readSequenceId(buf, scratch.get());
+
+		String payload;
+		switch (body) {
+		case BODY_NONE:
+			payload = type == Packet.Type.ACK ? Packet.ACK_PAYLOAD : Packet.DATA_PAYLOAD;
+			break;
+		case BODY_ROUTES:
+			payload = readRoutes(buf);
+			break;
+		case BODY_TEXT:
+			payload = getChars(buf, buf.getInt());
+			break;
+		default:
+			throw new NetworkException("Unknown packet body " + body);
+		}
+
+		Packet p = Packet.obtain(type, src, dest, payload, sequence_number, sequence_id, flowId, sent_time,
+				packetUID);
+		p.setPacketSize(size);
+		return p;
+	}
+
+	/**
+	 * The length of the packet at the buffer's position, without moving it
+	 *
+	 * @param buf
+	 *            A buffer positioned at a packet
+	 * @return The length in bytes, so that it can be skipped
+	 */
+	public static int length(ByteBuffer buf) {
+		return buf.getInt(buf.position() + 4);
+	}
+
+	/*
+	 * Work out what body a packet needs. For routes, these are left in the
+	 * scratch space.
+	 */
+	private static int bodyOf(Packet p, Scratch s) {
+		String payload = p.getPayload();
+		switch (p.getType()) {
+		case DATA:
+			return Packet.DATA_PAYLOAD.equals(payload) ? BODY_NONE : BODY_TEXT;
+		case ACK:
+			return Packet.ACK_PAYLOAD.equals(payload) ? BODY_NONE : BODY_TEXT;
+		case ROUTING:
+			return parseRoutes(payload, s) ? BODY_ROUTES : BODY_TEXT;
+		default:
+			return BODY_TEXT;
+		}
+	}
+
+	private static int size(Packet p, int body, Scratch s) {
+		int size = HEADER_SIZE;
+		if (p.getSeqID() != null)
+			size += 2 * p.getSeqID().length();
+
+		switch (body) {
+		case BODY_ROUTES:
+			return size + 4 + ROUTE_SIZE * s.routes;
+		case BODY_TEXT:
+			return size + 4 + 2 * p.getPayload().length();
+		default:
+			return size;
+		}
+	}
+
+	/*
+	 * Read the routes out of a payload made by Router, only if writing them
+	 * out again gives exactly the same text
+	 */
+	private static boolean parseRoutes(String payload, Scratch s) {
+		String header = Router.ROUTING_PACKET_HEADER;
+		if (!payload.startsWith(header))
+			return false;
+
+		s.routes = 0;
+		int i = header.length();
+		while (i < payload.length()) {
+			if (payload.charAt(i) != ' ')
+				return false;
+			int end = payload.indexOf(' ', i + 1);
+			if (end < 0)
+				end = payload.length();
+
+			String route = payload.substring(i + 1, end);
+			int colon = route.indexOf(':');
+			if (colon < 0)
+				return false;
+			try {
+				long address = Long.parseLong(route.substring(0, colon));
+				double cost = Double.parseDouble(route.substring(colon + 1));
+				if (!route.equals(address + ":" + cost))
+					return false;
+				s.addRoute(address, cost);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			i = end;
+		}
+		return true;
+	}
+
+	private static String readRoutes(ByteBuffer buf) {
+		int routes = buf.getInt();
+		StringBuilder payload = new StringBuilder(Router.ROUTING_PACKET_HEADER);
+		for (int i = 0; i < routes; i++)
+			payload.append(' ').append(buf.getLong()).append(':').append(buf.getDouble());
+		return payload.toString();
+	}
+
+	/*
+	 * Read a sequence ID, reusing the last one read on this thread if it is
+	 * the same
+	 */
+	private static String readSequenceId(ByteBuffer buf, Scratch s) {
+		int length = buf.getInt();
+		if (length < 0)
+			return null;
+
+		String last = s.lastSequenceId;
+		if (last != null && last.length() == length) {
+			int start = buf.position();
+			int i = 0;
+			while (i < length && buf.getChar(start + 2 * i) == last.charAt(i))
+				i++;
+			if (i == length) {
+				buf.position(start + 2 * length);
+				return last;
+			}
+		}
+
+		s.lastSequenceId = getChars(buf, length);
+		return s.lastSequenceId;
+	}
+
+	private static void putChars(ByteBuffer buf, String s) {
+		for (int i = 0; i < s.length(); i++)
+			buf.putChar(s.charAt(i));
+	}
+
+	private static String getChars(ByteBuffer buf, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = buf.getChar();
+		return new String(chars);
+	}
+
+	/**
+	 * Space each thread reuses while writing and reading
+	 */
+	private static final class Scratch {
+
+		// Routes of the routing packet being written
+		private long[] addresses = new long[16];
+		private double[] costs = new double[16];
+		private int routes;
+
+		private String lastSequenceId;
+
+		void addRoute(long address, double cost) {
+			if (routes == addresses.length) {
+				addresses = Arrays.copyOf(addresses, 2 * routes);
+				costs = Arrays.copyOf(costs, 2 * routes);
+			}
+			addresses[routes] = address;
+			costs[routes] = cost;
+			routes++;
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import edu.caltech.networksimulator.engine.StateSaving;
+
+/**
+ * The packets waiting at one end of an event driven link, which decides the
+ * order they are sent in. Remembers when each packet arrived, so the link
+ * knows how long it waited.
+ *
+ * Only one thread may use a scheduler.
+ */
+abstract class PacketScheduler implements StateSaving {
+
+	/**
+	 * Make a scheduler by name
+	 *
+	 * @param name
+	 *            One of FIFO, DRR or SFQ
+	 * @param link
+	 *            The link it is for, which says how big its queues may get
+	 * @return A new scheduler, with nothing queued
+	 */
+	static PacketScheduler forName(String name, Link link) {
+		if (name.equals("FIFO")) {
+			return new FifoScheduler(link.hasCompactQueues());
+		} else if (name.equals("DRR")) {
+			return new DeficitRoundRobin(false, 0, link.getFlowQueueLimit(), link.getMTU(), link.hasCompactQueues());
+		} else if (name.equals("SFQ")) {
+			return new DeficitRoundRobin(true, link.getSchedulerBuckets(), link.getFlowQueueLimit(), link.getMTU(),
+					link.hasCompactQueues());
+		} else {
+			throw new NetworkException("Unrecognized packet scheduler " + name);
+		}
+	}
+
+	/**
+	 * Queue a packet. A compact scheduler keeps a copy, so the packet should
+	 * be released afterwards if it was queued.
+	 *
+	 * @param p
+	 *            The packet
+	 * @param now
+	 *            When it arrived
+	 * @return False if there is no room for it, in which case nothing was
+	 *         queued
+	 */
+	abstract boolean offer(Packet p, long now);
+
+	/**
+	 * @return the next packet to send, or null if none are waiting
+	 */
+	abstract Packet poll();
+
+	/**
+	 * @return when the packet last taken by poll() arrived
+	 */
+	abstract long lastArrival();
+
+	/**
+	 * @return how many packets are waiting
+	 */
+	abstract int size();
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+}
@@ -9,6 +9,11 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.engine.Event;
+import edu.caltech.networksimulator.engine.EventSimulator;
+import edu.caltech.networksimulator.engine.StateSaving;
 
 /**
  * @author Francesco, Carly
@@ -28,16 +33,25 @@ import java.util.concurrent.ConcurrentSkipListMap;
  *         that come with the fact that networks are distributed systems must be
  *         followed.
  */
-public class Router extends NetworkComponent implements Addressable {
+public class Router extends NetworkComponent implements Addressable, StateSaving {
 
 	public static final String IDENTITY_REQUEST_HEADER = "HELLO";
 	public static final String IDENTITY_REQUEST_RESPONSE_HEADER = "HI";
 	public static final String ROUTING_PACKET_HEADER = "ROUTING";
 	private static final long ROUTING_DELAY = 3000;
+	private static final long BROADCAST_INTERVAL = 10;
+	private static final int BROADCAST_REPEATS = 5;
+
+	// Event types
+	private static final int HELLO = 0, ROUTING = 1;
 
-	// Routing table as map
+	// Routing table as map, only changed through setRouting()
 	private Map<Long, Routing> routingTable;
 
+	// The same routings keyed by plain longs, for forwarding packets without
+	// boxing their destinations. Replaced whole whenever the table changes.
+	private volatile Routes routes;
+
 	// for keeping track of which links we are directly connected to
 	private Set<Link> connectedLinks;
 	private Map<Long, Link> hostLinks, switchLinks;
@@ -54,6 +68,7 @@ public class Router extends NetworkComponent implements Addressable {
 		// Routing table keeps track of which IPs we can reach, at which costs,
 		// and through which links.
 		routingTable = new ConcurrentSkipListMap<Long, Routing>();
+		routes = new Routes(routingTable);
 
 		// We want to know our neighbors.
 		connectedLinks = new TreeSet<Link>();
@@ -71,62 +86,32 @@ public class Router extends NetworkComponent implements Addressable {
 	@Override
 	public void run() {
 
-		// Broadcast our existence in the network
-		Packet p = new Packet(ip, -1, IDENTITY_REQUEST_HEADER);
-
 		// Keep broadcasting while we figure out our neighboring switches
 		// (routers) and hosts
-		while (hostLinks.size() + switchLinks.size() != connectedLinks.size()) {
-			for (Link l : connectedLinks) {
-				if (!hostLinks.values().contains(l) && !switchLinks.values().contains(l))
-					l.offerPacket(p, this);
-			}
+		while (!neighborsDiscovered()) {
+			broadcastIdentityRequest();
 
 			try {
-				Thread.sleep(10);
+				getClock().sleep(TimeUnit.MILLISECONDS.toNanos(BROADCAST_INTERVAL));
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				// Interrupted to stop
+				return;
 			}
 		}
 
-		// local host links should be 0 (we add in the dynamic cost of the link
-		// upon sending)
-		// add local host links???
-		for (Entry<Long, Link> host : hostLinks.entrySet()) {
-			routingTable.put(host.getKey(), new Routing(0, host.getValue()));
-		}
-		
-		initialRoutingTableBuilt = true;
-
-		System.out.println("Router " + this + " successfully completed pinging local links: " + routingTable);
+		buildInitialRoutingTable();
 
 		while (!this.receivedStop()) {
 
 			// broadcast multiple times in quick succession to neighbors
 			// to accommodate for everyone changing their routing tables at the same time
-			for (int i = 0; i < 5; i++) {
-				for (NetworkComponent link : switchLinks.values()) {
-					// Only send out routing packets if we have a routing table
-					if (!routingTable.isEmpty()) {
-						String payload = "ROUTING";
-
-						for (Entry<Long, Routing> routing : routingTable.entrySet()) {
-							if (!routing.getValue().link.equals(link))
-								// dynamically add the link cost
-								payload = payload + " " + routing.getKey() + ":"
-									+ (routing.getValue().cost + routing.getValue().link.getBufferFill());
-						}
-
-						Packet broadcast = new Packet(ip, -1, payload);
-						// System.out.println(broadcast + " for link " + link);
-						link.offerPacket(broadcast, this);
-					}
-				}
+			for (int i = 0; i < BROADCAST_REPEATS; i++) {
+				broadcastRouting();
 				
 				try {
-					Thread.sleep(10);
+					getClock().sleep(TimeUnit.MILLISECONDS.toNanos(BROADCAST_INTERVAL));
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					return;
 				}
 			}
 			
@@ -136,12 +121,122 @@ public class Router extends NetworkComponent implements Addressable {
 
 			// quiet down for a bit
 			try {
-				Thread.sleep(ROUTING_DELAY);
+				getClock().sleep(TimeUnit.MILLISECONDS.toNanos(ROUTING_DELAY));
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				return;
+			}
+		}
+
+	}
+
+	@Override
+	public void start(EventSimulator sim) {
+		super.start(sim);
+		sim.schedule(0, this, HELLO);
+	}
+
+	/*
+	 * Event driven version of run(): HELLO events repeat until all neighbors
+	 * are known, then ROUTING events broadcast in bursts. The argument of a
+	 * ROUTING event is its index within the burst.
+	 */
+	@Override
+	public void handleEvent(Event e) {
+		EventSimulator sim = getEventSimulator();
+
+		switch (e.getType()) {
+		case HELLO:
+			if (!neighborsDiscovered()) {
+				broadcastIdentityRequest();
+				sim.schedule(TimeUnit.MILLISECONDS.toNanos(BROADCAST_INTERVAL), this, HELLO);
+			} else {
+				buildInitialRoutingTable();
+				sim.schedule(0, this, ROUTING, 0);
+			}
+			break;
+		case ROUTING:
+			broadcastRouting();
+
+			if (e.getArgument() < BROADCAST_REPEATS - 1) {
+				sim.schedule(TimeUnit.MILLISECONDS.toNanos(BROADCAST_INTERVAL), this, ROUTING,
+						e.getArgument() + 1);
+			} else {
+				if (NetworkSimulator.PRINT_ROUTING) {
+					printRouting();
+				}
+				sim.schedule(TimeUnit.MILLISECONDS.toNanos(BROADCAST_INTERVAL + ROUTING_DELAY), this, ROUTING,
+						0);
 			}
+			break;
+		default:
+			throw new NetworkException("Unknown event type for router: " + e);
+		}
+	}
+
+	/*
+	 * Whether we know what is on the other end of every link
+	 */
+	private boolean neighborsDiscovered() {
+		return hostLinks.size() + switchLinks.size() == connectedLinks.size();
+	}
+
+	/*
+	 * Broadcast our existence on every link we haven't identified yet
+	 */
+	private void broadcastIdentityRequest() {
+		// A packet for each link, since each receiver releases its own
+		for (Link l : connectedLinks) {
+			if (!hostLinks.values().contains(l) && !switchLinks.values().contains(l))
+				l.offerPacket(Packet.obtain(Packet.Type.HELLO, ip, -1, IDENTITY_REQUEST_HEADER), this);
+		}
+	}
+
+	/*
+	 * Once all neighbors are known, seed the routing table with the local
+	 * hosts
+	 */
+	private void buildInitialRoutingTable() {
+		// local host links should be 0 (we add in the dynamic cost of the link
+		// upon sending)
+		// add local host links???
+		for (Entry<Long, Link> host : hostLinks.entrySet()) {
+			setRouting(host.getKey(), new Routing(0, host.getValue()));
 		}
+		
+		initialRoutingTableBuilt = true;
+		signalCompletion();
+
+		final String table = routingTable.toString();
+		EventSimulator.whenCommitted(new Runnable() {
+
+			@Override
+			public void run() {
+				System.out.println("Router " + Router.this + " successfully completed pinging local links: " + table);
+			}
+		});
+	}
+
+	/*
+	 * Send our routing table to every neighboring router
+	 */
+	private void broadcastRouting() {
+		for (Link link : switchLinks.values()) {
+			// Only send out routing packets if we have a routing table
+			if (!routingTable.isEmpty()) {
+				String payload = "ROUTING";
+
+				for (Entry<Long, Routing> routing : routingTable.entrySet()) {
+					if (!routing.getValue().link.equals(link))
+						// dynamically add the link cost
+						payload = payload + " " + routing.getKey() + ":"
+							+ (routing.getValue().cost + routing.getValue().link.getBufferFill(this));
+				}
 
+				Packet broadcast = Packet.obtain(Packet.Type.ROUTING, ip, -1, payload);
+				// System.out.println(broadcast + " for link " + link);
+				link.offerPacket(broadcast, this);
+			}
+		}
 	}
 
 	/*
@@ -161,11 +256,13 @@ public class Router extends NetworkComponent implements Addressable {
 
 		if (p.getDest() == ip || p.getDest() == -1) {
 
-			if (p.getPayload().startsWith(IDENTITY_REQUEST_HEADER)) {
-				n.offerPacket(new Packet(ip, p.getSrc(), IDENTITY_REQUEST_RESPONSE_HEADER + " " + ComponentType.SWITCH),
-						this);
+			switch (p.getType()) {
+			case HELLO:
+				n.offerPacket(Packet.obtain(Packet.Type.HI, ip, p.getSrc(),
+						IDENTITY_REQUEST_RESPONSE_HEADER + " " + ComponentType.SWITCH), this);
+				break;
 
-			} else if (p.getPayload().startsWith(IDENTITY_REQUEST_RESPONSE_HEADER)) {
+			case HI:
 				ComponentType type = ComponentType.valueOf(p.getPayload().split(" ")[1]);
 
 				switch (type) {
@@ -177,15 +274,23 @@ public class Router extends NetworkComponent implements Addressable {
 					if (!hostLinks.containsKey(p.getSrc())) {
 						hostLinks.put(p.getSrc(), (Link) n);
 						// Hosts directly connected have zero cost
-						routingTable.put(p.getSrc(), new Routing(0, (Link) n));
+						setRouting(p.getSrc(), new Routing(0, (Link) n));
 					}
 					break;
 				}
+				break;
 
-			} else if (p.getPayload().startsWith(ROUTING_PACKET_HEADER)) {
+			case ROUTING:
 
 				if (!initialRoutingTableBuilt) {
-					System.out.println("Not built yet!!!!");
+					EventSimulator.whenCommitted(new Runnable() {
+
+						@Override
+						public void run() {
+							System.out.println("Not built yet!!!!");
+						}
+					});
+					p.release();
 					return;
 				}
 
@@ -205,34 +310,50 @@ public class Router extends NetworkComponent implements Addressable {
 						// offered one is better.
 
 						Routing newRouting = new Routing(
-								Double.parseDouble(routingElements[1]) + ((Link)n).getBufferFill(), (Link) n);
+								Double.parseDouble(routingElements[1]) + ((Link)n).getBufferFill(this), (Link) n);
 
 						long routingIP = Long.parseLong(routingElements[0]);
 
 						if (!hostLinks.containsKey(routingIP) && (!routingTable.containsKey(routingIP)
-								|| (routingTable.get(routingIP).cost + routingTable.get(routingIP).link.getBufferFill()
+								|| (routingTable.get(routingIP).cost + routingTable.get(routingIP).link.getBufferFill(this)
 									> newRouting.cost) )) {
 								// || routingTable.get(routingIP).link.equals(n))) {
-							routingTable.put(routingIP, newRouting);
+							setRouting(routingIP, newRouting);
 						}
 
 					} catch (Exception e) {
 						System.err.println("Received a malformed routing packet!" + p.getPayload());
 						e.printStackTrace();
+						p.release();
 						return;
 					}
 
 				}
+				break;
+
+			default:
+				break;
 			}
 
+			// Meant for us, so it ends here
+			p.release();
+
 		} else {
 
 			// *Look up in the routing table*
-			Routing l = routingTable.get(p.getDest());
-			if (l != null)
+			Routing l = routes.get(p.getDest());
+			if (l != null) {
 				l.link.offerPacket(p, this);
-			else
-				System.out.println(this + " dropping packet: no routing entry");
+			} else {
+				EventSimulator.whenCommitted(new Runnable() {
+
+					@Override
+					public void run() {
+						System.out.println(Router.this + " dropping packet: no routing entry");
+					}
+				});
+				p.release();
+			}
 		}
 	}
 
@@ -255,6 +376,48 @@ public class Router extends NetworkComponent implements Addressable {
 		return initialRoutingTableBuilt;
 	}
 
+	@Override
+	public Object saveState() {
+		// Routings are saved as plain data, so that states can be written to
+		// snapshots
+		Map<Long, Object[]> routings = new TreeMap<Long, Object[]>();
+		for (Entry<Long, Routing> routing : routingTable.entrySet())
+			routings.put(routing.getKey(), new Object[] { routing.getValue().cost, routing.getValue().link });
+
+		return new Object[] { routings, new TreeMap<Long, Link>(hostLinks), new TreeMap<Long, Link>(switchLinks),
+				initialRoutingTableBuilt };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+
+		synchronized (routingTable) {
+			routingTable.clear();
+			for (Entry<Long, Object[]> routing : ((Map<Long, Object[]>) saved[0]).entrySet())
+				routingTable.put(routing.getKey(), new Routing((Double) routing.getValue()[0], (Link) routing.getValue()[1]));
+			routes = new Routes(routingTable);
+		}
+		hostLinks.clear();
+		hostLinks.putAll((Map<Long, Link>) saved[1]);
+		switchLinks.clear();
+		switchLinks.putAll((Map<Long, Link>) saved[2]);
+		initialRoutingTableBuilt = (Boolean) saved[3];
+	}
+
+	/*
+	 * Change the routing to an IP, in both the table and the routes used for
+	 * forwarding. Locked so that routes from an older table never replace
+	 * those from a newer one.
+	 */
+	private void setRouting(long dest, Routing routing) {
+		synchronized (routingTable) {
+			routingTable.put(dest, routing);
+			routes = new Routes(routingTable);
+		}
+	}
+
 	/**
 	 * Add a link to this router
 	 * @param l The link to add (must not be null)
@@ -290,13 +453,65 @@ public class Router extends NetworkComponent implements Addressable {
 		
 	}
 	
+	/**
+	 * A routing table keyed by plain longs, in arrays with open addressing.
+	 * Never changed once made, so threads can read it without locking.
+	 */
+	private static class Routes {
+		private final long[] ips;
+		private final Routing[] routings;
+		private final int mask;
+
+		/**
+		 * Copies a routing table
+		 * @param table The routings to hold
+		 */
+		Routes(Map<Long, Routing> table) {
+			// At most half full, so probes stay short
+			int slots = 2;
+			while (slots < 2 * table.size())
+				slots *= 2;
+			mask = slots - 1;
+			ips = new long[slots];
+			routings = new Routing[slots];
+
+			for (Entry<Long, Routing> routing : table.entrySet()) {
+				int slot = slot(routing.getKey());
+				while (routings[slot] != null)
+					slot = (slot + 1) & mask;
+				ips[slot] = routing.getKey();
+				routings[slot] = routing.getValue();
+			}
+		}
+
+		/**
+		 * @param ip The IP to route to
+		 * @return The routing, or null if there is none
+		 */
+		Routing get(long ip) {
+			int slot = slot(ip);
+			Routing routing;
+			while ((routing = routings[slot]) != null) {
+				if (ips[slot] == ip)
+					return routing;
+				slot = (slot + 1) & mask;
+			}
+			return null;
+		}
+
+		private int slot(long ip) {
+			long h = ip * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+
 	private void printRouting() {
 		String payload = "ROUTING";
 
 		for (Entry<Long, Routing> routing : routingTable.entrySet()) {
 			// dynamically add the link cost
 			payload = payload + " " + routing.getKey() + ":"
-					+ (routing.getValue().cost + routing.getValue().link.getBufferFill());
+					+ (routing.getValue().cost + routing.getValue().link.getBufferFill(this));
 		}
 
 		Packet broadcast = new Packet(ip, -1, payload);
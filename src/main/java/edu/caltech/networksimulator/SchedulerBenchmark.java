@@ -0,0 +1,83 @@
+/**
+ * 
+ */
+package edu.caltech.networksimulator;
+
+import edu.caltech.networksimulator.engine.EventScheduler;
+
+/**
+ * Compares the event schedulers by running each of the standard cases under a
+ * discrete event simulation with each one. Every scheduler must process the
+ * same number of events; only the time taken should differ.
+ * 
+ * Arguments, all optional: the congestion algorithm (TCPReno), the number of
+ * timed runs of each case with each scheduler (3), and the cases to run (all).
+ */
+public class SchedulerBenchmark {
+
+	// Runs done first and not timed, so the JIT has warmed up
+	private static final int WARMUP_RUNS = 1;
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String alg = args.length > 0 ? args[0] : "TCPReno";
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		int[] cases = { 0, 1, 2, 3 };
+		if (args.length > 2) {
+			cases = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++)
+				cases[i - 2] = Integer.parseInt(args[i]);
+		}
+
+		EventScheduler.Type[] types = EventScheduler.Type.values();
+		long[][] times = new long[cases.length][types.length];
+		long[][] events = new long[cases.length][types.length];
+
+		for (int c = 0; c < cases.length; c++) {
+			for (int t = 0; t < types.length; t++) {
+				for (int i = 0; i < WARMUP_RUNS; i++)
+					run(cases[c], alg, types[t]);
+
+				long best = Long.MAX_VALUE;
+				for (int i = 0; i < runs; i++) {
+					long start = System.nanoTime();
+					events[c][t] = run(cases[c], alg, types[t]);
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				times[c][t] = best;
+			}
+		}
+
+		System.out.println();
+		System.out.println("Best of " + runs + " runs, " + alg + ", in ms:");
+		System.out.printf("%-6s", "Case");
+		for (EventScheduler.Type type : types)
+			System.out.printf("%10s", type);
+		System.out.printf("%12s%n", "Events");
+
+		for (int c = 0; c < cases.length; c++) {
+			System.out.printf("%-6d", cases[c]);
+			for (int t = 0; t < types.length; t++)
+				System.out.printf("%10d", times[c][t] / 1000000);
+
+			// The schedulers must all give the same run
+			boolean same = true;
+			for (int t = 1; t < types.length; t++)
+				same &= events[c][t] == events[c][0];
+			System.out.printf("%12s%n", same ? Long.toString(events[c][0]) : "MISMATCH");
+		}
+	}
+
+	private static long run(int n, String alg, EventScheduler.Type type) {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(NetworkSimulator.ExecutionMode.DISCRETE_EVENT);
+		sim.setScheduler(type);
+		SimulationRunner.setupCase(n, sim, alg, null);
+		sim.run();
+		return sim.getEventsProcessed();
+	}
+
+}
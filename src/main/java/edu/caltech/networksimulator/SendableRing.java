@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of packets waiting to cross a threaded link, which any
+ * number of threads may offer to and one thread takes from. It needs no
+ * locks and allocates nothing once made.
+ *
+ * Packets sit in a ring of slots, with what would be the fields of a Sendable
+ * kept in parallel arrays. Each slot has a sequence number saying whether it
+ * is free for the offer at a given position or holds the packet for the take
+ * at a given position. An offer claims a position by moving the tail on with
+ * a compare and set, then fills the slot in and publishes it by moving its
+ * sequence number on.
+ */
+class SendableRing {
+
+	// Most slots a ring may have, whatever the buffer size
+	private static final int MAX_CAPACITY = 1 << 16;
+
+	private final int mask;
+
+	private final AtomicLongArray sequences;
+	private final long[] sendNET;
+	private final Packet[] packets;
+	private final NetworkComponent[] to;
+
+	// Next position to offer at, claimed by offering threads
+	private final AtomicLong tail;
+
+	// Next position to take from, only moved by the taking thread
+	private volatile long head;
+
+	// The taking thread while it waits for a packet, to be woken up
+	private volatile Thread waiter;
+
+	/**
+	 * @param capacity
+	 *            How many packets the ring must be able to hold. It holds at
+	 *            least this many, up to a limit.
+	 */
+	SendableRing(long capacity) {
+		int slots = 2;
+		while (slots < capacity && slots < MAX_CAPACITY)
+			slots *= 2;
+		mask = slots - 1;
+
+		sequences = new AtomicLongArray(slots);
+		for (int i = 0; i < slots; i++)
+			sequences.set(i, i);
+		sendNET = new long[slots];
+		packets = new Packet[slots];
+		to = new NetworkComponent[slots];
+
+		tail = new AtomicLong();
+		head = 0;
+	}
+
+	/**
+	 * Add a packet, from any thread
+	 *
+	 * @param sendNET
+	 *            The clock time the packet cannot be sent before
+	 * @param packet
+	 *            The packet
+	 * @param to
+	 *            The end to send it to
+	 * @return False if the ring is full, in which case nothing was added
+	 */
+	boolean offer(long sendNET, Packet packet, NetworkComponent to) {
+		long position;
+		int slot;
+		while (true) {
+			position = tail.get();
+			slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (difference < 0) {
+				// The slot still holds a packet from a lap ago
+				return false;
+			}
+			// Otherwise another thread got this position first
+		}
+
+		this.sendNET[slot] = sendNET;
+		this.packets[slot] = packet;
+		this.to[slot] = to;
+		// A full volatile write, so the read of the waiter below cannot be
+		// ordered before it and miss a taker that has just gone to sleep
+		sequences.set(slot, position + 1);
+
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+		return true;
+	}
+
+	/**
+	 * Take the oldest packet, waiting for one if there is none. Only one
+	 * thread may take packets.
+	 *
+	 * @param into
+	 *            Where to put the packet taken and where it goes
+	 * @param timeout
+	 *            Longest time to wait in real nanoseconds
+	 * @return False if nothing turned up in time
+	 */
+	boolean poll(Link.Sendable into, long timeout) {
+		if (take(into))
+			return true;
+
+		long deadline = System.nanoTime() + timeout;
+		waiter = Thread.currentThread();
+		try {
+			while (!take(into)) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0 || Thread.interrupted())
+					return false;
+				LockSupport.parkNanos(this, left);
+			}
+			return true;
+		} finally {
+			waiter = null;
+		}
+	}
+
+	private boolean take(Link.Sendable into) {
+		long position = head;
+		int slot = (int) position & mask;
+		if (sequences.get(slot) != position + 1)
+			return false;
+
+		into.sendNET = sendNET[slot];
+		into.packet = packets[slot];
+		into.to = to[slot];
+		packets[slot] = null;
+		to[slot] = null;
+
+		// Free for the offer one lap on
+		sequences.lazySet(slot, position + mask + 1);
+		head = position + 1;
+		return true;
+	}
+
+	/**
+	 * @return whether nothing is waiting or being offered, from any thread
+	 */
+	boolean isEmpty() {
+		return tail.get() == head;
+	}
+
+}
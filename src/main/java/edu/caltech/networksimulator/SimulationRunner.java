@@ -22,6 +22,13 @@ public class SimulationRunner {
 		
 		sim.addDataCollector(gct);
 
+		// Optionally choose how to run it, e.g. DISCRETE_EVENT, and how much
+		// faster than real time a threaded simulation runs
+		if (args.length > 2)
+			sim.setExecutionMode(NetworkSimulator.ExecutionMode.valueOf(args[2].toUpperCase()));
+		if (args.length > 3)
+			sim.setSpeedup(Double.parseDouble(args[3]));
+
 		if (args.length > 0) {
 			try {
 				setupCase(Integer.parseInt(args[0]), sim, args[1], gct);
@@ -93,10 +100,12 @@ public class SimulationRunner {
 		Link l5 = new Link("Link5", 12500000, 10, 64000);
 		sim.addComponent(l5);
 		
-		gct.dontDisplayComponent(l0);
-		gct.dontDisplayComponent(l3);
-		gct.dontDisplayComponent(l4);
-		gct.dontDisplayComponent(l5);
+		if (gct != null) {
+			gct.dontDisplayComponent(l0);
+			gct.dontDisplayComponent(l3);
+			gct.dontDisplayComponent(l4);
+			gct.dontDisplayComponent(l5);
+		}
 
 		// Add source
 		Host source = new Host("Host1", l0, 1000);
@@ -164,12 +173,14 @@ public class SimulationRunner {
 		Link l8 = new Link("Link8", 12500000, 10, 128000);
 		sim.addComponent(l8);
 		
-		gct.dontDisplayComponent(l0);
-		gct.dontDisplayComponent(l4);
-		gct.dontDisplayComponent(l5);
-		gct.dontDisplayComponent(l6);
-		gct.dontDisplayComponent(l7);
-		gct.dontDisplayComponent(l8);
+		if (gct != null) {
+			gct.dontDisplayComponent(l0);
+			gct.dontDisplayComponent(l4);
+			gct.dontDisplayComponent(l5);
+			gct.dontDisplayComponent(l6);
+			gct.dontDisplayComponent(l7);
+			gct.dontDisplayComponent(l8);
+		}
 
 		// Add sources
 		Host source1 = new Host("Source1", l4, 1000);
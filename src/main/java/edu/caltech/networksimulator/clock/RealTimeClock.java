@@ -0,0 +1,36 @@
+/**
+ * 
+ */
+package edu.caltech.networksimulator.clock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock which follows the system's monotonic clock, starting at zero when it
+ * is created.
+ */
+public class RealTimeClock implements SimClock {
+
+	private final long origin;
+
+	public RealTimeClock() {
+		origin = System.nanoTime();
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime() - origin;
+	}
+
+	@Override
+	public void sleep(long nanos) throws InterruptedException {
+		TimeUnit.NANOSECONDS.sleep(nanos);
+	}
+
+	@Override
+	public void park(long nanos) {
+		LockSupport.parkNanos(nanos);
+	}
+
+}
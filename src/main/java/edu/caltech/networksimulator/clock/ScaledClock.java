@@ -0,0 +1,116 @@
+/**
+ * 
+ */
+package edu.caltech.networksimulator.clock;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock which runs at a multiple of real time. A scale of 2 runs twice as
+ * fast as real time, 0.5 half as fast, and 0 stops the clock. The scale can be
+ * changed while running without the clock jumping.
+ * 
+ * Threads sleeping on this clock sleep for clock time, so a threaded
+ * simulation using it runs that many times faster (or slower) than real time.
+ * Scheduling jitter of the real threads is scaled up along with everything
+ * else, so the scale should be kept low enough that the jitter stays small
+ * compared to the link delays being simulated.
+ */
+public class ScaledClock implements SimClock {
+
+	// How often sleepers check whether a paused clock was resumed, in real ns
+	private static final long PAUSED_CHECK_INTERVAL = 1000000;
+
+	// Replaced whole on a change of scale, so readers never need a lock
+	private volatile Rate rate;
+
+	/**
+	 * Creates a new clock at zero
+	 * 
+	 * @param scale
+	 *            How many nanoseconds this clock advances per real nanosecond
+	 */
+	public ScaledClock(double scale) {
+		if (scale < 0)
+			throw new IllegalArgumentException("Clock scale cannot be negative: " + scale);
+
+		this.rate = new Rate(System.nanoTime(), 0, scale);
+	}
+
+	@Override
+	public long nanoTime() {
+		return rate.at(System.nanoTime());
+	}
+
+	/**
+	 * Change how fast this clock runs from now on
+	 * 
+	 * @param scale
+	 *            How many nanoseconds this clock advances per real nanosecond
+	 */
+	public synchronized void setScale(double scale) {
+		if (scale < 0)
+			throw new IllegalArgumentException("Clock scale cannot be negative: " + scale);
+
+		long real = System.nanoTime();
+		rate = new Rate(real, rate.at(real), scale);
+	}
+
+	/**
+	 * @return how many nanoseconds this clock advances per real nanosecond
+	 */
+	public double getScale() {
+		return rate.scale;
+	}
+
+	/**
+	 * Stops the clock. Anything sleeping on it stays asleep until resumed.
+	 */
+	public void pause() {
+		setScale(0);
+	}
+
+	@Override
+	public void park(long nanos) {
+		double scale = getScale();
+		LockSupport.parkNanos(scale == 0 ? PAUSED_CHECK_INTERVAL : Math.max((long) (nanos / scale), 1));
+	}
+
+	@Override
+	public void sleep(long nanos) throws InterruptedException {
+		long wakeAt = nanoTime() + nanos;
+
+		// Sleep in real time for what is left, then check again in case the
+		// scale changed in the meantime
+		long remaining;
+		while ((remaining = wakeAt - nanoTime()) > 0) {
+			double scale = getScale();
+			long real = scale == 0 ? PAUSED_CHECK_INTERVAL : Math.max((long) (remaining / scale), 1);
+			LockSupport.parkNanos(real);
+
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/*
+	 * Real and scaled time of the last change of scale, and the scale since
+	 */
+	private static final class Rate {
+
+		final long realBase, scaledBase;
+		final double scale;
+
+		Rate(long realBase, long scaledBase, double scale) {
+			this.realBase = realBase;
+			this.scaledBase = scaledBase;
+			this.scale = scale;
+		}
+
+		long at(long real) {
+			return scaledBase + (long) ((real - realBase) * scale);
+		}
+
+	}
+
+}
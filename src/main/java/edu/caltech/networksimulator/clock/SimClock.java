@@ -0,0 +1,46 @@
+/**
+ * 
+ */
+package edu.caltech.networksimulator.clock;
+
+/**
+ * The source of time for a simulation. Every timestamp taken by a component
+ * (sent times, RTTs, timeouts, data capture) comes from the component's clock,
+ * so swapping the clock changes how simulated time relates to real time.
+ * 
+ * Times are in nanoseconds from an arbitrary origin which is the same for all
+ * components sharing a clock.
+ */
+public interface SimClock {
+
+	/**
+	 * Get the current time of this clock
+	 * 
+	 * @return The time in nanoseconds
+	 */
+	public long nanoTime();
+
+	/**
+	 * Block the calling thread for the given amount of this clock's time. Used
+	 * by threaded simulations for every delay, so that delays stretch and
+	 * shrink along with the clock.
+	 * 
+	 * @param nanos
+	 *            How long to block, in nanoseconds of this clock
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while blocked
+	 */
+	public void sleep(long nanos) throws InterruptedException;
+
+	/**
+	 * Park the calling thread for up to the given amount of this clock's time.
+	 * Unlike sleep, this returns early if the thread is unparked (see
+	 * LockSupport), and may return spuriously, so callers should re-check
+	 * whatever they are waiting for.
+	 * 
+	 * @param nanos
+	 *            The longest time to park, in nanoseconds of this clock
+	 */
+	public void park(long nanos);
+
+}
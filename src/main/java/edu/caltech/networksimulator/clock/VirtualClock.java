@@ -0,0 +1,62 @@
+/**
+ * 
+ */
+package edu.caltech.networksimulator.clock;
+
+import edu.caltech.networksimulator.NetworkException;
+
+/**
+ * A clock which only moves when it is told to. Used by event driven
+ * simulations, where time jumps from one event to the next.
+ */
+public class VirtualClock implements SimClock {
+
+	private long now;
+
+	public VirtualClock() {
+		now = 0;
+	}
+
+	@Override
+	public long nanoTime() {
+		return now;
+	}
+
+	/**
+	 * Virtual time only moves between events, so nothing can wait for it to
+	 * pass. Components should schedule an event instead.
+	 */
+	@Override
+	public void sleep(long nanos) {
+		throw new NetworkException("Cannot sleep on a virtual clock, schedule an event instead");
+	}
+
+	@Override
+	public void park(long nanos) {
+		throw new NetworkException("Cannot park on a virtual clock, schedule an event instead");
+	}
+
+	/**
+	 * Move this clock forwards
+	 * 
+	 * @param time
+	 *            The new time in nanoseconds, which must not be in the past
+	 */
+	public void advanceTo(long time) {
+		if (time < now)
+			throw new NetworkException("Virtual clock cannot go backwards: " + time + " < " + now);
+		now = time;
+	}
+
+	/**
+	 * Move this clock backwards, which only an optimistic simulator undoing
+	 * events should do
+	 * 
+	 * @param time
+	 *            The new time in nanoseconds
+	 */
+	public void rewindTo(long time) {
+		now = time;
+	}
+
+}
@@ -4,6 +4,7 @@
 package edu.caltech.networksimulator.datacapture;
 
 import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.clock.SimClock;
 
 /**
  * @author Francesco Macagno
@@ -21,7 +22,8 @@ public interface DataCaptureTool {
 	 * @param dataName
 	 *            Name of the data
 	 * @param time
-	 *            Timestamp of data point
+	 *            Timestamp of data point, in milliseconds of the simulation's
+	 *            clock
 	 * @param value
 	 *            Value of data point
 	 */
@@ -37,7 +39,8 @@ public interface DataCaptureTool {
 	 * @param dataName
 	 *            Name of the data
 	 * @param time
-	 *            Timestamp of data point
+	 *            Timestamp of data point, in milliseconds of the simulation's
+	 *            clock
 	 * @param value
 	 *            Value of data point
 	 */
@@ -53,7 +56,8 @@ public interface DataCaptureTool {
 	 * @param dataName
 	 *            Name of the data
 	 * @param time
-	 *            Timestamp of data point
+	 *            Timestamp of data point, in milliseconds of the simulation's
+	 *            clock
 	 * @param value
 	 *            Value of data point
 	 */
@@ -69,7 +73,8 @@ public interface DataCaptureTool {
 	 * @param dataName
 	 *            Name of the data
 	 * @param time
-	 *            Timestamp of data point
+	 *            Timestamp of data point, in milliseconds of the simulation's
+	 *            clock
 	 * @param value
 	 *            Value of data point
 	 */
@@ -92,6 +97,15 @@ public interface DataCaptureTool {
 
 	public void setMax(NetworkComponent n, String dataName, double value);
 
+	/**
+	 * Tells the data collector which clock the timestamps of its data come
+	 * from. Called before start(). Some implementations may not use this.
+	 * 
+	 * @param clock
+	 *            The clock of the simulation
+	 */
+	public void setClock(SimClock clock);
+
 	/**
 	 * Tell the data collector to start collecting data. Some implementations
 	 * may not use this.
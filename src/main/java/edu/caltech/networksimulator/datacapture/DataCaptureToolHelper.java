@@ -4,6 +4,7 @@ import java.awt.EventQueue;
 import java.util.List;
 
 import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.engine.EventSimulator;
 
 public class DataCaptureToolHelper {
 
@@ -19,7 +20,7 @@ public class DataCaptureToolHelper {
 			final NetworkComponent n, final String dataName, final long time,
 			final int value) {
 
-		EventQueue.invokeLater(new Runnable() {
+		post(dcts, new Runnable() {
 
 			@Override
 			public void run() {
@@ -40,7 +41,7 @@ public class DataCaptureToolHelper {
 	 */
 	public static void addData(final List<DataCaptureTool> dcts, final NetworkComponent n,
 			final String dataName, final long time, final boolean value) {
-		EventQueue.invokeLater(new Runnable() {
+		post(dcts, new Runnable() {
 
 			@Override
 			public void run() {
@@ -61,7 +62,7 @@ public class DataCaptureToolHelper {
 	 */
 	public static void addData(final List<DataCaptureTool> dcts, final NetworkComponent n,
 			final String dataName, final long time, final long value) {
-		EventQueue.invokeLater(new Runnable() {
+		post(dcts, new Runnable() {
 
 			@Override
 			public void run() {
@@ -82,7 +83,7 @@ public class DataCaptureToolHelper {
 	 */
 	public static void addData(final List<DataCaptureTool> dcts, final NetworkComponent n,
 			final String dataName, final long time, final double value) {
-		EventQueue.invokeLater(new Runnable() {
+		post(dcts, new Runnable() {
 
 			@Override
 			public void run() {
@@ -93,4 +94,22 @@ public class DataCaptureToolHelper {
 		});
 	}
 
+	/*
+	 * Hands data to the event queue once the event which produced it can no
+	 * longer be undone, which is right away unless simulating optimistically.
+	 * Skipped when there is nobody to hand it to, as in headless runs.
+	 */
+	private static void post(List<DataCaptureTool> dcts, final Runnable r) {
+		if (dcts.isEmpty())
+			return;
+
+		EventSimulator.whenCommitted(new Runnable() {
+
+			@Override
+			public void run() {
+				EventQueue.invokeLater(r);
+			}
+		});
+	}
+
 }
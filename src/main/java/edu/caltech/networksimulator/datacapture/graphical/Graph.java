@@ -13,10 +13,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 
+import edu.caltech.networksimulator.clock.RealTimeClock;
+import edu.caltech.networksimulator.clock.SimClock;
+
 /**
  * @author Francesco
  *
@@ -29,6 +33,7 @@ public class Graph extends JComponent {
 	private long dataRange;
 	private int smoothingRange;
 	private AxisLabel axisLabel;
+	private SimClock clock;
 
 	/**
 	 * @param labels
@@ -39,6 +44,7 @@ public class Graph extends JComponent {
 		this.dataRange = dataRange;
 		this.legend = legend;
 		this.axisLabel = axisLabel;
+		this.clock = new RealTimeClock();
 
 		data = new TreeMap<String, DataLine>();
 
@@ -62,6 +68,15 @@ public class Graph extends JComponent {
 
 	}
 
+	/**
+	 * Set the clock which data timestamps come from, so the graph scrolls
+	 * with the simulation
+	 * @param clock
+	 */
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+	}
+
 	public void setMaxValue(String dataName, double value) {
 		getDataLine(dataName).maxValue = value;
 		axisLabel.setMax(dataName, value);
@@ -198,13 +213,15 @@ public class Graph extends JComponent {
 			// Adding -2 accounts for border
 			double scalar = (Graph.this.getHeight() - 2) / maxValue;
 
+			long now = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+
 			synchronized (this) {
 				for (Entry<Long, Double> dat : values.entrySet()) {
 
 					int newHeight = (int) (Graph.this.getHeight() - 2 - dat.getValue() * scalar);
 
 					int x = (int) (Graph.this.getWidth() - Graph.this.getWidth()
-							* ((double) (System.currentTimeMillis() - dat.getKey()) / timeRange));
+							* ((double) (now - dat.getKey()) / timeRange));
 
 					if (lastHeight == -1)
 						lastHeight = newHeight;
@@ -216,7 +233,7 @@ public class Graph extends JComponent {
 
 					// Let the last one paint so that the graph continues to the
 					// end
-					if (dat.getKey() < System.currentTimeMillis() - timeRange)
+					if (dat.getKey() < now - timeRange)
 						break;
 				}
 			}
@@ -26,6 +26,8 @@ import javax.swing.Timer;
 import javax.swing.border.Border;
 
 import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.clock.RealTimeClock;
+import edu.caltech.networksimulator.clock.SimClock;
 import edu.caltech.networksimulator.datacapture.DataCaptureTool;
 
 public class GraphicalCaptureTool extends JFrame implements DataCaptureTool, ActionListener, MouseWheelListener {
@@ -37,6 +39,7 @@ public class GraphicalCaptureTool extends JFrame implements DataCaptureTool, Act
 	private TreeMap<String, Boolean> binaryTracker;
 
 	private Timer timer;
+	private SimClock clock;
 
 	/**
 	 * 
@@ -45,6 +48,7 @@ public class GraphicalCaptureTool extends JFrame implements DataCaptureTool, Act
 		components = new TreeMap<String, NetworkComponentContainer>();
 		binaryTracker = new TreeMap<String, Boolean>();
 		timer = new Timer(50, this);
+		clock = new RealTimeClock();
 
 		getContentPane().setLayout(new BoxLayout(getContentPane(), BoxLayout.Y_AXIS));
 
@@ -55,6 +59,13 @@ public class GraphicalCaptureTool extends JFrame implements DataCaptureTool, Act
 
 	}
 
+	@Override
+	public synchronized void setClock(SimClock clock) {
+		this.clock = clock;
+		for (NetworkComponentContainer list : components.values())
+			list.g.setClock(clock);
+	}
+
 	@Override
 	public void start() {
 		this.setVisible(true);
@@ -115,6 +126,7 @@ public class GraphicalCaptureTool extends JFrame implements DataCaptureTool, Act
 		NetworkComponentContainer list = components.get(n.getComponentName());
 		if (list == null) {
 			list = new NetworkComponentContainer(n.getComponentName());
+			list.g.setClock(clock);
 			components.put(n.getComponentName(), list);
 			getContentPane().add(list);
 			
@@ -0,0 +1,243 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A calendar queue (R. Brown, 1988).
+ *
+ * Time is divided into days of equal width, and a year of days is laid out as
+ * an array of buckets, each holding a short sorted list of events. An event
+ * goes into the bucket of its day modulo the length of the year, and events
+ * are taken by walking through the days in order, skipping events which belong
+ * to a later year. When events are spaced about a day apart both are O(1).
+ *
+ * Whenever the number of events doubles or halves the queue is rebuilt with a
+ * matching number of buckets, and the day width is set from the spacing of the
+ * earliest events, so the queue follows both the number of pending events and
+ * how far apart they are.
+ */
+public class CalendarQueue implements EventScheduler {
+
+	private static final int MIN_BUCKETS = 2;
+	private static final int SAMPLE_SIZE = 25;
+	private static final long INITIAL_WIDTH = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private Node[] buckets;
+	private int mask;
+	private long width;
+	private int size;
+
+	// Bucket to look in next, and the end of its day in the current year
+	private int lastBucket;
+	private long bucketTop;
+
+	// Time of the last event taken
+	private long lastTime;
+
+	public CalendarQueue() {
+		size = 0;
+		lastTime = 0;
+		build(MIN_BUCKETS, INITIAL_WIDTH);
+	}
+
+	@Override
+	public void add(Event e) {
+		insert(e);
+		size++;
+
+		// Went back to a day which was already passed over while looking
+		if (e.getTime() < bucketTop - width)
+			startAt(e.getTime());
+
+		if (size > 2 * buckets.length)
+			resize(2 * buckets.length);
+	}
+
+	@Override
+	public Event peek() {
+		int i = locate();
+		return i < 0 ? null : buckets[i].event;
+	}
+
+	@Override
+	public Event poll() {
+		int i = locate();
+		if (i < 0)
+			return null;
+
+		Node head = buckets[i];
+		buckets[i] = head.next;
+		size--;
+		lastTime = head.event.getTime();
+
+		if (size < buckets.length / 2 && buckets.length > MIN_BUCKETS)
+			resize(buckets.length / 2);
+		return head.event;
+	}
+
+	@Override
+	public boolean remove(Event e) {
+		int i = bucketOf(e.getTime());
+		Node previous = null;
+		for (Node n = buckets[i]; n != null; n = n.next) {
+			if (n.event == e) {
+				if (previous == null)
+					buckets[i] = n.next;
+				else
+					previous.next = n.next;
+				size--;
+				return true;
+			}
+			previous = n;
+		}
+		return false;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of buckets in a year
+	 */
+	public int getBuckets() {
+		return buckets.length;
+	}
+
+	/**
+	 * @return the width of a day in nanoseconds
+	 */
+	public long getWidth() {
+		return width;
+	}
+
+	/*
+	 * Find the bucket holding the earliest event, and remember it as the
+	 * place to start looking next time
+	 */
+	private int locate() {
+		if (size == 0)
+			return -1;
+
+		int i = lastBucket;
+		long top = bucketTop;
+		for (int days = 0; days < buckets.length; days++) {
+			Node head = buckets[i];
+			if (head != null && head.event.getTime() < top) {
+				lastBucket = i;
+				bucketTop = top;
+				return i;
+			}
+			i = (i + 1) & mask;
+			top += width;
+		}
+
+		// Nothing for a whole year, so jump straight to the earliest event
+		int earliest = -1;
+		for (i = 0; i < buckets.length; i++) {
+			if (buckets[i] != null && (earliest < 0 || buckets[i].event.compareTo(buckets[earliest].event) < 0))
+				earliest = i;
+		}
+		startAt(buckets[earliest].event.getTime());
+		return earliest;
+	}
+
+	private void startAt(long time) {
+		lastBucket = bucketOf(time);
+		bucketTop = (time / width + 1) * width;
+	}
+
+	private int bucketOf(long time) {
+		return (int) ((time / width) & mask);
+	}
+
+	private void insert(Event e) {
+		int i = bucketOf(e.getTime());
+		Node node = new Node(e);
+
+		if (buckets[i] == null || e.compareTo(buckets[i].event) < 0) {
+			node.next = buckets[i];
+			buckets[i] = node;
+			return;
+		}
+
+		Node n = buckets[i];
+		while (n.next != null && n.next.event.compareTo(e) <= 0)
+			n = n.next;
+		node.next = n.next;
+		n.next = node;
+	}
+
+	/*
+	 * Rebuild with a new number of buckets, and a day width fitting the
+	 * spacing of the earliest events
+	 */
+	private void resize(int count) {
+		List<Event> events = new ArrayList<Event>(size);
+		for (Node head : buckets) {
+			for (Node n = head; n != null; n = n.next)
+				events.add(n.event);
+		}
+		Collections.sort(events);
+
+		build(count, sampleWidth(events));
+		for (Event e : events)
+			insert(e);
+		startAt(events.isEmpty() ? lastTime : Math.min(lastTime, events.get(0).getTime()));
+	}
+
+	/*
+	 * Three times the average spacing of the earliest events, leaving out
+	 * unusually large gaps
+	 */
+	private long sampleWidth(List<Event> sorted) {
+		int samples = Math.min(sorted.size(), SAMPLE_SIZE);
+		if (samples < 2)
+			return width;
+
+		long span = sorted.get(samples - 1).getTime() - sorted.get(0).getTime();
+		double average = (double) span / (samples - 1);
+
+		long total = 0;
+		int gaps = 0;
+		for (int i = 1; i < samples; i++) {
+			long gap = sorted.get(i).getTime() - sorted.get(i - 1).getTime();
+			if (gap <= 2 * average) {
+				total += gap;
+				gaps++;
+			}
+		}
+
+		// All at the same time tells us nothing about the spacing
+		if (total == 0)
+			return width;
+		return Math.max(1, 3 * total / gaps);
+	}
+
+	private void build(int count, long width) {
+		this.buckets = new Node[count];
+		this.mask = count - 1;
+		this.width = width;
+		startAt(lastTime);
+	}
+
+	/**
+	 * An entry in a bucket's list
+	 */
+	private static class Node {
+		final Event event;
+		Node next;
+
+		Node(Event event) {
+			this.event = event;
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.Packet;
+
+/**
+ * A single thing that will happen at a given simulated time.
+ *
+ * Events are plain data rather than callbacks: the handler decides what to do
+ * based on the type, which is a constant private to the handler's class. This
+ * keeps the pending event set inspectable (and eventually saveable) instead of
+ * being a heap of closures.
+ */
+public class Event implements Comparable<Event> {
+
+	private final long time;
+	private final int depth;
+	private final int creator;
+	private final long sequence;
+
+	private final EventHandler target;
+	private final EventSimulator.Registration targetRegistration;
+	private final int type;
+
+	private final Packet packet;
+	private final NetworkComponent source;
+	private final long argument;
+
+	/**
+	 * Creates a new event. Only EventSimulator should create these, since it
+	 * owns the sequence numbers.
+	 *
+	 * @param time
+	 *            Simulated time in nanoseconds
+	 * @param depth
+	 *            How many events at the same time led to this one
+	 * @param creator
+	 *            Number of the handler which scheduled this event
+	 * @param sequence
+	 *            How many events the creator scheduled before this one
+	 * @param target
+	 *            Who handles the event
+	 * @param targetRegistration
+	 *            The simulator's registration of the target
+	 * @param type
+	 *            Handler defined event type
+	 * @param packet
+	 *            Packet carried by the event, may be null
+	 * @param source
+	 *            Component the event came from, may be null
+	 * @param argument
+	 *            Handler defined argument
+	 */
+	Event(long time, int depth, int creator, long sequence, EventHandler target, EventSimulator.Registration targetRegistration,
+			int type, Packet packet, NetworkComponent source, long argument) {
+		this.time = time;
+		this.depth = depth;
+		this.creator = creator;
+		this.sequence = sequence;
+		this.target = target;
+		this.targetRegistration = targetRegistration;
+		this.type = type;
+		this.packet = packet;
+		this.source = source;
+		this.argument = argument;
+	}
+
+	/**
+	 * @return the simulated time of this event in nanoseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return how many events at the same time led to this one, zero if it
+	 *         was scheduled at an earlier time
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the number of the handler which scheduled this event
+	 */
+	public int getCreator() {
+		return creator;
+	}
+
+	/**
+	 * @return the order in which this event was scheduled by its creator
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the handler of this event
+	 */
+	public EventHandler getTarget() {
+		return target;
+	}
+
+	EventSimulator.Registration getTargetRegistration() {
+		return targetRegistration;
+	}
+
+	/**
+	 * @return the handler defined type of this event
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the packet this event carries, or null
+	 */
+	public Packet getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return the component this event came from, or null
+	 */
+	public NetworkComponent getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the handler defined argument
+	 */
+	public long getArgument() {
+		return argument;
+	}
+
+	/**
+	 * Events are ordered by time, then by who scheduled them and in which
+	 * order, so that runs are repeatable. An event scheduled for the current
+	 * time comes after the event which scheduled it, so every event comes
+	 * after its cause and events are always handled in this order.
+	 */
+	@Override
+	public int compareTo(Event e) {
+		if (time != e.time)
+			return time < e.time ? -1 : 1;
+		if (depth != e.depth)
+			return depth < e.depth ? -1 : 1;
+		if (creator != e.creator)
+			return creator < e.creator ? -1 : 1;
+		return sequence < e.sequence ? -1 : (sequence == e.sequence ? 0 : 1);
+	}
+
+	@Override
+	public String toString() {
+		return "{Time: " + time + " Target: " + target + " Type: " + type + " Packet: " + packet + "}";
+	}
+
+}
@@ -0,0 +1,23 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+/**
+ * Anything which can be the target of an Event scheduled on an EventSimulator.
+ * NetworkComponents are the usual handlers, but the simulator itself also
+ * schedules bookkeeping events.
+ */
+public interface EventHandler {
+
+	/**
+	 * Handle an event which was scheduled for this handler and whose time has
+	 * come. The simulated clock reads the event's time for the duration of the
+	 * call.
+	 *
+	 * @param e
+	 *            The event
+	 */
+	public void handleEvent(Event e);
+
+}
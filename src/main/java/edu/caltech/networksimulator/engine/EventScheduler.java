@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+/**
+ * The set of pending events of an EventSimulator, which hands them out in
+ * order. Every implementation must give exactly the order of
+ * Event.compareTo(), so that the choice of scheduler never changes the
+ * results of a simulation, only how fast it runs.
+ */
+public interface EventScheduler {
+
+	/**
+	 * The available schedulers
+	 */
+	public static enum Type {
+		/**
+		 * A binary heap: O(log n) to add and take events
+		 */
+		HEAP,
+
+		/**
+		 * A calendar queue, which spreads events over a year of time buckets
+		 * and resizes itself as the number of events and their spacing change.
+		 * O(1) amortized when the spacing of events is fairly even.
+		 */
+		CALENDAR,
+
+		/**
+		 * A ladder queue, which sorts events lazily, splitting crowded time
+		 * buckets into finer ones only when they are about to be needed. O(1)
+		 * amortized and robust to uneven spacing.
+		 */
+		LADDER;
+
+		/**
+		 * Create an empty scheduler of this type
+		 *
+		 * @return The scheduler
+		 */
+		public EventScheduler create() {
+			switch (this) {
+			case CALENDAR:
+				return new CalendarQueue();
+			case LADDER:
+				return new LadderQueue();
+			default:
+				return new HeapScheduler();
+			}
+		}
+	}
+
+	/**
+	 * Add an event
+	 *
+	 * @param e
+	 *            The event, which must not be earlier than the last event
+	 *            taken
+	 */
+	public void add(Event e);
+
+	/**
+	 * @return the earliest event, or null if there is none
+	 */
+	public Event peek();
+
+	/**
+	 * Take the earliest event
+	 *
+	 * @return The event, or null if there is none
+	 */
+	public Event poll();
+
+	/**
+	 * Remove an event which was added but not yet taken
+	 *
+	 * @param e
+	 *            The event, compared by identity
+	 * @return Whether the event was found
+	 */
+	public boolean remove(Event e);
+
+	/**
+	 * @return the number of events
+	 */
+	public int size();
+
+}
@@ -0,0 +1,456 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.clock.VirtualClock;
+
+/**
+ * A sequential discrete event simulator.
+ *
+ * Keeps a simulated clock and a queue of pending events ordered by time.
+ * Running the simulator repeatedly pops the earliest event, advances the clock
+ * to its time and hands it to its target. Nothing ever sleeps, so a run takes
+ * only as long as the processing of its events, and two runs of the same
+ * network produce the same results.
+ *
+ * Events at the same time are ordered by how many other events at that time
+ * led to them, then by which handler scheduled them, then by the order that
+ * handler scheduled them in. Handlers are numbered in the order
+ * they register, so this order does not depend on how handlers are spread over
+ * the partitions of a ParallelEventSimulator, and a partitioned run processes
+ * exactly the same events in the same order as a sequential one.
+ *
+ * All times are in nanoseconds of simulated time, starting at zero.
+ */
+public class EventSimulator {
+
+	// The simulator handling events on each thread, if any
+	private static final ThreadLocal<EventSimulator> running = new ThreadLocal<EventSimulator>();
+
+	/**
+	 * The scheduler used unless another one is asked for
+	 */
+	public static final EventScheduler.Type DEFAULT_SCHEDULER = EventScheduler.Type.HEAP;
+
+	final EventScheduler queue;
+	final VirtualClock clock;
+
+	// Handlers which can be scheduled, shared by all partitions of a parallel
+	// simulator. Only modified while setting up, before any events run.
+	private final Map<EventHandler, Registration> registry;
+
+	// Registrations of the handlers this simulator runs
+	final List<Registration> registrations;
+
+	// When a partition of a parallel simulator, the simulator it belongs to
+	// and where other partitions put events for this one
+	private final ParallelEventSimulator group;
+	private final ConcurrentLinkedQueue<Event> inbox;
+
+	// The event being handled, and the earliest time another partition may
+	// be sent an event at
+	Event current;
+	long windowEnd;
+
+	long eventsProcessed;
+
+	// IDs handed out while handling this simulator's events
+	final UniqueIds.Block ids = new UniqueIds.Block();
+
+	private boolean stop;
+
+	/**
+	 * Creates a new simulator with an empty queue at time zero
+	 */
+	public EventSimulator() {
+		this(DEFAULT_SCHEDULER);
+	}
+
+	/**
+	 * Creates a new simulator with an empty queue at time zero
+	 *
+	 * @param scheduler
+	 *            What kind of scheduler to keep pending events in
+	 */
+	public EventSimulator(EventScheduler.Type scheduler) {
+		this(null, new IdentityHashMap<EventHandler, Registration>(), scheduler);
+	}
+
+	/**
+	 * Creates a new partition of a parallel simulator
+	 *
+	 * @param group
+	 *            The parallel simulator
+	 * @param registry
+	 *            Handler registrations shared by all partitions
+	 * @param scheduler
+	 *            What kind of scheduler to keep pending events in
+	 */
+	EventSimulator(ParallelEventSimulator group, Map<EventHandler, Registration> registry,
+			EventScheduler.Type scheduler) {
+		queue = scheduler.create();
+		clock = new VirtualClock();
+		this.registry = registry;
+		registrations = new ArrayList<Registration>();
+		this.group = group;
+		inbox = new ConcurrentLinkedQueue<Event>();
+		windowEnd = Long.MAX_VALUE;
+		eventsProcessed = 0;
+		stop = false;
+	}
+
+	/**
+	 * Get the current simulated time
+	 *
+	 * @return The time in nanoseconds
+	 */
+	public long now() {
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Get the simulated clock, which components started under this simulator
+	 * use for all their timestamps
+	 *
+	 * @return The clock
+	 */
+	public VirtualClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Register an event handler which is run by this simulator. Every handler
+	 * must be registered before events are scheduled for it; components do so
+	 * in NetworkComponent.start().
+	 *
+	 * @param handler
+	 *            The handler
+	 */
+	public void register(EventHandler handler) {
+		synchronized (registry) {
+			if (registry.containsKey(handler))
+				throw new NetworkException("Event handler registered twice: " + handler);
+			Registration r = new Registration(registry.size(), handler, this);
+			registry.put(handler, r);
+			registrations.add(r);
+		}
+	}
+
+	/**
+	 * Get the simulator which runs the given component. This is this
+	 * simulator unless it is one partition of a parallel simulator.
+	 *
+	 * @param n
+	 *            The component
+	 * @return The simulator to start the component under
+	 */
+	public EventSimulator simulatorOf(NetworkComponent n) {
+		return group == null ? this : group.getPartition(n);
+	}
+
+	/**
+	 * Schedule an event after the given delay
+	 *
+	 * @param delay
+	 *            Delay from now in nanoseconds, must not be negative
+	 * @param target
+	 *            Who handles the event
+	 * @param type
+	 *            Handler defined type
+	 * @return The scheduled event
+	 */
+	public Event schedule(long delay, EventHandler target, int type) {
+		return scheduleAt(now() + delay, target, type, null, null, 0);
+	}
+
+	/**
+	 * Schedule an event after the given delay
+	 *
+	 * @param delay
+	 *            Delay from now in nanoseconds, must not be negative
+	 * @param target
+	 *            Who handles the event
+	 * @param type
+	 *            Handler defined type
+	 * @param argument
+	 *            Handler defined argument
+	 * @return The scheduled event
+	 */
+	public Event schedule(long delay, EventHandler target, int type, long argument) {
+		return scheduleAt(now() + delay, target, type, null, null, argument);
+	}
+
+	/**
+	 * Schedule an event at an absolute simulated time. The target may belong
+	 * to another partition of a parallel simulator, as long as the time is no
+	 * earlier than the end of the current window.
+	 *
+	 * @param time
+	 *            Time in nanoseconds, must not be in the past
+	 * @param target
+	 *            Who handles the event
+	 * @param type
+	 *            Handler defined type
+	 * @param packet
+	 *            Packet carried by the event, may be null
+	 * @param source
+	 *            Component the event came from, may be null
+	 * @param argument
+	 *            Handler defined argument
+	 * @return The scheduled event
+	 */
+	public Event scheduleAt(long time, EventHandler target, int type, Packet packet, NetworkComponent source,
+			long argument) {
+		if (time < now())
+			throw new NetworkException("Cannot schedule an event in the past: " + time + " < " + now());
+
+		Registration to = getRegistration(target);
+		Registration by = current != null ? current.getTargetRegistration() : to;
+		int depth = current != null && current.getTime() == time ? current.getDepth() + 1 : 0;
+
+		Event e = new Event(time, depth, by.id, by.nextSequence++, target, to, type, packet, source, argument);
+		send(e);
+		return e;
+	}
+
+	/**
+	 * Queue a newly scheduled event, or deliver it to the partition which
+	 * runs its target
+	 *
+	 * @param e
+	 *            The new event
+	 */
+	void send(Event e) {
+		EventSimulator owner = e.getTargetRegistration().owner;
+		if (owner == this) {
+			queue.add(e);
+		} else {
+			if (e.getTime() < windowEnd)
+				throw new NetworkException("Event for another partition is inside the lookahead window: " + e);
+			owner.deliver(e);
+		}
+	}
+
+	/**
+	 * Accept an event sent by another partition. Called on the sending
+	 * partition's thread.
+	 *
+	 * @param e
+	 *            The event
+	 */
+	void deliver(Event e) {
+		inbox.add(e);
+	}
+
+	private Registration getRegistration(EventHandler target) {
+		Registration r = registry.get(target);
+		if (r == null) {
+			// Sequential simulators number handlers as they turn up, which
+			// is repeatable since everything happens on one thread
+			if (group != null)
+				throw new NetworkException("Event handler was never registered: " + target);
+			register(target);
+			r = registry.get(target);
+		}
+		return r;
+	}
+
+	/**
+	 * Process events until the queue is empty or stop() is called.
+	 */
+	public void run() {
+		runUntil(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Process events until the queue is empty, stop() is called, or the next
+	 * event is after the given time.
+	 *
+	 * @param endTime
+	 *            Last simulated time (inclusive) to process events at
+	 */
+	public void runUntil(long endTime) {
+		setRunning(this);
+		try {
+			while (!stop) {
+				Event e = queue.peek();
+				if (e == null || e.getTime() > endTime)
+					break;
+
+				process(queue.poll());
+			}
+		} finally {
+			setRunning(null);
+		}
+	}
+
+	/**
+	 * Handle an event which has been taken off the queue
+	 *
+	 * @param e
+	 *            The event
+	 */
+	void process(Event e) {
+		clock.advanceTo(e.getTime());
+		current = e;
+		try {
+			e.getTarget().handleEvent(e);
+		} finally {
+			current = null;
+		}
+		eventsProcessed++;
+	}
+
+	/**
+	 * Run an action with effects outside of the simulation, such as output,
+	 * once the event being handled on this thread can no longer be undone.
+	 * That is right away, except under an optimistic simulator.
+	 *
+	 * @param action
+	 *            The action
+	 */
+	public static void whenCommitted(Runnable action) {
+		EventSimulator sim = running.get();
+		if (sim == null)
+			action.run();
+		else
+			sim.commit(action);
+	}
+
+	/**
+	 * Run an action once the current event is committed
+	 *
+	 * @param action
+	 *            The action
+	 */
+	void commit(Runnable action) {
+		action.run();
+	}
+
+	/**
+	 * Whether the event being handled on this thread may be undone and
+	 * handled again, in which case nothing it throws away may be reused.
+	 * That is only ever so under an optimistic simulator.
+	 *
+	 * @return True if the event may be undone
+	 */
+	public static boolean isSpeculative() {
+		EventSimulator sim = running.get();
+		return sim != null && sim.speculative();
+	}
+
+	/**
+	 * @return whether events this simulator handles may be undone
+	 */
+	boolean speculative() {
+		return false;
+	}
+
+	/**
+	 * @return the simulator handling events on the current thread, or null
+	 */
+	static EventSimulator getRunning() {
+		return running.get();
+	}
+
+	/**
+	 * Mark the current thread as handling this simulator's events, or no
+	 * simulator's if null
+	 *
+	 * @param sim
+	 *            The simulator
+	 */
+	static void setRunning(EventSimulator sim) {
+		if (sim == null)
+			running.remove();
+		else
+			running.set(sim);
+	}
+
+	/**
+	 * Process one window of a parallel simulation: every event before the
+	 * window end. Events for other partitions must be at or after it.
+	 *
+	 * @param end
+	 *            The (exclusive) end of the window
+	 */
+	void runWindow(long end) {
+		windowEnd = end;
+		runUntil(end - 1);
+	}
+
+	/**
+	 * Move events sent by other partitions into the queue
+	 */
+	void drainInbox() {
+		Event e;
+		while ((e = inbox.poll()) != null)
+			queue.add(e);
+	}
+
+	/**
+	 * @return the time of the next event, or Long.MAX_VALUE if there is none
+	 */
+	long nextEventTime() {
+		Event e = queue.peek();
+		return e == null ? Long.MAX_VALUE : e.getTime();
+	}
+
+	/**
+	 * Stop processing events after the current one completes
+	 */
+	public void stop() {
+		stop = true;
+	}
+
+	/**
+	 * @return whether stop() has been called
+	 */
+	public boolean isStopped() {
+		return stop;
+	}
+
+	/**
+	 * @return the number of events which are waiting to be processed
+	 */
+	public int getPendingEvents() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of events processed so far
+	 */
+	public long getEventsProcessed() {
+		return eventsProcessed;
+	}
+
+	/**
+	 * What the simulator knows about a handler: its number, which simulator
+	 * runs it, and how many events it has scheduled. The count is only ever
+	 * touched by the owning simulator's thread.
+	 */
+	static class Registration {
+		final int id;
+		final EventHandler handler;
+		final EventSimulator owner;
+		long nextSequence;
+
+		Registration(int id, EventHandler handler, EventSimulator owner) {
+			this.id = id;
+			this.handler = handler;
+			this.owner = owner;
+			this.nextSequence = 0;
+		}
+	}
+
+}
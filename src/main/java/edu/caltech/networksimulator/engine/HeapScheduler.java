@@ -0,0 +1,45 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.PriorityQueue;
+
+/**
+ * Keeps pending events in a binary heap
+ */
+public class HeapScheduler implements EventScheduler {
+
+	private final PriorityQueue<Event> heap;
+
+	public HeapScheduler() {
+		heap = new PriorityQueue<Event>();
+	}
+
+	@Override
+	public void add(Event e) {
+		heap.add(e);
+	}
+
+	@Override
+	public Event peek() {
+		return heap.peek();
+	}
+
+	@Override
+	public Event poll() {
+		return heap.poll();
+	}
+
+	@Override
+	public boolean remove(Event e) {
+		// Events do not override equals(), so this is by identity
+		return heap.remove(e);
+	}
+
+	@Override
+	public int size() {
+		return heap.size();
+	}
+
+}
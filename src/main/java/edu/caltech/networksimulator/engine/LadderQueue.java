@@ -0,0 +1,245 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A ladder queue (W. T. Tang, R. S. M. Goh and I. L.-J. Thng, 2005).
+ *
+ * New events far in the future go unsorted onto the top. When the events
+ * nearer in time run out, the top is spread over the buckets of a rung, and
+ * the earliest bucket of the lowest rung is either sorted into the small
+ * bottom list events are taken from, or, if it holds too many events, spread
+ * over a finer rung below. Events are only ever sorted in small groups just
+ * before they are needed, which makes adding and taking O(1) amortized however
+ * the events are spaced.
+ */
+public class LadderQueue implements EventScheduler {
+
+	// Largest bucket which is sorted straight into the bottom
+	private static final int THRESHOLD = 50;
+	private static final int MAX_RUNGS = 8;
+
+	// Unsorted events at or after topStart
+	private final List<Event> top;
+	private long topStart, topMin, topMax;
+
+	private final Rung[] rungs;
+	private int rungCount;
+
+	// Sorted with the earliest event last, so taking it is cheap
+	private final List<Event> bottom;
+
+	private int size;
+
+	public LadderQueue() {
+		top = new ArrayList<Event>();
+		topStart = 0;
+		topMin = Long.MAX_VALUE;
+		topMax = Long.MIN_VALUE;
+
+		rungs = new Rung[MAX_RUNGS];
+		rungCount = 0;
+
+		bottom = new ArrayList<Event>();
+		size = 0;
+	}
+
+	@Override
+	public void add(Event e) {
+		size++;
+		long time = e.getTime();
+
+		if (time >= topStart) {
+			top.add(e);
+			topMin = Math.min(topMin, time);
+			topMax = Math.max(topMax, time);
+			return;
+		}
+
+		Rung rung = rungFor(time);
+		if (rung != null) {
+			rung.add(e);
+			return;
+		}
+
+		int i = Collections.binarySearch(bottom, e, Collections.reverseOrder());
+		bottom.add(i < 0 ? -i - 1 : i, e);
+	}
+
+	@Override
+	public Event peek() {
+		refill();
+		return bottom.isEmpty() ? null : bottom.get(bottom.size() - 1);
+	}
+
+	@Override
+	public Event poll() {
+		refill();
+		if (bottom.isEmpty())
+			return null;
+
+		size--;
+		return bottom.remove(bottom.size() - 1);
+	}
+
+	@Override
+	public boolean remove(Event e) {
+		long time = e.getTime();
+		boolean removed;
+
+		if (time >= topStart) {
+			removed = removeFrom(top, e);
+		} else {
+			Rung rung = rungFor(time);
+			removed = rung != null ? rung.remove(e) : removeFrom(bottom, e);
+		}
+
+		if (removed)
+			size--;
+		return removed;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * The highest rung whose unvisited buckets cover the given time, or null
+	 * if it belongs in the bottom
+	 */
+	private Rung rungFor(long time) {
+		for (int r = 0; r < rungCount; r++) {
+			if (time >= rungs[r].currentStart())
+				return rungs[r];
+		}
+		return null;
+	}
+
+	/*
+	 * Make sure the bottom holds the earliest events, if there are any
+	 */
+	private void refill() {
+		while (bottom.isEmpty()) {
+			if (rungCount == 0) {
+				if (top.isEmpty())
+					return;
+
+				// Spread the top over a new first rung
+				long width = Math.max(1, (topMax - topMin) / top.size() + 1);
+				Rung rung = new Rung(topMin, width, top.size());
+				for (Event e : top)
+					rung.add(e);
+				rungs[rungCount++] = rung;
+
+				topStart = rung.end();
+				top.clear();
+				topMin = Long.MAX_VALUE;
+				topMax = Long.MIN_VALUE;
+				continue;
+			}
+
+			Rung rung = rungs[rungCount - 1];
+			if (!rung.skipToEvents()) {
+				rungs[--rungCount] = null;
+				continue;
+			}
+
+			List<Event> bucket = rung.takeBucket();
+			if (bucket.size() > THRESHOLD && rung.width > 1 && rungCount < MAX_RUNGS) {
+				// Too many to sort at once, spread them over a finer rung
+				long start = rung.currentStart() - rung.width;
+				long width = (rung.width + bucket.size() - 1) / bucket.size();
+				Rung finer = new Rung(start, width, (int) ((rung.width + width - 1) / width));
+				for (Event e : bucket)
+					finer.add(e);
+				rungs[rungCount++] = finer;
+			} else {
+				Collections.sort(bucket, Collections.reverseOrder());
+				bottom.addAll(bucket);
+			}
+		}
+	}
+
+	private static boolean removeFrom(List<Event> events, Event e) {
+		for (int i = events.size() - 1; i >= 0; i--) {
+			if (events.get(i) == e) {
+				events.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * One rung of the ladder: a run of equally wide, unsorted time buckets
+	 */
+	private static class Rung {
+		final long start;
+		final long width;
+		final List<Event>[] buckets;
+
+		// The first bucket which has not been taken yet
+		int current;
+		int count;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Rung(long start, long width, int buckets) {
+			this.start = start;
+			this.width = width;
+			this.buckets = new List[buckets];
+			current = 0;
+			count = 0;
+		}
+
+		long currentStart() {
+			return start + current * width;
+		}
+
+		long end() {
+			return start + buckets.length * width;
+		}
+
+		void add(Event e) {
+			int i = (int) ((e.getTime() - start) / width);
+			if (buckets[i] == null)
+				buckets[i] = new ArrayList<Event>();
+			buckets[i].add(e);
+			count++;
+		}
+
+		boolean remove(Event e) {
+			List<Event> bucket = buckets[(int) ((e.getTime() - start) / width)];
+			if (bucket == null || !removeFrom(bucket, e))
+				return false;
+			count--;
+			return true;
+		}
+
+		/*
+		 * Move to the next bucket with events in it, returning false if there
+		 * are none left
+		 */
+		boolean skipToEvents() {
+			if (count == 0)
+				return false;
+			while (buckets[current] == null || buckets[current].isEmpty())
+				current++;
+			return true;
+		}
+
+		List<Event> takeBucket() {
+			List<Event> bucket = buckets[current];
+			buckets[current] = null;
+			current++;
+			count -= bucket.size();
+			return bucket;
+		}
+	}
+
+}
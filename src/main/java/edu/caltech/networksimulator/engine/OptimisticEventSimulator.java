@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkException;
+
+/**
+ * An optimistic (Time Warp) parallel discrete event simulator.
+ *
+ * Partitions are split the same way as for a ParallelEventSimulator, but do
+ * not wait for each other: each handles its events as soon as it has them and
+ * rolls back when an earlier event turns up from another partition. This keeps
+ * partitions busy when link delays, and so the windows of the conservative
+ * simulator, are tiny.
+ *
+ * Every batch of events the partitions stop to agree on the global virtual
+ * time, the earliest time anything could still be rolled back to, and commit
+ * everything before it. Handlers which keep state must implement StateSaving
+ * for rollbacks to work, and output should go through
+ * EventSimulator.whenCommitted() so that undone events leave no trace. Results
+ * are the same as those of a sequential run.
+ */
+public class OptimisticEventSimulator extends ParallelEventSimulator {
+
+	// Events each partition handles between agreeing on the global virtual
+	// time, and between saving its state
+	private static final int BATCH_SIZE = 2000;
+	private static final int CHECKPOINT_INTERVAL = 16;
+
+	// Set by the barrier action, read by the workers after the barrier
+	private boolean quiet;
+	private long gvt;
+	private boolean done;
+
+	/**
+	 * Creates a new optimistic simulator for the given network
+	 *
+	 * @param components
+	 *            Every component of the network, none of them started yet
+	 * @param partitions
+	 *            How many partitions, and threads, to use. Fewer are used if
+	 *            the network cannot be split that many ways.
+	 */
+	public OptimisticEventSimulator(List<NetworkComponent> components, int partitions) {
+		super(components, partitions);
+	}
+
+	/**
+	 * Creates a new optimistic simulator for the given network
+	 *
+	 * @param components
+	 *            Every component of the network, none of them started yet
+	 * @param partitions
+	 *            How many partitions, and threads, to use. Fewer are used if
+	 *            the network cannot be split that many ways.
+	 * @param scheduler
+	 *            What kind of scheduler each partition keeps its pending
+	 *            events in
+	 */
+	public OptimisticEventSimulator(List<NetworkComponent> components, int partitions,
+			EventScheduler.Type scheduler) {
+		super(components, partitions, scheduler);
+	}
+
+	@Override
+	EventSimulator newPartition(Map<EventHandler, EventSimulator.Registration> registry,
+			EventScheduler.Type scheduler) {
+		return new TimeWarpPartition(this, registry, scheduler, CHECKPOINT_INTERVAL);
+	}
+
+	/**
+	 * @return the number of rollbacks so far, over all partitions
+	 */
+	public long getRollbacks() {
+		long rollbacks = 0;
+		for (EventSimulator sim : partitions)
+			rollbacks += ((TimeWarpPartition) sim).getRollbacks();
+		return rollbacks;
+	}
+
+	/**
+	 * @return the number of events which were handled and then undone, over
+	 *         all partitions
+	 */
+	public long getEventsRolledBack() {
+		long events = 0;
+		for (EventSimulator sim : partitions)
+			events += ((TimeWarpPartition) sim).getEventsRolledBack();
+		return events;
+	}
+
+	/**
+	 * Process every event up to and including the given time, in parallel.
+	 * Returns once all of them are committed.
+	 *
+	 * @param endTime
+	 *            Last simulated time (inclusive) to process events at
+	 */
+	@Override
+	public void runUntil(final long endTime) {
+		done = false;
+
+		final AtomicInteger received = new AtomicInteger();
+		final CyclicBarrier roundStart = new CyclicBarrier(partitions.length);
+		final CyclicBarrier roundEnd = new CyclicBarrier(partitions.length, new Runnable() {
+
+			@Override
+			public void run() {
+				// Only once a round passes without anyone receiving anything
+				// are there no messages in flight
+				quiet = received.getAndSet(0) == 0;
+				if (!quiet)
+					return;
+
+				gvt = Long.MAX_VALUE;
+				for (EventSimulator sim : partitions)
+					gvt = Math.min(gvt, sim.nextEventTime());
+				done = gvt > endTime;
+			}
+		});
+
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (EventSimulator partition : partitions) {
+			final TimeWarpPartition sim = (TimeWarpPartition) partition;
+			tasks.add(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							sim.runBatch(endTime, BATCH_SIZE);
+
+							do {
+								roundStart.await();
+								received.addAndGet(sim.drainMessages());
+								roundEnd.await();
+							} while (!quiet);
+
+							sim.fossilCollect(gvt);
+							if (done)
+								break;
+						}
+					} catch (InterruptedException | BrokenBarrierException e) {
+						throw new NetworkException("Partition interrupted", e);
+					} catch (RuntimeException e) {
+						// Release the other partitions, which would wait forever
+						roundStart.reset();
+						roundEnd.reset();
+						throw e;
+					}
+				}
+			});
+		}
+		runAll(tasks);
+
+		if (endTime != Long.MAX_VALUE && endTime > clock.nanoTime())
+			clock.advanceTo(endTime);
+	}
+
+}
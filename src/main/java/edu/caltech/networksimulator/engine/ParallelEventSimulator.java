@@ -0,0 +1,308 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.clock.VirtualClock;
+
+/**
+ * A conservative parallel discrete event simulator.
+ *
+ * The network is split into partitions, each with its own EventSimulator run
+ * by its own thread. Partitions only talk to each other through links which
+ * are cut between them, and a packet takes at least the link's propagation
+ * delay to cross one. So if the earliest pending event anywhere is at time M
+ * and the smallest delay of a cut link is L, no partition can be sent an event
+ * before M + L, and every partition can safely process all its events before
+ * then without hearing from the others.
+ *
+ * The simulation advances in such windows. Between windows all threads meet at
+ * a barrier, move the events they were sent into their queues and agree on the
+ * next window. Since events are ordered the same way in every partition, the
+ * result is exactly that of a sequential run of the same network.
+ */
+public class ParallelEventSimulator {
+
+	final EventSimulator[] partitions;
+	private final Map<NetworkComponent, EventSimulator> partitionOf;
+	private final long lookahead;
+
+	// Time of the simulation as a whole, for anything not in a partition
+	final VirtualClock clock;
+
+	final ExecutorService workers;
+
+	// Set by the barrier action, read by the workers after the barrier
+	private long windowEnd;
+	private boolean done;
+
+	/**
+	 * Creates a new parallel simulator for the given network
+	 *
+	 * @param components
+	 *            Every component of the network, none of them started yet
+	 * @param partitions
+	 *            How many partitions, and threads, to use. Fewer are used if
+	 *            the network cannot be split that many ways.
+	 */
+	public ParallelEventSimulator(List<NetworkComponent> components, int partitions) {
+		this(components, partitions, EventSimulator.DEFAULT_SCHEDULER);
+	}
+
+	/**
+	 * Creates a new parallel simulator for the given network
+	 *
+	 * @param components
+	 *            Every component of the network, none of them started yet
+	 * @param partitions
+	 *            How many partitions, and threads, to use. Fewer are used if
+	 *            the network cannot be split that many ways.
+	 * @param scheduler
+	 *            What kind of scheduler each partition keeps its pending
+	 *            events in
+	 */
+	public ParallelEventSimulator(List<NetworkComponent> components, int partitions,
+			EventScheduler.Type scheduler) {
+		if (partitions < 1)
+			throw new IllegalArgumentException("Need at least one partition");
+
+		Partitioner partitioner = new Partitioner(components);
+		partitions = Math.max(1, Math.min(partitions, partitioner.maxPartitions()));
+		Map<NetworkComponent, Integer> assignment = partitioner.partition(partitions);
+
+		Map<EventHandler, EventSimulator.Registration> registry = new IdentityHashMap<EventHandler, EventSimulator.Registration>();
+		this.partitions = new EventSimulator[partitions];
+		for (int i = 0; i < partitions; i++)
+			this.partitions[i] = newPartition(registry, scheduler);
+
+		partitionOf = new IdentityHashMap<NetworkComponent, EventSimulator>();
+		for (Map.Entry<NetworkComponent, Integer> e : assignment.entrySet())
+			partitionOf.put(e.getKey(), this.partitions[e.getValue()]);
+
+		lookahead = partitioner.lookahead(assignment);
+		clock = new VirtualClock();
+
+		workers = Executors.newFixedThreadPool(partitions, new ThreadFactory() {
+
+			private int created = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Partition" + (created++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Create one partition. Called from the constructor, so must not depend
+	 * on anything but its argument.
+	 *
+	 * @param registry
+	 *            Handler registrations shared by all partitions
+	 * @param scheduler
+	 *            What kind of scheduler the partition keeps pending events in
+	 * @return The new partition
+	 */
+	EventSimulator newPartition(Map<EventHandler, EventSimulator.Registration> registry,
+			EventScheduler.Type scheduler) {
+		return new EventSimulator(this, registry, scheduler);
+	}
+
+	/**
+	 * Get the partition which runs a component
+	 *
+	 * @param n
+	 *            The component
+	 * @return The partition to start the component under
+	 */
+	public EventSimulator getPartition(NetworkComponent n) {
+		EventSimulator sim = partitionOf.get(n);
+		if (sim == null)
+			throw new NetworkException("Component is not part of this simulation: " + n);
+		return sim;
+	}
+
+	/**
+	 * @return the number of partitions actually used
+	 */
+	public int getPartitions() {
+		return partitions.length;
+	}
+
+	/**
+	 * @return how far partitions may run ahead of the earliest event, in
+	 *         nanoseconds
+	 */
+	public long getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * Get the simulated time the simulation as a whole has reached
+	 *
+	 * @return The time in nanoseconds
+	 */
+	public long now() {
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Get the clock of the simulation as a whole. It only moves at the end of
+	 * each call to runUntil(), since partitions are at different times while
+	 * running.
+	 *
+	 * @return The clock
+	 */
+	public VirtualClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return whether any partition has events left to process
+	 */
+	public boolean hasPendingEvents() {
+		for (EventSimulator sim : partitions) {
+			sim.drainInbox();
+			if (sim.getPendingEvents() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of events processed so far by all partitions
+	 */
+	public long getEventsProcessed() {
+		long events = 0;
+		for (EventSimulator sim : partitions)
+			events += sim.getEventsProcessed();
+		return events;
+	}
+
+	/**
+	 * Process every event up to and including the given time, in parallel.
+	 * Returns once all partitions are done.
+	 *
+	 * @param endTime
+	 *            Last simulated time (inclusive) to process events at
+	 */
+	public void runUntil(final long endTime) {
+		done = false;
+
+		final CyclicBarrier windowStart = new CyclicBarrier(partitions.length, new Runnable() {
+
+			@Override
+			public void run() {
+				long earliest = Long.MAX_VALUE;
+				for (EventSimulator sim : partitions)
+					earliest = Math.min(earliest, sim.nextEventTime());
+
+				if (earliest > endTime) {
+					done = true;
+					return;
+				}
+
+				// Saturate rather than overflow when nothing is cut
+				long end = earliest > Long.MAX_VALUE - lookahead ? Long.MAX_VALUE : earliest + lookahead;
+				windowEnd = endTime == Long.MAX_VALUE ? end : Math.min(end, endTime + 1);
+			}
+		});
+		final CyclicBarrier windowDone = new CyclicBarrier(partitions.length);
+
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (final EventSimulator sim : partitions) {
+			tasks.add(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							sim.drainInbox();
+							windowStart.await();
+							if (done)
+								break;
+
+							sim.runWindow(windowEnd);
+							windowDone.await();
+						}
+					} catch (InterruptedException | BrokenBarrierException e) {
+						throw new NetworkException("Partition interrupted", e);
+					} catch (RuntimeException e) {
+						// Release the other partitions, which would wait forever
+						windowStart.reset();
+						windowDone.reset();
+						throw e;
+					}
+				}
+			});
+		}
+		runAll(tasks);
+
+		if (endTime != Long.MAX_VALUE && endTime > clock.nanoTime())
+			clock.advanceTo(endTime);
+	}
+
+	/**
+	 * Run one task per partition on the worker threads and wait for all of
+	 * them. A task which fails should make sure the others do not wait for it
+	 * forever.
+	 *
+	 * @param tasks
+	 *            The tasks
+	 */
+	void runAll(List<Runnable> tasks) {
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for (Runnable task : tasks)
+			running.add(workers.submit(task));
+
+		// Report the error which stopped the run, not the broken barriers it
+		// left the other partitions with
+		Throwable failure = null;
+		for (Future<?> f : running) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				throw new NetworkException("Interrupted while running partitions", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (failure == null || !(cause.getCause() instanceof BrokenBarrierException))
+					failure = cause;
+			}
+		}
+		if (failure instanceof NetworkException)
+			throw (NetworkException) failure;
+		if (failure != null)
+			throw new NetworkException("Error while running a partition", failure);
+	}
+
+	/**
+	 * Process events until none are left
+	 */
+	public void run() {
+		runUntil(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Stop the partition threads. The simulator cannot be run afterwards.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+}
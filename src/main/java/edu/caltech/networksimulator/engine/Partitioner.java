@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.Flow;
+import edu.caltech.networksimulator.Host;
+import edu.caltech.networksimulator.Link;
+import edu.caltech.networksimulator.NetworkComponent;
+
+/**
+ * Splits a network into partitions for a ParallelEventSimulator.
+ *
+ * Hosts and routers are the nodes of the network graph and links are its
+ * edges. A link which is cut has one port in each partition, and its
+ * propagation delay bounds how far partitions may run ahead of each other, so
+ * links without delay are never cut and hosts are kept with the router they
+ * hang off. The remaining groups are taken in breadth first order, so that
+ * neighbors tend to end up together, and dealt out to partitions of roughly
+ * equal size.
+ */
+class Partitioner {
+
+	private final Map<NetworkComponent, NetworkComponent> parent;
+	// The nodes at the far end of each node's links, in the order of the links
+	private final Map<NetworkComponent, List<NetworkComponent>> neighbors;
+	private final List<NetworkComponent> nodes;
+	private final List<Link> links;
+	private final List<Flow> flows;
+
+	/**
+	 * @param components
+	 *            Every component of the network
+	 */
+	Partitioner(List<NetworkComponent> components) {
+		parent = new IdentityHashMap<NetworkComponent, NetworkComponent>();
+		neighbors = new IdentityHashMap<NetworkComponent, List<NetworkComponent>>();
+		nodes = new ArrayList<NetworkComponent>();
+		links = new ArrayList<Link>();
+		flows = new ArrayList<Flow>();
+
+		for (NetworkComponent n : components) {
+			if (n instanceof Link)
+				links.add((Link) n);
+			else if (n instanceof Flow)
+				flows.add((Flow) n);
+			else {
+				nodes.add(n);
+				parent.put(n, n);
+				neighbors.put(n, new ArrayList<NetworkComponent>());
+			}
+		}
+
+		for (Link l : links) {
+			if (l.getEnd1() == null || l.getEnd2() == null)
+				continue;
+			addNeighbor(l.getEnd1(), l.getEnd2());
+			if (l.getEnd2() != l.getEnd1())
+				addNeighbor(l.getEnd2(), l.getEnd1());
+			if (l.getPropagationDelay() <= 0 || l.getEnd1() instanceof Host || l.getEnd2() instanceof Host)
+				union(l.getEnd1(), l.getEnd2());
+		}
+	}
+
+	/**
+	 * Assign every component to a partition
+	 *
+	 * @param partitions
+	 *            The number of partitions
+	 * @return The partition number of every component
+	 */
+	Map<NetworkComponent, Integer> partition(int partitions) {
+		// Groups in breadth first order of the network graph
+		List<List<NetworkComponent>> groups = new ArrayList<List<NetworkComponent>>();
+		Map<NetworkComponent, List<NetworkComponent>> groupOf = new IdentityHashMap<NetworkComponent, List<NetworkComponent>>();
+		Map<NetworkComponent, Boolean> visited = new IdentityHashMap<NetworkComponent, Boolean>();
+
+		for (NetworkComponent start : nodes) {
+			if (visited.containsKey(start))
+				continue;
+
+			ArrayDeque<NetworkComponent> toVisit = new ArrayDeque<NetworkComponent>();
+			toVisit.add(start);
+			visited.put(start, true);
+
+			while (!toVisit.isEmpty()) {
+				NetworkComponent n = toVisit.poll();
+				NetworkComponent root = find(n);
+				List<NetworkComponent> group = groupOf.get(root);
+				if (group == null) {
+					group = new ArrayList<NetworkComponent>();
+					groupOf.put(root, group);
+					groups.add(group);
+				}
+				group.add(n);
+
+				for (NetworkComponent other : neighbors.get(n)) {
+					if (!visited.containsKey(other)) {
+						visited.put(other, true);
+						toVisit.add(other);
+					}
+				}
+			}
+		}
+
+		// Deal out contiguous runs of groups of about equal total size
+		Map<NetworkComponent, Integer> assignment = new IdentityHashMap<NetworkComponent, Integer>();
+		int target = (nodes.size() + partitions - 1) / Math.max(partitions, 1);
+		int current = 0, filled = 0;
+		for (List<NetworkComponent> group : groups) {
+			if (filled > 0 && filled + group.size() > target && current < partitions - 1) {
+				current++;
+				filled = 0;
+			}
+			for (NetworkComponent n : group)
+				assignment.put(n, current);
+			filled += group.size();
+		}
+
+		// Links live with their first end, flows with the host sending them
+		for (Link l : links)
+			assignment.put(l, l.getEnd1() == null ? 0 : assignment.get(l.getEnd1()));
+		for (Flow f : flows)
+			assignment.put(f, f.getSource() == null ? 0 : assignment.get(f.getSource()));
+
+		return assignment;
+	}
+
+	/**
+	 * Find how far partitions may run ahead of each other under an assignment
+	 *
+	 * @param assignment
+	 *            The partition of every component
+	 * @return The smallest propagation delay of a cut link in nanoseconds, or
+	 *         Long.MAX_VALUE if no link is cut
+	 */
+	long lookahead(Map<NetworkComponent, Integer> assignment) {
+		long lookahead = Long.MAX_VALUE;
+		for (Link l : links) {
+			if (l.getEnd1() == null || l.getEnd2() == null)
+				continue;
+			if (!assignment.get(l.getEnd1()).equals(assignment.get(l.getEnd2())))
+				lookahead = Math.min(lookahead, TimeUnit.MILLISECONDS.toNanos(l.getPropagationDelay()));
+		}
+		return lookahead;
+	}
+
+	/**
+	 * @return the number of groups which must stay in one partition, the
+	 *         most partitions that can be of any use
+	 */
+	int maxPartitions() {
+		int groups = 0;
+		for (NetworkComponent n : nodes) {
+			if (find(n) == n)
+				groups++;
+		}
+		return groups;
+	}
+
+	/*
+	 * Note that a link joins two nodes, ignoring ends which are not nodes
+	 */
+	private void addNeighbor(NetworkComponent node, NetworkComponent other) {
+		List<NetworkComponent> adjacent = neighbors.get(node);
+		if (adjacent != null && parent.containsKey(other))
+			adjacent.add(other);
+	}
+
+	private NetworkComponent find(NetworkComponent n) {
+		NetworkComponent root = n;
+		while (parent.get(root) != root)
+			root = parent.get(root);
+		while (parent.get(n) != root) {
+			NetworkComponent next = parent.get(n);
+			parent.put(n, root);
+			n = next;
+		}
+		return root;
+	}
+
+	private void union(NetworkComponent a, NetworkComponent b) {
+		if (!parent.containsKey(a) || !parent.containsKey(b))
+			return;
+		parent.put(find(a), find(b));
+	}
+
+}
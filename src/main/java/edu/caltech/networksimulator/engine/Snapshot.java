@@ -0,0 +1,495 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.Packet;
+
+/**
+ * Everything about a running event driven simulation, saved so that a
+ * simulation of the same network can later be put back into that state, and
+ * many runs can branch from one warmed up network. Snapshots are held in
+ * memory and can be written to and read from files.
+ *
+ * A snapshot holds the clock, the pending events and the saved state of every
+ * handler which implements StateSaving, which together are everything that
+ * changes as a simulation runs. Handler states are written with a small tagged
+ * binary encoding which knows the types states are built from: boxed
+ * primitives, strings, enums, primitive and object arrays, tree maps, array
+ * deques, packets and components. Packets are written once and referred to
+ * afterwards, so a packet which is both queued and carried by an event is
+ * still one packet when read back. Components are referred to by their index
+ * in the simulation. The whole file is deflated.
+ *
+ * Snapshots can only be read into a simulation built the same way as the one
+ * which wrote them, started but not yet run.
+ */
+public final class Snapshot {
+
+	private static final int MAGIC = 0x4E53534E; // NSSN
+	private static final int VERSION = 7;
+
+	private static final byte NULL = 0;
+	private static final byte BOOLEAN = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte STRING = 5;
+	private static final byte ENUM = 6;
+	private static final byte INT_ARRAY = 7;
+	private static final byte LONG_ARRAY = 8;
+	private static final byte DOUBLE_ARRAY = 9;
+	private static final byte OBJECT_ARRAY = 10;
+	private static final byte TREE_MAP = 11;
+	private static final byte ARRAY_DEQUE = 12;
+	private static final byte PACKET = 13;
+	private static final byte PACKET_REFERENCE = 14;
+	private static final byte COMPONENT = 15;
+
+	// The deflated encoding, never changed once made
+	private final byte[] data;
+
+	private Snapshot(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * Take a snapshot of a sequential simulator between events
+	 *
+	 * @param sim
+	 *            The simulator, which must not be processing an event
+	 * @param components
+	 *            Every component of the simulation, in the order they were
+	 *            added
+	 * @param resumeAt
+	 *            Simulated time in nanoseconds the run was going to continue
+	 *            from, handed back by restore()
+	 * @return The snapshot
+	 */
+	public static Snapshot take(EventSimulator sim, List<NetworkComponent> components, long resumeAt) {
+		if (sim.current != null)
+			throw new NetworkException("Cannot snapshot a simulator while it handles an event");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+			new Writer(out, components).write(sim, resumeAt);
+		} catch (IOException e) {
+			throw new NetworkException("Could not take snapshot", e);
+		}
+		return new Snapshot(bytes.toByteArray());
+	}
+
+	/**
+	 * Put a sequential simulator into the state saved in this snapshot. Its
+	 * components must have been started under it, but no events run yet.
+	 * Snapshots never change, so one can be restored into any number of
+	 * simulators, also at the same time.
+	 *
+	 * @param sim
+	 *            The simulator
+	 * @param components
+	 *            Every component of the simulation, in the order they were
+	 *            added
+	 * @return The simulated time in nanoseconds the run should continue from
+	 */
+	public long restore(EventSimulator sim, List<NetworkComponent> components) {
+		if (sim.eventsProcessed > 0)
+			throw new NetworkException("Can only restore a snapshot before any events run");
+
+		try (DataInputStream in = open()) {
+			return new Reader(in, components).read(sim);
+		} catch (IOException e) {
+			throw new NetworkException("Could not read snapshot", e);
+		}
+	}
+
+	/**
+	 * Write this snapshot to a file
+	 *
+	 * @param file
+	 *            Where to write it
+	 */
+	public void write(File file) {
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(data);
+		} catch (IOException e) {
+			throw new NetworkException("Could not write snapshot " + file, e);
+		}
+	}
+
+	/**
+	 * Read a snapshot written by write()
+	 *
+	 * @param file
+	 *            The file
+	 * @return The snapshot
+	 */
+	public static Snapshot read(File file) {
+		byte[] data = new byte[(int) file.length()];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			in.readFully(data);
+		} catch (IOException e) {
+			throw new NetworkException("Could not read snapshot " + file, e);
+		}
+
+		Snapshot snapshot = new Snapshot(data);
+		snapshot.getTime();
+		return snapshot;
+	}
+
+	/**
+	 * @return the simulated time in nanoseconds a run restored from this
+	 *         snapshot continues from
+	 */
+	public long getTime() {
+		try (DataInputStream in = open()) {
+			return Reader.readHeader(in);
+		} catch (IOException e) {
+			throw new NetworkException("Corrupt snapshot", e);
+		}
+	}
+
+	/**
+	 * @return the size of this snapshot in bytes
+	 */
+	public int size() {
+		return data.length;
+	}
+
+	private DataInputStream open() {
+		return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data))));
+	}
+
+	/**
+	 * Writes one snapshot, remembering which packets it already wrote
+	 */
+	private static class Writer {
+		private final DataOutputStream out;
+		private final List<NetworkComponent> components;
+		private final Map<NetworkComponent, Integer> componentIndex;
+		private final Map<Packet, Integer> packetIndex;
+
+		Writer(DataOutputStream out, List<NetworkComponent> components) {
+			this.out = out;
+			this.components = components;
+			componentIndex = new IdentityHashMap<NetworkComponent, Integer>();
+			for (int i = 0; i < components.size(); i++)
+				componentIndex.put(components.get(i), i);
+			packetIndex = new IdentityHashMap<Packet, Integer>();
+		}
+
+		void write(EventSimulator sim, long resumeAt) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(resumeAt);
+			out.writeLong(sim.now());
+			out.writeLong(sim.eventsProcessed);
+
+			// Enough to tell a snapshot of a different network
+			out.writeInt(components.size());
+			for (NetworkComponent n : components)
+				out.writeUTF(n.getComponentName());
+			out.writeInt(sim.registrations.size());
+
+			for (EventSimulator.Registration r : sim.registrations)
+				out.writeLong(r.nextSequence);
+
+			// The queue can only be read by emptying it, so put them back
+			List<Event> pending = new ArrayList<Event>(sim.queue.size());
+			Event e;
+			while ((e = sim.queue.poll()) != null)
+				pending.add(e);
+			for (Event p : pending)
+				sim.queue.add(p);
+
+			out.writeInt(pending.size());
+			for (Event p : pending) {
+				out.writeLong(p.getTime());
+				out.writeInt(p.getDepth());
+				out.writeInt(p.getCreator());
+				out.writeLong(p.getSequence());
+				out.writeInt(p.getTargetRegistration().id);
+				out.writeInt(p.getType());
+				out.writeLong(p.getArgument());
+				writeValue(p.getPacket());
+				writeValue(p.getSource());
+			}
+
+			for (EventSimulator.Registration r : sim.registrations) {
+				boolean saves = r.handler instanceof StateSaving;
+				out.writeBoolean(saves);
+				if (saves)
+					writeValue(((StateSaving) r.handler).saveState());
+			}
+		}
+
+		void writeValue(Object value) throws IOException {
+			if (value == null) {
+				out.writeByte(NULL);
+			} else if (value instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			} else if (value instanceof Integer) {
+				out.writeByte(INTEGER);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if (value instanceof String) {
+				out.writeByte(STRING);
+				out.writeUTF((String) value);
+			} else if (value instanceof Enum) {
+				Enum<?> e = (Enum<?>) value;
+				out.writeByte(ENUM);
+				out.writeUTF(e.getDeclaringClass().getName());
+				out.writeUTF(e.name());
+			} else if (value instanceof int[]) {
+				int[] a = (int[]) value;
+				out.writeByte(INT_ARRAY);
+				out.writeInt(a.length);
+				for (int x : a)
+					out.writeInt(x);
+			} else if (value instanceof long[]) {
+				long[] a = (long[]) value;
+				out.writeByte(LONG_ARRAY);
+				out.writeInt(a.length);
+				for (long x : a)
+					out.writeLong(x);
+			} else if (value instanceof double[]) {
+				double[] a = (double[]) value;
+				out.writeByte(DOUBLE_ARRAY);
+				out.writeInt(a.length);
+				for (double x : a)
+					out.writeDouble(x);
+			} else if (value instanceof Object[]) {
+				Object[] a = (Object[]) value;
+				out.writeByte(OBJECT_ARRAY);
+				out.writeInt(a.length);
+				for (Object x : a)
+					writeValue(x);
+			} else if (value instanceof TreeMap) {
+				TreeMap<?, ?> map = (TreeMap<?, ?>) value;
+				if (map.comparator() != null)
+					throw new NetworkException("Cannot write a tree map with a comparator to a snapshot");
+				out.writeByte(TREE_MAP);
+				out.writeInt(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+			} else if (value instanceof ArrayDeque) {
+				ArrayDeque<?> deque = (ArrayDeque<?>) value;
+				out.writeByte(ARRAY_DEQUE);
+				out.writeInt(deque.size());
+				for (Object x : deque)
+					writeValue(x);
+			} else if (value instanceof Packet) {
+				Packet p = (Packet) value;
+				Integer index = packetIndex.get(p);
+				if (index != null) {
+					out.writeByte(PACKET_REFERENCE);
+					out.writeInt(index);
+				} else {
+					packetIndex.put(p, packetIndex.size());
+					out.writeByte(PACKET);
+					p.write(out);
+				}
+			} else if (value instanceof NetworkComponent) {
+				Integer index = componentIndex.get(value);
+				if (index == null)
+					throw new NetworkException("Component is not part of the simulation: " + value);
+				out.writeByte(COMPONENT);
+				out.writeInt(index);
+			} else {
+				throw new NetworkException("Cannot write a " + value.getClass().getName() + " to a snapshot");
+			}
+		}
+	}
+
+	/**
+	 * Reads one snapshot, remembering which packets it already read
+	 */
+	private static class Reader {
+		private final DataInputStream in;
+		private final List<NetworkComponent> components;
+		private final List<Packet> packets;
+
+		Reader(DataInputStream in, List<NetworkComponent> components) {
+			this.in = in;
+			this.components = components;
+			packets = new ArrayList<Packet>();
+		}
+
+		long read(EventSimulator sim) throws IOException {
+			long resumeAt = readHeader(in);
+			long now = in.readLong();
+			long eventsProcessed = in.readLong();
+
+			int count = in.readInt();
+			if (count != components.size())
+				throw new NetworkException("Snapshot has " + count + " components, the simulation "
+						+ components.size());
+			for (NetworkComponent n : components) {
+				String name = in.readUTF();
+				if (!name.equals(n.getComponentName()))
+					throw new NetworkException("Snapshot has component " + name + " where the simulation has "
+							+ n.getComponentName());
+			}
+			int handlers = in.readInt();
+			if (handlers != sim.registrations.size())
+				throw new NetworkException("Snapshot has " + handlers + " event handlers, the simulation "
+						+ sim.registrations.size());
+
+			sim.clock.advanceTo(now);
+			sim.eventsProcessed = eventsProcessed;
+			for (EventSimulator.Registration r : sim.registrations)
+				r.nextSequence = in.readLong();
+
+			// Drop the events the components scheduled when they started
+			while (sim.queue.poll() != null)
+				;
+
+			int pending = in.readInt();
+			for (int i = 0; i < pending; i++) {
+				long time = in.readLong();
+				int depth = in.readInt();
+				int creator = in.readInt();
+				long sequence = in.readLong();
+				EventSimulator.Registration target = sim.registrations.get(in.readInt());
+				int type = in.readInt();
+				long argument = in.readLong();
+				Packet packet = (Packet) readValue();
+				NetworkComponent source = (NetworkComponent) readValue();
+
+				sim.queue.add(new Event(time, depth, creator, sequence, target.handler, target, type, packet, source,
+						argument));
+			}
+
+			for (EventSimulator.Registration r : sim.registrations) {
+				if (!in.readBoolean())
+					continue;
+				if (!(r.handler instanceof StateSaving))
+					throw new NetworkException("Snapshot has a state for " + r.handler + ", which saves none");
+				((StateSaving) r.handler).restoreState(readValue());
+			}
+
+			return resumeAt;
+		}
+
+		/*
+		 * Check that a snapshot starts like one, and read the time it
+		 * resumes at
+		 */
+		static long readHeader(DataInputStream in) throws IOException {
+			if (in.readInt() != MAGIC)
+				throw new NetworkException("Not a snapshot");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new NetworkException("Unsupported snapshot version " + version);
+			return in.readLong();
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Object readValue() throws IOException {
+			byte tag = in.readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case BOOLEAN:
+				return in.readBoolean();
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case DOUBLE:
+				return in.readDouble();
+			case STRING:
+				return in.readUTF();
+			case ENUM:
+				String type = in.readUTF();
+				String name = in.readUTF();
+				try {
+					return Enum.valueOf((Class<Enum>) Class.forName(type), name);
+				} catch (ClassNotFoundException e) {
+					throw new NetworkException("Snapshot has unknown enum " + type, e);
+				}
+			case INT_ARRAY: {
+				int[] a = new int[in.readInt()];
+				for (int i = 0; i < a.length; i++)
+					a[i] = in.readInt();
+				return a;
+			}
+			case LONG_ARRAY: {
+				long[] a = new long[in.readInt()];
+				for (int i = 0; i < a.length; i++)
+					a[i] = in.readLong();
+				return a;
+			}
+			case DOUBLE_ARRAY: {
+				double[] a = new double[in.readInt()];
+				for (int i = 0; i < a.length; i++)
+					a[i] = in.readDouble();
+				return a;
+			}
+			case OBJECT_ARRAY: {
+				Object[] a = new Object[in.readInt()];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readValue();
+				return a;
+			}
+			case TREE_MAP: {
+				int size = in.readInt();
+				TreeMap map = new TreeMap();
+				for (int i = 0; i < size; i++) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case ARRAY_DEQUE: {
+				int size = in.readInt();
+				ArrayDeque deque = new ArrayDeque(Math.max(size, 1));
+				for (int i = 0; i < size; i++)
+					deque.add(readValue());
+				return deque;
+			}
+			case PACKET: {
+				Packet p = Packet.read(in);
+				packets.add(p);
+				return p;
+			}
+			case PACKET_REFERENCE:
+				return packets.get(in.readInt());
+			case COMPONENT:
+				return components.get(in.readInt());
+			default:
+				throw new NetworkException("Corrupt snapshot, unknown tag " + tag);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+/**
+ * An event handler, or part of one, whose state can be saved and later
+ * restored, which is what an optimistic simulator needs to undo events it
+ * handled too early.
+ *
+ * Saved states must not share anything mutable with the handler, since the
+ * handler keeps changing after the save. Things which never change after the
+ * simulation starts, such as links, can be shared, as can packets once they
+ * have been sent.
+ */
+public interface StateSaving {
+
+	/**
+	 * Save the current state
+	 *
+	 * @return An object holding the state, only ever passed back to
+	 *         restoreState()
+	 */
+	public Object saveState();
+
+	/**
+	 * Go back to a previously saved state
+	 *
+	 * @param state
+	 *            A state returned by saveState()
+	 */
+	public void restoreState(Object state);
+
+}
@@ -0,0 +1,374 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.caltech.networksimulator.NetworkException;
+
+/**
+ * One partition of an OptimisticEventSimulator.
+ *
+ * Handles its events as soon as it has them, without waiting to find out
+ * whether another partition will send it an earlier one. Every few events it
+ * saves the state of all its handlers, and it remembers every event it handled
+ * along with the events that one scheduled. When an event arrives which should
+ * have been handled before events it already handled (a straggler), it goes
+ * back to the last saved state before the straggler and quietly handles the
+ * events up to the straggler again to get back to the state just before it.
+ * Everything the events after the straggler scheduled is cancelled, and they
+ * are handled again later.
+ *
+ * Output is held back until an event is committed, which is once the global
+ * virtual time (the earliest time any partition could still be sent an event
+ * at) has passed it. Committed events are forgotten, which keeps memory
+ * bounded.
+ */
+class TimeWarpPartition extends EventSimulator {
+
+	private final int checkpointInterval;
+
+	// Events handled but not yet committed, in the order they were handled,
+	// which is also the order of the events
+	private final List<Handled> handled;
+	private Handled handling;
+	private int sinceCheckpoint;
+
+	// Whether events are being handled again after a rollback, in which case
+	// what they schedule or output was already taken care of the first time
+	private boolean coasting;
+
+	// Events and cancellations sent by other partitions
+	private final ConcurrentLinkedQueue<Message> messages;
+
+	private long committed;
+	private long rollbacks;
+	private long rolledBack;
+
+	/**
+	 * Creates a new partition
+	 *
+	 * @param group
+	 *            The optimistic simulator
+	 * @param registry
+	 *            Handler registrations shared by all partitions
+	 * @param scheduler
+	 *            What kind of scheduler to keep pending events in
+	 * @param checkpointInterval
+	 *            How many events to handle between saving states
+	 */
+	TimeWarpPartition(ParallelEventSimulator group, Map<EventHandler, Registration> registry,
+			EventScheduler.Type scheduler, int checkpointInterval) {
+		super(group, registry, scheduler);
+		this.checkpointInterval = checkpointInterval;
+
+		// Events for other partitions may be at any time
+		windowEnd = Long.MIN_VALUE;
+
+		handled = new ArrayList<Handled>();
+		handling = null;
+		sinceCheckpoint = 0;
+		coasting = false;
+		messages = new ConcurrentLinkedQueue<Message>();
+
+		committed = 0;
+		rollbacks = 0;
+		rolledBack = 0;
+	}
+
+	/**
+	 * Handle events as far as the given time, or until the given number of
+	 * events has been handled
+	 *
+	 * @param endTime
+	 *            Last simulated time (inclusive) to handle events at
+	 * @param batch
+	 *            The most events to handle
+	 */
+	void runBatch(long endTime, int batch) {
+		setRunning(this);
+		try {
+			for (int i = 0; i < batch; i++) {
+				drainInbox();
+
+				Event e = queue.peek();
+				if (e == null || e.getTime() > endTime)
+					break;
+
+				handle(queue.poll());
+			}
+		} finally {
+			setRunning(null);
+		}
+	}
+
+	private void handle(Event e) {
+		Handled h = new Handled(e);
+		if (handled.isEmpty() || sinceCheckpoint >= checkpointInterval) {
+			h.checkpoint = new Checkpoint();
+			sinceCheckpoint = 0;
+		}
+		handled.add(h);
+
+		handling = h;
+		try {
+			process(e);
+		} finally {
+			handling = null;
+		}
+		sinceCheckpoint++;
+	}
+
+	@Override
+	void send(Event e) {
+		if (coasting)
+			return;
+
+		super.send(e);
+		if (handling != null)
+			handling.scheduled.add(e);
+	}
+
+	@Override
+	void commit(Runnable action) {
+		if (coasting)
+			return;
+
+		if (handling != null)
+			handling.commits.add(action);
+		else
+			action.run();
+	}
+
+	@Override
+	boolean speculative() {
+		return true;
+	}
+
+	@Override
+	void deliver(Event e) {
+		messages.add(new Message(e, false));
+	}
+
+	@Override
+	void drainInbox() {
+		drainMessages();
+	}
+
+	/**
+	 * Take in everything other partitions have sent, rolling back if
+	 * necessary
+	 *
+	 * @return The number of messages taken in
+	 */
+	int drainMessages() {
+		int received = 0;
+		Message m;
+		while ((m = messages.poll()) != null) {
+			if (m.cancel)
+				cancel(m.event);
+			else
+				receive(m.event);
+			received++;
+		}
+		return received;
+	}
+
+	private void receive(Event e) {
+		int i = handled.size();
+		while (i > 0 && handled.get(i - 1).event.compareTo(e) > 0)
+			i--;
+
+		// A straggler: undo everything which should have come after it
+		if (i < handled.size())
+			rollBack(i);
+
+		queue.add(e);
+	}
+
+	private void cancel(Event e) {
+		if (queue.remove(e))
+			return;
+
+		// Already handled, so undo it first. Cancellations always come after
+		// the event they cancel, since messages between two partitions stay in
+		// order.
+		for (int i = handled.size() - 1; i >= 0; i--) {
+			if (handled.get(i).event == e) {
+				rollBack(i);
+				queue.remove(e);
+				return;
+			}
+		}
+		throw new NetworkException("Cancelled event was never received: " + e);
+	}
+
+	/*
+	 * Undo the handled event at the given index and everything after it
+	 */
+	private void rollBack(int index) {
+		int from = index;
+		while (handled.get(from).checkpoint == null)
+			from--;
+		Checkpoint checkpoint = handled.get(from).checkpoint;
+
+		for (int i = handled.size() - 1; i >= index; i--) {
+			Handled h = handled.remove(i);
+
+			// Anything it scheduled locally has a later place in the order,
+			// so is in the queue, either never handled or already undone
+			for (Event e : h.scheduled) {
+				EventSimulator owner = e.getTargetRegistration().owner;
+				if (owner == this) {
+					if (!queue.remove(e))
+						throw new NetworkException("Lost track of an event while rolling back: " + e);
+				} else {
+					((TimeWarpPartition) owner).messages.add(new Message(e, true));
+				}
+			}
+
+			queue.add(h.event);
+			rolledBack++;
+		}
+
+		// Go back to the last saved state, then coast forward to the index.
+		// Sending nothing again while coasting keeps a rollback from spreading
+		// to other partitions any further than it has to.
+		checkpoint.restore();
+
+		EventSimulator previous = getRunning();
+		setRunning(this);
+		coasting = true;
+		try {
+			for (int i = from; i < index; i++)
+				process(handled.get(i).event);
+		} finally {
+			coasting = false;
+			setRunning(previous);
+		}
+
+		sinceCheckpoint = index - from;
+		rollbacks++;
+	}
+
+	/**
+	 * Commit every event which can no longer be undone, running its held
+	 * back output and forgetting it
+	 *
+	 * @param gvt
+	 *            The global virtual time: no partition will be sent an event
+	 *            before it
+	 */
+	void fossilCollect(long gvt) {
+		int safe = 0;
+		while (safe < handled.size() && handled.get(safe).event.getTime() < gvt)
+			safe++;
+
+		// Keep the saved state later events may have to go back to
+		int keep = safe;
+		if (safe < handled.size()) {
+			while (handled.get(keep).checkpoint == null)
+				keep--;
+		}
+
+		List<Handled> done = handled.subList(0, keep);
+		for (Handled h : done) {
+			for (Runnable action : h.commits)
+				action.run();
+		}
+		committed += done.size();
+		done.clear();
+	}
+
+	/**
+	 * @return the number of events committed so far
+	 */
+	@Override
+	public long getEventsProcessed() {
+		return committed;
+	}
+
+	/**
+	 * @return the number of times this partition rolled back
+	 */
+	long getRollbacks() {
+		return rollbacks;
+	}
+
+	/**
+	 * @return the number of events which were undone
+	 */
+	long getEventsRolledBack() {
+		return rolledBack;
+	}
+
+	/**
+	 * An event which has been handled, with what it did that may have to be
+	 * undone
+	 */
+	private static class Handled {
+		final Event event;
+		final List<Event> scheduled;
+		final List<Runnable> commits;
+
+		// State from just before the event, only saved every few events
+		Checkpoint checkpoint;
+
+		Handled(Event event) {
+			this.event = event;
+			this.scheduled = new ArrayList<Event>(2);
+			this.commits = new ArrayList<Runnable>(0);
+		}
+	}
+
+	/**
+	 * The state of everything in this partition at one point in time
+	 */
+	private class Checkpoint {
+		final long time;
+		final long[] sequences;
+		final Object[] states;
+
+		Checkpoint() {
+			time = clock.nanoTime();
+			sequences = new long[registrations.size()];
+			states = new Object[registrations.size()];
+
+			for (int i = 0; i < registrations.size(); i++) {
+				Registration r = registrations.get(i);
+				sequences[i] = r.nextSequence;
+				if (r.handler instanceof StateSaving)
+					states[i] = ((StateSaving) r.handler).saveState();
+			}
+		}
+
+		void restore() {
+			clock.rewindTo(time);
+
+			for (int i = 0; i < registrations.size(); i++) {
+				Registration r = registrations.get(i);
+				r.nextSequence = sequences[i];
+				if (r.handler instanceof StateSaving)
+					((StateSaving) r.handler).restoreState(states[i]);
+			}
+		}
+	}
+
+	/**
+	 * An event sent by another partition, or the cancellation of one
+	 */
+	private static class Message {
+		final Event event;
+		final boolean cancel;
+
+		Message(Event event, boolean cancel) {
+			this.event = event;
+			this.cancel = cancel;
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out IDs which are unique over everything in the JVM, such as the IDs
+ * of packets, without a counter every thread fights over.
+ *
+ * IDs are taken from a shared counter a block at a time. Each simulator, and
+ * so each partition of a parallel one, takes its own blocks and hands out the
+ * IDs in them to the events it handles. Threads not handling events take
+ * blocks of their own. The IDs from one simulator or thread only ever go up,
+ * though IDs from different ones are interleaved.
+ */
+public final class UniqueIds {
+
+	// How many IDs are taken from the shared counter at once
+	private static final int BLOCK_SIZE = 4096;
+
+	private static final AtomicLong nextBlock = new AtomicLong();
+
+	private static final ThreadLocal<Block> threadBlocks = new ThreadLocal<Block>() {
+
+		@Override
+		protected Block initialValue() {
+			return new Block();
+		}
+	};
+
+	private UniqueIds() {
+	}
+
+	/**
+	 * @return a new ID, from the block of the simulator handling events on
+	 *         this thread if there is one, otherwise from the thread's own
+	 */
+	public static long next() {
+		return current().next();
+	}
+
+	/**
+	 * Make sure no ID up to and including the given one is handed out from
+	 * now on, such as when things with IDs are read back in. Blocks other
+	 * threads are part way through are not affected, so this should be called
+	 * before they start.
+	 *
+	 * @param id
+	 *            The ID
+	 */
+	public static void reserve(long id) {
+		long above = id + 1;
+		long next;
+		while ((next = nextBlock.get()) < above) {
+			if (nextBlock.compareAndSet(next, above))
+				break;
+		}
+		current().skipTo(above);
+	}
+
+	private static Block current() {
+		EventSimulator sim = EventSimulator.getRunning();
+		return sim != null ? sim.ids : threadBlocks.get();
+	}
+
+	/**
+	 * A run of IDs taken from the shared counter, used by one thread at a
+	 * time
+	 */
+	static final class Block {
+
+		private long next, end;
+
+		long next() {
+			if (next == end) {
+				next = nextBlock.getAndAdd(BLOCK_SIZE);
+				end = next + BLOCK_SIZE;
+			}
+			return next++;
+		}
+
+		/*
+		 * Drop the block if it would hand out IDs below the given one
+		 */
+		void skipTo(long id) {
+			if (next < id)
+				next = end;
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.Flow;
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkSimulator;
+
+/**
+ * How one flow did in one run of a simulation
+ */
+public class FlowResult {
+
+	private final String flow;
+	private final double throughput;
+	private final double RTT;
+	private final double loss;
+
+	/**
+	 * @param flow
+	 *            Name of the flow
+	 * @param throughput
+	 *            Data acknowledged per second, in megabits
+	 * @param RTT
+	 *            Mean round trip time, in milliseconds
+	 * @param loss
+	 *            Fraction of the packets sent which were never acknowledged
+	 */
+	public FlowResult(String flow, double throughput, double RTT, double loss) {
+		this.flow = flow;
+		this.throughput = throughput;
+		this.RTT = RTT;
+		this.loss = loss;
+	}
+
+	/**
+	 * Work out how a flow did, once its simulation has stopped
+	 *
+	 * @param f
+	 *            The flow
+	 * @return The result
+	 */
+	public static FlowResult of(Flow f) {
+		// A flow which never finished is measured up to the end of the run
+		long end = Math.min(f.getFinishTime(), f.getClock().nanoTime());
+		long active = end - f.getStartTime();
+
+		double throughput = active > 0 ? f.getBytesAcked() * 8.0 / 1e6 / (active / 1e9) : 0;
+		double RTT = f.getMeanRTT() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		double loss = f.getPacketsSent() > 0
+				? Math.max(0, f.getPacketsSent() - f.getPacketsAcked()) / (double) f.getPacketsSent() : 0;
+
+		return new FlowResult(f.getComponentName(), throughput, RTT, loss);
+	}
+
+	/**
+	 * Work out how every flow of a simulation did, once it has stopped
+	 *
+	 * @param sim
+	 *            The simulation
+	 * @return The result of each flow, in the order they were added
+	 */
+	public static List<FlowResult> ofAll(NetworkSimulator sim) {
+		List<FlowResult> results = new ArrayList<FlowResult>();
+		for (NetworkComponent n : sim.getComponents()) {
+			if (n instanceof Flow)
+				results.add(of((Flow) n));
+		}
+		return results;
+	}
+
+	/**
+	 * Jain's fairness index of the throughputs of some flows, which is 1 if
+	 * they all got the same and 1/n if one flow got everything
+	 *
+	 * @param results
+	 *            The flows, at least one
+	 * @return The index, from 1/n to 1
+	 */
+	public static double fairness(List<FlowResult> results) {
+		double sum = 0, squares = 0;
+		for (FlowResult r : results) {
+			sum += r.throughput;
+			squares += r.throughput * r.throughput;
+		}
+		return squares > 0 ? sum * sum / (results.size() * squares) : 1;
+	}
+
+	public String getFlow() {
+		return flow;
+	}
+
+	/**
+	 * @return data acknowledged per second, in megabits
+	 */
+	public double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * @return the mean round trip time, in milliseconds
+	 */
+	public double getRTT() {
+		return RTT;
+	}
+
+	/**
+	 * @return the fraction of the packets sent which were never acknowledged
+	 */
+	public double getLoss() {
+		return loss;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{%s: %.3f Mb/s, RTT %.3f ms, loss %.4f}", flow, throughput, RTT, loss);
+	}
+
+}
@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+/**
+ * How one flow did over many runs of a simulation
+ */
+public class FlowStatistics {
+
+	private final String flow;
+	private final Summary throughput;
+	private final Summary RTT;
+	private final Summary loss;
+
+	public FlowStatistics(String flow) {
+		this.flow = flow;
+		throughput = new Summary();
+		RTT = new Summary();
+		loss = new Summary();
+	}
+
+	/**
+	 * Add the result of one run
+	 *
+	 * @param r
+	 *            The flow's result
+	 */
+	public void add(FlowResult r) {
+		throughput.add(r.getThroughput());
+		RTT.add(r.getRTT());
+		loss.add(r.getLoss());
+	}
+
+	public String getFlow() {
+		return flow;
+	}
+
+	/**
+	 * @return the throughput of each run, in megabits per second
+	 */
+	public Summary getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * @return the mean round trip time of each run, in milliseconds
+	 */
+	public Summary getRTT() {
+		return RTT;
+	}
+
+	/**
+	 * @return the fraction of packets lost in each run
+	 */
+	public Summary getLoss() {
+		return loss;
+	}
+
+}
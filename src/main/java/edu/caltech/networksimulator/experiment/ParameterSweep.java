@@ -0,0 +1,449 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.NetworkSimulator;
+import edu.caltech.networksimulator.SimulationRunner;
+
+/**
+ * Runs one of the standard cases over many combinations of window algorithm
+ * and link capacity, buffer size and propagation delay.
+ *
+ * The combinations are either every one on a grid, or a Latin hypercube
+ * sample, which covers the whole range of every parameter with only as many
+ * points as asked for. Points are run in parallel on a work stealing pool,
+ * so a few slow points do not hold up the rest. Each finished point is
+ * written to a checkpoint file straight away, and points already in the file
+ * are not run again, so an interrupted sweep picks up where it left off. The
+ * file starts with the case and seed it was run with, and a sweep refuses to
+ * pick up a file from another case or seed.
+ */
+public class ParameterSweep {
+
+	/**
+	 * Every window algorithm a flow can use
+	 */
+	public static final List<String> ALGORITHMS = Collections.unmodifiableList(
+			Arrays.asList("Static", "Simple", "Exponential", "TCPTahoe", "TCPReno", "TCPFAST"));
+
+	private static final String HEADER = "alg,capacity,bufferSize,propagationDelay,flow,throughput,RTT,loss";
+
+	private final int scenario;
+
+	private List<String> algs;
+	private Range capacity, bufferSize, propagationDelay;
+
+	private long seed;
+	private int parallelism;
+
+	/**
+	 * @param scenario
+	 *            Which case of SimulationRunner.setupCase() to run
+	 */
+	public ParameterSweep(int scenario) {
+		this.scenario = scenario;
+
+		algs = Collections.singletonList("TCPReno");
+		capacity = null;
+		bufferSize = null;
+		propagationDelay = null;
+
+		seed = 1;
+		parallelism = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param algs
+	 *            The window algorithms to try
+	 */
+	public void setAlgorithms(List<String> algs) {
+		if (algs.isEmpty())
+			throw new IllegalArgumentException("Need at least one window algorithm");
+		this.algs = new ArrayList<String>(algs);
+	}
+
+	/**
+	 * Sweep the capacity of every link
+	 *
+	 * @param min
+	 *            Smallest capacity, in bits per second
+	 * @param max
+	 *            Largest capacity, in bits per second
+	 * @param steps
+	 *            Number of evenly spaced values on a grid
+	 */
+	public void setCapacity(long min, long max, int steps) {
+		capacity = new Range(min, max, steps);
+	}
+
+	/**
+	 * Sweep the buffer size of every link
+	 *
+	 * @param min
+	 *            Smallest size, in bytes
+	 * @param max
+	 *            Largest size, in bytes
+	 * @param steps
+	 *            Number of evenly spaced values on a grid
+	 */
+	public void setBufferSize(long min, long max, int steps) {
+		bufferSize = new Range(min, max, steps);
+	}
+
+	/**
+	 * Sweep the propagation delay of every link
+	 *
+	 * @param min
+	 *            Shortest delay, in milliseconds
+	 * @param max
+	 *            Longest delay, in milliseconds
+	 * @param steps
+	 *            Number of evenly spaced values on a grid
+	 */
+	public void setPropagationDelay(long min, long max, int steps) {
+		propagationDelay = new Range(min, max, steps);
+	}
+
+	/**
+	 * @param seed
+	 *            Seed of the simulations, and of the sample points
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param parallelism
+	 *            How many points to run at once
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return every combination of the swept values
+	 */
+	public List<SweepPoint> grid() {
+		List<SweepPoint> points = new ArrayList<SweepPoint>();
+		for (String alg : algs) {
+			for (int c = 0; c < steps(capacity); c++) {
+				for (int b = 0; b < steps(bufferSize); b++) {
+					for (int d = 0; d < steps(propagationDelay); d++)
+						points.add(new SweepPoint(alg, at(capacity, c), at(bufferSize, b), at(propagationDelay, d)));
+				}
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * Take a Latin hypercube sample of the swept ranges: the range of each
+	 * parameter is split into as many equal strata as there are points, and
+	 * every stratum of every parameter gets exactly one point
+	 *
+	 * @param samples
+	 *            How many points to take
+	 * @return The points
+	 */
+	public List<SweepPoint> latinHypercube(int samples) {
+		Random random = new Random(seed);
+		int[] algStrata = strata(samples, random);
+		int[] capacityStrata = strata(samples, random);
+		int[] bufferStrata = strata(samples, random);
+		int[] delayStrata = strata(samples, random);
+
+		List<SweepPoint> points = new ArrayList<SweepPoint>();
+		for (int i = 0; i < samples; i++) {
+			String alg = algs.get(algStrata[i] * algs.size() / samples);
+			points.add(new SweepPoint(alg, sample(capacity, capacityStrata[i], samples, random),
+					sample(bufferSize, bufferStrata[i], samples, random),
+					sample(propagationDelay, delayStrata[i], samples, random)));
+		}
+		return points;
+	}
+
+	/*
+	 * A random order of the strata 0 to n - 1
+	 */
+	private static int[] strata(int n, Random random) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		return order;
+	}
+
+	private static int steps(Range r) {
+		return r == null ? 1 : r.steps;
+	}
+
+	private static long at(Range r, int step) {
+		return r == null ? SweepPoint.KEEP : r.at(step);
+	}
+
+	private static long sample(Range r, int stratum, int strata, Random random) {
+		return r == null ? SweepPoint.KEEP : r.sample((stratum + random.nextDouble()) / strata);
+	}
+
+	/**
+	 * Run every point which is not already in the checkpoint file, adding each
+	 * to the file as it finishes
+	 *
+	 * @param points
+	 *            The points to run
+	 * @param checkpoint
+	 *            File keeping the results of finished points
+	 * @return How every flow did at every point, in the order of the points
+	 */
+	public Map<SweepPoint, List<FlowResult>> run(List<SweepPoint> points, File checkpoint) {
+		final Map<String, List<FlowResult>> done = load(checkpoint);
+
+		final List<SweepPoint> todo = new ArrayList<SweepPoint>();
+		for (SweepPoint p : points) {
+			if (!done.containsKey(p.getKey()))
+				todo.add(p);
+		}
+		if (todo.size() < points.size())
+			System.out.println("Resuming sweep, " + (points.size() - todo.size()) + " of " + points.size()
+					+ " points already done");
+
+		PrintWriter out;
+		try {
+			boolean fresh = !checkpoint.exists() || checkpoint.length() == 0;
+			out = new PrintWriter(new FileWriter(checkpoint, true));
+			if (fresh) {
+				out.println(runLine());
+				out.println(HEADER);
+				out.flush();
+			}
+		} catch (IOException e) {
+			throw new NetworkException("Cannot write sweep checkpoint " + checkpoint, e);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new Points(todo, 0, todo.size(), done, out));
+		} finally {
+			pool.shutdown();
+			out.close();
+		}
+
+		Map<SweepPoint, List<FlowResult>> results = new LinkedHashMap<SweepPoint, List<FlowResult>>();
+		for (SweepPoint p : points)
+			results.put(p, done.get(p.getKey()));
+		return results;
+	}
+
+	/**
+	 * Run a single point on the current thread
+	 *
+	 * @param p
+	 *            The point
+	 * @return How each flow did
+	 */
+	public List<FlowResult> runPoint(SweepPoint p) {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(NetworkSimulator.ExecutionMode.DISCRETE_EVENT);
+
+		// Seeded by the point, so the order points run in does not matter
+		sim.setSeed(seed * 31 + p.getKey().hashCode());
+
+		SimulationRunner.setupCase(scenario, sim, p.getAlg(), null);
+		p.applyTo(sim);
+		sim.run();
+		return FlowResult.ofAll(sim);
+	}
+
+	/*
+	 * First line of a checkpoint file, saying which sweep its points belong to
+	 */
+	private String runLine() {
+		return "# case " + scenario + ", seed " + seed;
+	}
+
+	/*
+	 * Results of the points in a checkpoint file, by key. The file must be
+	 * from a sweep of the same case with the same seed.
+	 */
+	private Map<String, List<FlowResult>> load(File checkpoint) {
+		Map<String, List<FlowResult>> done = new LinkedHashMap<String, List<FlowResult>>();
+		if (!checkpoint.exists() || checkpoint.length() == 0)
+			return done;
+
+		try (BufferedReader in = new BufferedReader(new FileReader(checkpoint))) {
+			String line = in.readLine();
+			if (!runLine().equals(line))
+				throw new NetworkException("Sweep checkpoint " + checkpoint + " is from another sweep: expected \""
+						+ runLine() + "\" but found \"" + line + "\"");
+
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+
+				// Skips the header, and any line cut short by an interruption
+				if (fields.length != 8 || line.equals(HEADER))
+					continue;
+
+				String key = fields[0] + "," + fields[1] + "," + fields[2] + "," + fields[3];
+				List<FlowResult> results = done.get(key);
+				if (results == null) {
+					results = new ArrayList<FlowResult>();
+					done.put(key, results);
+				}
+				results.add(new FlowResult(fields[4], Double.parseDouble(fields[5]), Double.parseDouble(fields[6]),
+						Double.parseDouble(fields[7])));
+			}
+		} catch (IOException | NumberFormatException e) {
+			throw new NetworkException("Cannot read sweep checkpoint " + checkpoint, e);
+		}
+		return done;
+	}
+
+	/**
+	 * Print a table of how each flow did at each point
+	 *
+	 * @param results
+	 *            The results of run()
+	 */
+	public void print(Map<SweepPoint, List<FlowResult>> results) {
+		System.out.println();
+		System.out.println("Case " + scenario + ", " + results.size() + " points:");
+		System.out.printf("%-12s %12s %10s %8s %-8s %12s %10s %8s%n", "Algorithm", "Capacity", "Buffer", "Delay",
+				"Flow", "Mb/s", "RTT (ms)", "Loss (%)");
+		for (Map.Entry<SweepPoint, List<FlowResult>> e : results.entrySet()) {
+			SweepPoint p = e.getKey();
+			for (FlowResult r : e.getValue()) {
+				System.out.printf("%-12s %12s %10s %8s %-8s %12.3f %10.3f %8.3f%n", p.getAlg(),
+						show(p.getCapacity()), show(p.getBufferSize()), show(p.getPropagationDelay()), r.getFlow(),
+						r.getThroughput(), r.getRTT(), r.getLoss() * 100);
+			}
+		}
+	}
+
+	private static String show(long value) {
+		return value == SweepPoint.KEEP ? "-" : Long.toString(value);
+	}
+
+	/**
+	 * Runs a range of points, splitting it in two until each half is a single
+	 * point so that idle threads can steal work
+	 */
+	private class Points extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<SweepPoint> points;
+		private final int from, to;
+		private final Map<String, List<FlowResult>> done;
+		private final PrintWriter out;
+
+		Points(List<SweepPoint> points, int from, int to, Map<String, List<FlowResult>> done, PrintWriter out) {
+			this.points = points;
+			this.from = from;
+			this.to = to;
+			this.done = done;
+			this.out = out;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) / 2;
+				invokeAll(new Points(points, from, middle, done, out), new Points(points, middle, to, done, out));
+				return;
+			}
+			if (to == from)
+				return;
+
+			SweepPoint p = points.get(from);
+			List<FlowResult> results = runPoint(p);
+
+			synchronized (out) {
+				done.put(p.getKey(), results);
+				for (FlowResult r : results)
+					out.println(p.getKey() + "," + r.getFlow() + "," + r.getThroughput() + "," + r.getRTT() + ","
+							+ r.getLoss());
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Evenly spaced values of a link parameter
+	 */
+	private static class Range {
+		final long min, max;
+		final int steps;
+
+		Range(long min, long max, int steps) {
+			if (min > max || steps < 1)
+				throw new IllegalArgumentException("Bad range: " + min + " to " + max + " in " + steps + " steps");
+			this.min = min;
+			this.max = max;
+			this.steps = steps;
+		}
+
+		long at(int step) {
+			return steps == 1 ? min : min + (max - min) * step / (steps - 1);
+		}
+
+		long sample(double fraction) {
+			return min + Math.round((max - min) * fraction);
+		}
+	}
+
+	/**
+	 * @param args
+	 *            The case, the checkpoint file, and optionally "lhs" and a
+	 *            number of samples to take a Latin hypercube sample instead of
+	 *            the full grid
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ParameterSweep case checkpoint-file [lhs samples]");
+			return;
+		}
+
+		ParameterSweep sweep = new ParameterSweep(Integer.parseInt(args[0]));
+		sweep.setAlgorithms(ALGORITHMS);
+		sweep.setCapacity(5000000, 15000000, 3);
+		sweep.setBufferSize(32000, 128000, 3);
+		sweep.setPropagationDelay(5, 20, 3);
+
+		List<SweepPoint> points;
+		if (args.length > 3 && args[2].equals("lhs"))
+			points = sweep.latinHypercube(Integer.parseInt(args[3]));
+		else
+			points = sweep.grid();
+
+		long start = System.currentTimeMillis();
+		Map<SweepPoint, List<FlowResult>> results = sweep.run(points, new File(args[1]));
+		sweep.print(results);
+		System.out.println("Took " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+}
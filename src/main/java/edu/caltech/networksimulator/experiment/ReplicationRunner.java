@@ -0,0 +1,213 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.NetworkSimulator;
+import edu.caltech.networksimulator.SimulationRunner;
+
+/**
+ * Runs independent replications of one of the standard cases at the same
+ * time, one per core, and sums up how each flow did over all of them.
+ *
+ * Every replication builds its own simulator, with its own seed taken from a
+ * master seed, and runs it event driven and headless. Flows start at a random
+ * point within the start jitter after their start delay, which is what makes
+ * the replications differ. The same master seed always gives the same
+ * results, however many threads are used.
+ */
+public class ReplicationRunner {
+
+	private final int scenario;
+	private final String alg;
+
+	private int replications;
+	private long seed;
+	private long startJitter;
+	private double confidence;
+	private int parallelism;
+
+	/**
+	 * @param scenario
+	 *            Which case of SimulationRunner.setupCase() to run
+	 * @param alg
+	 *            The window algorithm the flows use
+	 */
+	public ReplicationRunner(int scenario, String alg) {
+		this.scenario = scenario;
+		this.alg = alg;
+
+		replications = 20;
+		seed = 1;
+		startJitter = 100;
+		confidence = 0.95;
+		parallelism = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param replications
+	 *            How many replications to run, at least 2
+	 */
+	public void setReplications(int replications) {
+		if (replications < 2)
+			throw new IllegalArgumentException("Need at least two replications");
+		this.replications = replications;
+	}
+
+	/**
+	 * @param seed
+	 *            The master seed, which seeds every replication
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param millis
+	 *            How much later than their start delay flows may start
+	 */
+	public void setStartJitter(long millis) {
+		this.startJitter = millis;
+	}
+
+	/**
+	 * @param confidence
+	 *            The confidence level of the intervals reported, such as 0.95
+	 */
+	public void setConfidence(double confidence) {
+		this.confidence = confidence;
+	}
+
+	/**
+	 * @param parallelism
+	 *            How many replications to run at once
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Run all the replications, returning once they are done
+	 *
+	 * @return How each flow did, by flow name
+	 */
+	public Map<String, FlowStatistics> run() {
+		// Seeds are drawn up front so they do not depend on scheduling
+		Random seeds = new Random(seed);
+		List<Callable<List<FlowResult>>> tasks = new ArrayList<Callable<List<FlowResult>>>();
+		for (int i = 0; i < replications; i++) {
+			final long replicationSeed = seeds.nextLong();
+			tasks.add(new Callable<List<FlowResult>>() {
+
+				@Override
+				public List<FlowResult> call() {
+					return runOnce(scenario, alg, replicationSeed, startJitter);
+				}
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			Map<String, FlowStatistics> stats = new LinkedHashMap<String, FlowStatistics>();
+			for (Future<List<FlowResult>> result : pool.invokeAll(tasks)) {
+				for (FlowResult r : result.get()) {
+					FlowStatistics s = stats.get(r.getFlow());
+					if (s == null) {
+						s = new FlowStatistics(r.getFlow());
+						stats.put(r.getFlow(), s);
+					}
+					s.add(r);
+				}
+			}
+			return stats;
+		} catch (InterruptedException e) {
+			throw new NetworkException("Interrupted while running replications", e);
+		} catch (ExecutionException e) {
+			throw new NetworkException("Replication failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Run one replication of a case on the current thread
+	 *
+	 * @param scenario
+	 *            Which case of SimulationRunner.setupCase() to run
+	 * @param alg
+	 *            The window algorithm the flows use
+	 * @param seed
+	 *            The seed of the simulation
+	 * @param startJitter
+	 *            How much later than their start delay flows may start, in
+	 *            milliseconds
+	 * @return How each flow did
+	 */
+	public static List<FlowResult> runOnce(int scenario, String alg, long seed, long startJitter) {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(NetworkSimulator.ExecutionMode.DISCRETE_EVENT);
+		sim.setSeed(seed);
+		sim.setFlowStartJitter(startJitter);
+		SimulationRunner.setupCase(scenario, sim, alg, null);
+		sim.run();
+		return FlowResult.ofAll(sim);
+	}
+
+	/**
+	 * Print a table of how each flow did
+	 *
+	 * @param stats
+	 *            The results of run()
+	 */
+	public void print(Map<String, FlowStatistics> stats) {
+		System.out.println();
+		System.out.println("Case " + scenario + ", " + alg + ", " + replications + " replications, "
+				+ Math.round(confidence * 100) + "% confidence intervals:");
+		System.out.printf("%-10s %24s %24s %24s%n", "Flow", "Throughput (Mb/s)", "RTT (ms)", "Loss (%)");
+		for (FlowStatistics s : stats.values()) {
+			System.out.printf("%-10s %24s %24s %24s%n", s.getFlow(), s.getThroughput().format(confidence, "%.3f"),
+					s.getRTT().format(confidence, "%.3f"), percent(s.getLoss()));
+		}
+	}
+
+	private String percent(Summary s) {
+		return String.format("%.3f +/- %.3f", s.getMean() * 100, s.getHalfWidth(confidence) * 100);
+	}
+
+	/**
+	 * @param args
+	 *            The case, the window algorithm, and optionally the number of
+	 *            replications and the master seed
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplicationRunner case alg [replications] [seed]");
+			return;
+		}
+
+		ReplicationRunner runner = new ReplicationRunner(Integer.parseInt(args[0]), args[1]);
+		if (args.length > 2)
+			runner.setReplications(Integer.parseInt(args[2]));
+		if (args.length > 3)
+			runner.setSeed(Long.parseLong(args[3]));
+
+		long start = System.currentTimeMillis();
+		Map<String, FlowStatistics> stats = runner.run();
+		runner.print(stats);
+		System.out.println("Took " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+}
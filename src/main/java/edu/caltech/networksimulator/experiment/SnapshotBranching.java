@@ -0,0 +1,378 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.Flow;
+import edu.caltech.networksimulator.Host;
+import edu.caltech.networksimulator.Link;
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.NetworkSimulator;
+import edu.caltech.networksimulator.SimulationRunner;
+import edu.caltech.networksimulator.engine.Snapshot;
+
+/**
+ * Runs a simulation up to a point, then branches it into simulations which
+ * each make a different change, such as another window algorithm or link
+ * capacity, and carry on from there at the same time.
+ *
+ * The simulation is only run up to the fork once. Its state is saved in a
+ * snapshot, which never changes and so is shared by every branch. Each branch
+ * builds the network again with the same setup and restores the whole
+ * snapshot into it, so routing and slow start are not simulated again, and
+ * branches only differ in what happens after the fork.
+ *
+ * This is not copy-on-write: every branch holds a full copy of the state,
+ * decoded from the snapshot when it starts, whether or not it changes it.
+ * It saves simulating up to the fork again, not memory.
+ */
+public class SnapshotBranching {
+
+	private final Setup setup;
+
+	private long seed;
+	private int parallelism;
+
+	private Snapshot fork;
+
+	/**
+	 * @param setup
+	 *            Builds the network, for the run up to the fork and again for
+	 *            every branch
+	 */
+	public SnapshotBranching(Setup setup) {
+		this.setup = setup;
+
+		seed = 0;
+		parallelism = Runtime.getRuntime().availableProcessors();
+		fork = null;
+	}
+
+	/**
+	 * @param seed
+	 *            The seed of the simulation
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param parallelism
+	 *            How many branches to run at once
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Run the simulation up to the fork and save it there
+	 *
+	 * @param millis
+	 *            The simulated time to fork at
+	 * @return The saved simulation, which branches continue from
+	 */
+	public Snapshot fork(long millis) {
+		NetworkSimulator sim = newSimulation();
+		sim.setSnapshot(millis, null);
+		sim.setSimulatedTimeBudget(millis);
+		sim.run();
+
+		fork = sim.getSnapshot();
+		if (fork == null)
+			throw new NetworkException("Simulation finished before " + millis + " ms, nothing to fork");
+		return fork;
+	}
+
+	/**
+	 * Run every branch from the fork to the end, returning once they are
+	 * done. fork() must have been called.
+	 *
+	 * @param branches
+	 *            The branches
+	 * @return How each flow did in each branch, by branch name
+	 */
+	public Map<String, List<FlowResult>> run(List<Branch> branches) {
+		if (fork == null)
+			throw new IllegalStateException("Must fork before running branches");
+
+		List<Callable<List<FlowResult>>> tasks = new ArrayList<Callable<List<FlowResult>>>();
+		for (final Branch b : branches) {
+			tasks.add(new Callable<List<FlowResult>>() {
+
+				@Override
+				public List<FlowResult> call() {
+					return runBranch(b);
+				}
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			Map<String, List<FlowResult>> results = new LinkedHashMap<String, List<FlowResult>>();
+			List<Future<List<FlowResult>>> done = pool.invokeAll(tasks);
+			for (int i = 0; i < branches.size(); i++)
+				results.put(branches.get(i).getName(), done.get(i).get());
+			return results;
+		} catch (InterruptedException e) {
+			throw new NetworkException("Interrupted while running branches", e);
+		} catch (ExecutionException e) {
+			throw new NetworkException("Branch failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Run one branch from the fork on the current thread
+	 *
+	 * @param b
+	 *            The branch
+	 * @return How each flow did
+	 */
+	public List<FlowResult> runBranch(final Branch b) {
+		final NetworkSimulator sim = newSimulation();
+		sim.setRestore(fork);
+		sim.setAfterRestore(new Runnable() {
+
+			@Override
+			public void run() {
+				b.apply(sim);
+			}
+		});
+		sim.run();
+		return FlowResult.ofAll(sim);
+	}
+
+	private NetworkSimulator newSimulation() {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(NetworkSimulator.ExecutionMode.DISCRETE_EVENT);
+		sim.setSeed(seed);
+		setup.build(sim);
+		return sim;
+	}
+
+	/**
+	 * Print a table of how each flow did in each branch
+	 *
+	 * @param results
+	 *            The results of run()
+	 */
+	public void print(Map<String, List<FlowResult>> results) {
+		System.out.println();
+		System.out.println(setup.getName() + ", forked at "
+				+ TimeUnit.NANOSECONDS.toMillis(fork.getTime()) + " ms:");
+		System.out.printf("%-24s %-10s %18s %12s %10s%n", "Branch", "Flow", "Throughput (Mb/s)", "RTT (ms)",
+				"Loss (%)");
+		for (Map.Entry<String, List<FlowResult>> branch : results.entrySet()) {
+			for (FlowResult r : branch.getValue()) {
+				System.out.printf("%-24s %-10s %18.3f %12.3f %10.3f%n", branch.getKey(), r.getFlow(),
+						r.getThroughput(), r.getRTT(), r.getLoss() * 100);
+			}
+		}
+	}
+
+	/**
+	 * How to build the network being branched. It must build the same
+	 * network every time, for the snapshot to fit it.
+	 */
+	public static abstract class Setup {
+
+		private final String name;
+
+		/**
+		 * @param name
+		 *            What the network is called in results
+		 */
+		public Setup(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Add the components of the network to a simulation
+		 *
+		 * @param sim
+		 *            A new simulation
+		 */
+		public abstract void build(NetworkSimulator sim);
+
+		/**
+		 * @param scenario
+		 *            Which case of SimulationRunner.setupCase() to run
+		 * @param alg
+		 *            The window algorithm the flows use up to the fork
+		 * @return a setup building one of the standard cases
+		 */
+		public static Setup standardCase(final int scenario, final String alg) {
+			return new Setup("Case " + scenario + ", " + alg) {
+
+				@Override
+				public void build(NetworkSimulator sim) {
+					SimulationRunner.setupCase(scenario, sim, alg, null);
+				}
+			};
+		}
+	}
+
+	/**
+	 * A change made to the simulation at the fork
+	 */
+	public static abstract class Branch {
+
+		private final String name;
+
+		/**
+		 * @param name
+		 *            What the branch is called in results
+		 */
+		public Branch(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Make the change, to a simulation which has just been restored to
+		 * the fork
+		 *
+		 * @param sim
+		 *            The simulation
+		 */
+		public abstract void apply(NetworkSimulator sim);
+
+		/**
+		 * @return a branch which carries on without changing anything
+		 */
+		public static Branch unchanged() {
+			return new Branch("unchanged") {
+
+				@Override
+				public void apply(NetworkSimulator sim) {
+				}
+			};
+		}
+
+		/**
+		 * @param alg
+		 *            The window algorithm every flow switches to
+		 * @return a branch where every flow switches window algorithm
+		 */
+		public static Branch windowAlgorithm(final String alg) {
+			return new Branch(alg) {
+
+				@Override
+				public void apply(NetworkSimulator sim) {
+					for (NetworkComponent n : sim.getComponents()) {
+						if (n instanceof Flow)
+							((Flow) n).setWindowAlgorithm(alg);
+					}
+				}
+			};
+		}
+
+		/**
+		 * @param factor
+		 *            What to multiply the capacity of every link by
+		 * @return a branch where every link's capacity changes
+		 */
+		public static Branch scaleCapacity(final double factor) {
+			return new Branch("capacity x" + factor) {
+
+				@Override
+				public void apply(NetworkSimulator sim) {
+					for (NetworkComponent n : sim.getComponents()) {
+						if (n instanceof Link) {
+							Link l = (Link) n;
+							l.setCapacity(Math.round(l.getCapacity() * factor));
+						}
+					}
+				}
+			};
+		}
+
+		/**
+		 * @param source
+		 *            Name of the host which sends the new flow, which must
+		 *            not have a flow yet
+		 * @param dest
+		 *            Name of the host the flow goes to
+		 * @param megabytes
+		 *            How much data the flow sends
+		 * @param alg
+		 *            The window algorithm of the new flow
+		 * @return a branch where a new flow starts at the fork
+		 */
+		public static Branch addFlow(final String source, final String dest, final long megabytes,
+				final String alg) {
+			return new Branch("new flow " + source + "->" + dest) {
+
+				@Override
+				public void apply(NetworkSimulator sim) {
+					Host from = findHost(sim, source);
+					Host to = findHost(sim, dest);
+
+					Flow f = new Flow(from.getIP(), to.getIP(), "Fork" + source, megabytes, 0, alg);
+					sim.addComponent(f);
+					from.addFlow(f);
+				}
+			};
+		}
+
+		private static Host findHost(NetworkSimulator sim, String name) {
+			for (NetworkComponent n : sim.getComponents()) {
+				if (n instanceof Host && n.getComponentName().equals(name))
+					return (Host) n;
+			}
+			throw new NetworkException("No host called " + name);
+		}
+	}
+
+	/**
+	 * @param args
+	 *            The case, the window algorithm up to the fork, and the
+	 *            simulated time to fork at in milliseconds
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Usage: SnapshotBranching case alg forkMillis");
+			return;
+		}
+
+		SnapshotBranching fork = new SnapshotBranching(Setup.standardCase(Integer.parseInt(args[0]), args[1]));
+
+		long start = System.currentTimeMillis();
+		fork.fork(Long.parseLong(args[2]));
+
+		List<Branch> branches = new ArrayList<Branch>();
+		branches.add(Branch.unchanged());
+		for (String alg : ParameterSweep.ALGORITHMS) {
+			if (!alg.equals(args[1]))
+				branches.add(Branch.windowAlgorithm(alg));
+		}
+		branches.add(Branch.scaleCapacity(0.5));
+		branches.add(Branch.scaleCapacity(2));
+
+		Map<String, List<FlowResult>> results = fork.run(branches);
+		fork.print(results);
+		System.out.println("Took " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+}
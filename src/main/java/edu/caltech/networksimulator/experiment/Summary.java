@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+/**
+ * Running mean and variance of a series of independent observations, such as
+ * one result from each replication of an experiment, with confidence
+ * intervals for the mean from Student's t distribution.
+ */
+public class Summary {
+
+	private long count;
+	private double mean;
+	private double squares; // sum of squared differences from the mean
+	private double min, max;
+
+	public Summary() {
+		count = 0;
+		mean = 0;
+		squares = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Add an observation
+	 *
+	 * @param x
+	 *            The value
+	 */
+	public void add(double x) {
+		// Welford's method, which stays accurate for long series
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		squares += delta * (x - mean);
+
+		min = Math.min(min, x);
+		max = Math.max(max, x);
+	}
+
+	/**
+	 * @return the number of observations
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean of the observations, or zero if there are none
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return the sample variance of the observations, or zero if there are
+	 *         fewer than two
+	 */
+	public double getVariance() {
+		return count < 2 ? 0 : squares / (count - 1);
+	}
+
+	/**
+	 * @return the sample standard deviation of the observations
+	 */
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * Get the half width of a confidence interval for the mean, so that the
+	 * interval is the mean plus or minus this
+	 *
+	 * @param confidence
+	 *            The confidence level, such as 0.95
+	 * @return The half width, or infinity if there are fewer than two
+	 *         observations
+	 */
+	public double getHalfWidth(double confidence) {
+		if (count < 2)
+			return Double.POSITIVE_INFINITY;
+		if (confidence <= 0 || confidence >= 1)
+			throw new IllegalArgumentException("Confidence must be between 0 and 1: " + confidence);
+
+		double t = studentQuantile(1 - (1 - confidence) / 2, count - 1);
+		return t * getStandardDeviation() / Math.sqrt(count);
+	}
+
+	/**
+	 * Format as the mean plus or minus the half width of its confidence
+	 * interval
+	 *
+	 * @param confidence
+	 *            The confidence level
+	 * @param format
+	 *            How to format each of the two numbers, such as "%.3f"
+	 * @return The formatted interval
+	 */
+	public String format(double confidence, String format) {
+		return String.format(format + " +/- " + format, getMean(), getHalfWidth(confidence));
+	}
+
+	@Override
+	public String toString() {
+		return format(0.95, "%.4g");
+	}
+
+	/*
+	 * Quantile of Student's t distribution. Exact for one and two degrees of
+	 * freedom, otherwise the Cornish-Fisher expansion around the normal
+	 * quantile, which is good to three digits from three degrees of freedom.
+	 */
+	static double studentQuantile(double p, long dof) {
+		if (dof == 1)
+			return Math.tan(Math.PI * (p - 0.5));
+		if (dof == 2)
+			return (2 * p - 1) / Math.sqrt(2 * p * (1 - p));
+
+		double z = normalQuantile(p);
+		double z2 = z * z;
+		double n = dof;
+		return z + z * (z2 + 1) / (4 * n)
+				+ z * ((5 * z2 + 16) * z2 + 3) / (96 * n * n)
+				+ z * (((3 * z2 + 19) * z2 + 17) * z2 - 15) / (384 * n * n * n)
+				+ z * ((((79 * z2 + 776) * z2 + 1482) * z2 - 1920) * z2 - 945) / (92160 * n * n * n * n);
+	}
+
+	/*
+	 * Quantile of the standard normal distribution, by P. J. Acklam's
+	 * rational approximation (relative error below 1.2e-9)
+	 */
+	static double normalQuantile(double p) {
+		if (p <= 0 || p >= 1)
+			throw new IllegalArgumentException("Probability must be between 0 and 1: " + p);
+
+		final double[] a = { -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+				1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00 };
+		final double[] b = { -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+				6.680131188771972e+01, -1.328068155288572e+01 };
+		final double[] c = { -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+				-2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00 };
+		final double[] d = { 7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+				3.754408661907416e+00 };
+
+		double low = 0.02425;
+		if (p < low) {
+			double q = Math.sqrt(-2 * Math.log(p));
+			return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+					/ ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		if (p > 1 - low)
+			return -normalQuantile(1 - p);
+
+		double q = p - 0.5;
+		double r = q * q;
+		return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+				/ (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+	}
+
+}
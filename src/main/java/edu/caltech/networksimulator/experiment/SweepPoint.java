@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.experiment;
+
+import edu.caltech.networksimulator.Link;
+import edu.caltech.networksimulator.NetworkComponent;
+import edu.caltech.networksimulator.NetworkSimulator;
+
+/**
+ * One combination of parameters in a ParameterSweep. The link parameters are
+ * given to every link of the case; any of them which is KEEP leaves the
+ * links as the case set them up.
+ */
+public class SweepPoint {
+
+	/**
+	 * Value of a link parameter which is not swept
+	 */
+	public static final long KEEP = -1;
+
+	private final String alg;
+	private final long capacity;
+	private final long bufferSize;
+	private final long propagationDelay;
+
+	/**
+	 * @param alg
+	 *            The window algorithm of every flow
+	 * @param capacity
+	 *            Link capacity in bits per second, or KEEP
+	 * @param bufferSize
+	 *            Link buffer size in bytes, or KEEP
+	 * @param propagationDelay
+	 *            Link propagation delay in milliseconds, or KEEP
+	 */
+	public SweepPoint(String alg, long capacity, long bufferSize, long propagationDelay) {
+		this.alg = alg;
+		this.capacity = capacity;
+		this.bufferSize = bufferSize;
+		this.propagationDelay = propagationDelay;
+	}
+
+	public String getAlg() {
+		return alg;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getBufferSize() {
+		return bufferSize;
+	}
+
+	public long getPropagationDelay() {
+		return propagationDelay;
+	}
+
+	/**
+	 * Change the links of a simulation which has been set up but not yet run
+	 *
+	 * @param sim
+	 *            The simulation
+	 */
+	void applyTo(NetworkSimulator sim) {
+		for (NetworkComponent n : sim.getComponents()) {
+			if (!(n instanceof Link))
+				continue;
+
+			Link l = (Link) n;
+			if (capacity != KEEP)
+				l.setCapacity(capacity);
+			if (bufferSize != KEEP)
+				l.setBufferSize(bufferSize);
+			if (propagationDelay != KEEP)
+				l.setPropagationDelay(propagationDelay);
+		}
+	}
+
+	/**
+	 * @return the parameters separated by commas, which identifies the point
+	 *         in a sweep's checkpoint file
+	 */
+	public String getKey() {
+		return alg + "," + capacity + "," + bufferSize + "," + propagationDelay;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof SweepPoint && ((SweepPoint) o).getKey().equals(getKey());
+	}
+
+	@Override
+	public int hashCode() {
+		return getKey().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "{" + getKey() + "}";
+	}
+
+}
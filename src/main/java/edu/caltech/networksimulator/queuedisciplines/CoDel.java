@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.queuedisciplines;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.random.RandomStream;
+
+/**
+ * Controlled Delay, as in RFC 8289. Looks at how long packets waited in the
+ * buffer rather than how full it is. Once every packet for a whole INTERVAL
+ * has waited longer than TARGET, packets are dropped as they leave, more and
+ * more often, until one waits less than TARGET again.
+ *
+ * Nothing is dropped as it arrives, and nothing needs random numbers.
+ */
+public class CoDel extends QueueDiscipline {
+
+	private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// When the sojourn time will have been above the target for an interval,
+	// or 0 if it is below it
+	private long firstAboveTime;
+
+	// When to drop the next packet while dropping
+	private long dropNext;
+
+	// Drops since dropping started, and how many there were last time
+	private int count, lastCount;
+
+	private boolean dropping;
+
+	// Largest packet seen, below which the buffer is never short of packets
+	private long maxPacket;
+
+	public CoDel(String name, long bufferSize) {
+		super(name, bufferSize);
+		firstAboveTime = 0;
+		dropNext = 0;
+		count = 0;
+		lastCount = 0;
+		dropping = false;
+		maxPacket = 0;
+	}
+
+	@Override
+	public boolean dropOnEnqueue(Packet p, long queued, long now, RandomStream random) {
+		return false;
+	}
+
+	@Override
+	public boolean dropOnDequeue(Packet p, long sojourn, long queued, long now) {
+		maxPacket = Math.max(maxPacket, p.getPacketSize());
+		boolean okToDrop = okToDrop(sojourn, queued, now);
+
+		if (dropping) {
+			if (!okToDrop) {
+				dropping = false;
+				return false;
+			}
+			if (now >= dropNext) {
+				count++;
+				dropNext = controlLaw(dropNext);
+				return true;
+			}
+			return false;
+		}
+
+		if (!okToDrop)
+			return false;
+
+		// Start dropping, carrying on from the last drop rate if that was
+		// recent
+		dropping = true;
+		int delta = count - lastCount;
+		count = delta > 1 && now - dropNext < 16 * INTERVAL ? delta : 1;
+		lastCount = count;
+		dropNext = controlLaw(now);
+		return true;
+	}
+
+	private boolean okToDrop(long sojourn, long queued, long now) {
+		if (sojourn < TARGET || queued <= maxPacket) {
+			firstAboveTime = 0;
+			return false;
+		}
+		if (firstAboveTime == 0) {
+			firstAboveTime = now + INTERVAL;
+			return false;
+		}
+		return now >= firstAboveTime;
+	}
+
+	/*
+	 * Time of the next drop, sooner the more drops there have been
+	 */
+	private long controlLaw(long t) {
+		return t + (long) (INTERVAL / Math.sqrt(count));
+	}
+
+	@Override
+	public Object saveState() {
+		return new Object[] { new long[] { firstAboveTime, dropNext, maxPacket }, count, lastCount, dropping };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		long[] times = (long[]) saved[0];
+		firstAboveTime = times[0];
+		dropNext = times[1];
+		maxPacket = times[2];
+		count = (Integer) saved[1];
+		lastCount = (Integer) saved[2];
+		dropping = (Boolean) saved[3];
+	}
+
+}
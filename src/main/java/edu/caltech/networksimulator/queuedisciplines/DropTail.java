@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.queuedisciplines;
+
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.random.RandomStream;
+
+/**
+ * Keeps every packet which fits in the buffer, so drops only happen once the
+ * buffer is full
+ */
+public class DropTail extends QueueDiscipline {
+
+	public DropTail(String name, long bufferSize) {
+		super(name, bufferSize);
+	}
+
+	@Override
+	public boolean dropOnEnqueue(Packet p, long queued, long now, RandomStream random) {
+		return false;
+	}
+
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.queuedisciplines;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.random.RandomStream;
+
+/**
+ * Proportional Integral controller Enhanced, as in RFC 8033. Drops arriving
+ * packets with a chance which is moved every UPDATE_INTERVAL towards keeping
+ * the queueing delay at TARGET, by how far off the delay is and how fast it
+ * is changing. The delay is the sojourn time of the last packet sent, as in
+ * the timestamp variant of the RFC.
+ *
+ * The chance is only updated when packets come and go, rather than on a
+ * timer, so an idle buffer catches up with a single update.
+ */
+public class PIE extends QueueDiscipline {
+
+	private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(15);
+	private static final long UPDATE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(15);
+	private static final long MAX_BURST = TimeUnit.MILLISECONDS.toNanos(150);
+
+	// Delay above which the chance goes up by a fixed amount per update
+	private static final long MAX_DELAY = TimeUnit.MILLISECONDS.toNanos(250);
+
+	// Gains, per second of delay
+	private static final double ALPHA = 0.125, BETA = 1.25;
+
+	private double dropChance;
+
+	// Delay now and at the last update
+	private long delay, lastDelay;
+
+	// How much longer a burst is let through without drops
+	private long burstAllowance;
+
+	private long nextUpdate;
+
+	public PIE(String name, long bufferSize) {
+		super(name, bufferSize);
+		dropChance = 0;
+		delay = 0;
+		lastDelay = 0;
+		burstAllowance = MAX_BURST;
+		nextUpdate = UPDATE_INTERVAL;
+	}
+
+	@Override
+	public boolean dropOnEnqueue(Packet p, long queued, long now, RandomStream random) {
+		update(now);
+
+		if (burstAllowance > 0)
+			return false;
+		if (lastDelay < TARGET / 2 && dropChance < 0.2)
+			return false;
+		// Never drop with less than two packets queued
+		if (queued <= 2 * p.getPacketSize())
+			return false;
+		return random.nextDouble() < dropChance;
+	}
+
+	@Override
+	public boolean dropOnDequeue(Packet p, long sojourn, long queued, long now) {
+		delay = queued == 0 ? 0 : sojourn;
+		update(now);
+		return false;
+	}
+
+	private void update(long now) {
+		if (now < nextUpdate)
+			return;
+		nextUpdate = now + UPDATE_INTERVAL;
+
+		double seconds = TimeUnit.SECONDS.toNanos(1);
+		double p = ALPHA * (delay - TARGET) / seconds + BETA * (delay - lastDelay) / seconds;
+
+		// Move slowly while the chance is small
+		if (dropChance < 0.000001)
+			p /= 2048;
+		else if (dropChance < 0.00001)
+			p /= 512;
+		else if (dropChance < 0.0001)
+			p /= 128;
+		else if (dropChance < 0.001)
+			p /= 32;
+		else if (dropChance < 0.01)
+			p /= 8;
+		else if (dropChance < 0.1)
+			p /= 2;
+		else if (p > 0.02)
+			p = 0.02;
+
+		dropChance += p;
+		if (delay > MAX_DELAY)
+			dropChance += 0.02;
+		if (delay == 0 && lastDelay == 0)
+			dropChance *= 0.98;
+		dropChance = Math.min(1, Math.max(0, dropChance));
+
+		burstAllowance = Math.max(0, burstAllowance - UPDATE_INTERVAL);
+		if (dropChance == 0 && delay < TARGET / 2 && lastDelay < TARGET / 2)
+			burstAllowance = MAX_BURST;
+
+		lastDelay = delay;
+	}
+
+	@Override
+	public Object saveState() {
+		return new Object[] { dropChance, new long[] { delay, lastDelay, burstAllowance, nextUpdate } };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		dropChance = (Double) saved[0];
+		long[] fields = (long[]) saved[1];
+		delay = fields[0];
+		lastDelay = fields[1];
+		burstAllowance = fields[2];
+		nextUpdate = fields[3];
+	}
+
+}
@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.queuedisciplines;
+
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.engine.StateSaving;
+import edu.caltech.networksimulator.random.RandomStream;
+
+/**
+ * Every link buffer has a queue discipline, which decides which packets to
+ * drop before the buffer is full, so that senders back off before a standing
+ * queue builds up.
+ *
+ * The link always drops packets which do not fit in the buffer. A discipline
+ * may also drop a packet as it arrives, or as it leaves the buffer once it is
+ * known how long it waited there (its sojourn time). Each end of a link has
+ * its own discipline, and the decisions for a packet must take a constant
+ * amount of work.
+ *
+ * Times are simulated nanoseconds and sizes are bytes.
+ */
+public abstract class QueueDiscipline implements StateSaving {
+
+	/**
+	 * Name of the discipline links use unless told otherwise
+	 */
+	public static final String DEFAULT = "DropTail";
+
+	private final String name;
+
+	/**
+	 * Size of the buffer the discipline looks after
+	 */
+	protected final long bufferSize;
+
+	public QueueDiscipline(String name, long bufferSize) {
+		this.name = name;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Make a discipline by name
+	 *
+	 * @param name
+	 *            One of DropTail, RED, CoDel or PIE
+	 * @param bufferSize
+	 *            Size of the buffer it looks after
+	 * @return A new discipline, with nothing queued
+	 */
+	public static QueueDiscipline forName(String name, long bufferSize) {
+		if (name.equals("DropTail")) {
+			return new DropTail(name, bufferSize);
+		} else if (name.equals("RED")) {
+			return new RED(name, bufferSize);
+		} else if (name.equals("CoDel")) {
+			return new CoDel(name, bufferSize);
+		} else if (name.equals("PIE")) {
+			return new PIE(name, bufferSize);
+		} else {
+			throw new NetworkException("Unrecognized queue discipline " + name);
+		}
+	}
+
+	/**
+	 * Gets the name of the queue discipline
+	 *
+	 * @return A String of the queue discipline's name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Decide whether to drop a packet arriving at the buffer. Only called for
+	 * packets which fit.
+	 *
+	 * @param p
+	 *            The packet
+	 * @param queued
+	 *            Bytes in the buffer before the packet
+	 * @param now
+	 *            The time
+	 * @param random
+	 *            Random numbers to draw from, which should only be drawn from
+	 *            if the decision needs them
+	 * @return Whether to drop the packet
+	 */
+	public abstract boolean dropOnEnqueue(Packet p, long queued, long now, RandomStream random);
+
+	/**
+	 * Decide whether to drop a packet which has just been taken from the
+	 * buffer to be sent. If it is dropped, the next packet is taken and asked
+	 * about in turn.
+	 *
+	 * @param p
+	 *            The packet
+	 * @param sojourn
+	 *            How long the packet was in the buffer
+	 * @param queued
+	 *            Bytes left in the buffer without the packet
+	 * @param now
+	 *            The time
+	 * @return Whether to drop the packet. Keeps every packet unless
+	 *         overridden.
+	 */
+	public boolean dropOnDequeue(Packet p, long sojourn, long queued, long now) {
+		return false;
+	}
+
+	/**
+	 * Disciplines with no state have nothing to save
+	 */
+	@Override
+	public Object saveState() {
+		return null;
+	}
+
+	@Override
+	public void restoreState(Object state) {
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.queuedisciplines;
+
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.random.RandomStream;
+
+/**
+ * Random Early Detection, after Floyd and Jacobson. Keeps a moving average of
+ * the bytes queued, and drops arriving packets with a chance which rises from
+ * nothing at the lower threshold to MAX_P at the upper one. Above the upper
+ * threshold every packet is dropped. Drops are spread out by raising the
+ * chance with the number of packets kept since the last drop.
+ *
+ * The thresholds are fractions of the buffer, so the same settings suit
+ * buffers of any size.
+ */
+public class RED extends QueueDiscipline {
+
+	// Weight of each new sample in the average
+	private static final double WEIGHT = 0.002;
+
+	// Thresholds, as fractions of the buffer
+	private static final double MIN_THRESHOLD = 0.1, MAX_THRESHOLD = 0.3;
+
+	// Chance of dropping a packet at the upper threshold
+	private static final double MAX_P = 0.1;
+
+	private final double minThreshold, maxThreshold;
+
+	// Average bytes queued
+	private double average;
+
+	// Packets kept since the last drop, or -1 when below the lower threshold
+	private int count;
+
+	// When the buffer last became empty, or -1 if it is not, and the time
+	// between the last two packets sent, to age the average while idle
+	private long idleSince;
+	private long lastDequeue, sendTime;
+
+	public RED(String name, long bufferSize) {
+		super(name, bufferSize);
+		minThreshold = MIN_THRESHOLD * bufferSize;
+		maxThreshold = MAX_THRESHOLD * bufferSize;
+		average = 0;
+		count = -1;
+		idleSince = -1;
+		lastDequeue = 0;
+		sendTime = 0;
+	}
+
+	@Override
+	public boolean dropOnEnqueue(Packet p, long queued, long now, RandomStream random) {
+		if (queued == 0 && idleSince >= 0 && sendTime > 0) {
+			// Age the average as if empty packets had been arriving while idle
+			average *= Math.pow(1 - WEIGHT, (double) (now - idleSince) / sendTime);
+		} else {
+			average += WEIGHT * (queued - average);
+		}
+		idleSince = -1;
+
+		if (average < minThreshold) {
+			count = -1;
+			return false;
+		}
+		if (average >= maxThreshold) {
+			count = 0;
+			return true;
+		}
+
+		count++;
+		double pb = MAX_P * (average - minThreshold) / (maxThreshold - minThreshold);
+		double pa = count * pb >= 1 ? 1 : pb / (1 - count * pb);
+		if (random.nextDouble() < pa) {
+			count = 0;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean dropOnDequeue(Packet p, long sojourn, long queued, long now) {
+		sendTime = now - lastDequeue;
+		lastDequeue = now;
+		if (queued == 0)
+			idleSince = now;
+		return false;
+	}
+
+	@Override
+	public Object saveState() {
+		return new Object[] { average, count, new long[] { idleSince, lastDequeue, sendTime } };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		average = (Double) saved[0];
+		count = (Integer) saved[1];
+		long[] times = (long[]) saved[2];
+		idleSince = times[0];
+		lastDequeue = times[1];
+		sendTime = times[2];
+	}
+
+}
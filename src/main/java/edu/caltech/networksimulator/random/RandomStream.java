@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.random;
+
+import java.util.Random;
+
+import edu.caltech.networksimulator.engine.StateSaving;
+
+/**
+ * A fast stream of random numbers for use by a single component.
+ *
+ * Uses the SplitMix64 generator: a counter advanced by a fixed odd constant
+ * and scrambled on the way out. Unlike java.util.Random, nothing is
+ * synchronized or atomic, so a stream must only be used by one thread at a
+ * time, which is what makes it cheap. Streams split off one another are
+ * statistically independent.
+ *
+ * Can be saved and restored, so that a rolled back component draws the same
+ * numbers again.
+ */
+public class RandomStream extends Random implements StateSaving {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	// Set by setSeed(), which Random's constructor calls, so it must not have
+	// an initializer
+	private long state;
+
+	/**
+	 * Creates a new stream
+	 *
+	 * @param seed
+	 *            The seed, which the numbers depend on entirely
+	 */
+	public RandomStream(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		state = mix64(seed);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public long nextLong() {
+		return mix64(state += GOLDEN_GAMMA);
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Create a new stream, independent of this one, for example for a part of
+	 * a component which runs on a different thread
+	 *
+	 * @return The new stream
+	 */
+	public RandomStream split() {
+		return new RandomStream(nextLong());
+	}
+
+	@Override
+	public Object saveState() {
+		return state;
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		this.state = (Long) state;
+	}
+
+	/**
+	 * Scramble the bits of a number (the SplitMix64 finalizer)
+	 *
+	 * @param z
+	 *            The number
+	 * @return The scrambled number
+	 */
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.random;
+
+/**
+ * Hands out the random streams of a simulation, all derived from one master
+ * seed. Each component's stream depends only on the master seed and the
+ * component's name, so adding, removing or reordering other components never
+ * changes the numbers a component draws.
+ */
+public class RandomStreams {
+
+	private final long seed;
+
+	/**
+	 * @param seed
+	 *            The master seed
+	 */
+	public RandomStreams(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the master seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Get a new stream for a component
+	 *
+	 * @param name
+	 *            The name of the component
+	 * @return The stream, which will be the same every time for the same
+	 *         name and master seed
+	 */
+	public RandomStream streamFor(String name) {
+		// FNV-1a hash of the name
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return new RandomStream(RandomStream.mix64(seed) ^ RandomStream.mix64(hash));
+	}
+
+}
@@ -28,4 +28,10 @@ public class ExponentialWindow extends WindowAlgorithm{
 	public void newRTT() {
 	}
 
+	@Override
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		// one an ACK, halved on a loss
+		return window / rtt - lossRate * window / 2.0;
+	}
+
 }
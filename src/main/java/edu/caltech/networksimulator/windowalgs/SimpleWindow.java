@@ -28,4 +28,10 @@ public class SimpleWindow extends WindowAlgorithm {
 		this.window++;
 	}
 
+	@Override
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		// one a round trip, less one a loss
+		return 1.0 / rtt - lossRate;
+	}
+
 }
@@ -26,4 +26,10 @@ public class StaticWindow extends WindowAlgorithm{
 		return;
 	}
 
+	@Override
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		// never changes window size
+		return 0;
+	}
+
 }
@@ -47,13 +47,37 @@ public class TCPFAST extends WindowAlgorithm {
 
 	@Override
 	public void ACKPacket(Packet p) {
-		RTT = (double) System.currentTimeMillis() - p.getSentTime();
+		// in milliseconds, but keep the clock's resolution
+		RTT = (getClock().nanoTime() - p.getSentTime()) / 1000000.0;
 		if (RTT > 0) {
 			baseRTT = Math.min(baseRTT, RTT);
 			// use round trip time of last packet
 		}
 	}
 	
+	@Override
+	public Object saveState() {
+		return new double[] { window, baseRTT, RTT };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		double[] saved = (double[]) state;
+		window = saved[0];
+		baseRTT = saved[1];
+		RTT = saved[2];
+	}
+	
+	/**
+	 * The update made each round trip, spread over the round trip. Losses
+	 * are ignored, as they are when sending packets.
+	 */
+	@Override
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		double change = gamma * ((baseRTT / rtt) * window + alpha - window);
+		return Math.min(window, change) / rtt;
+	}
+	
 	@Override
 	public int getW(){
 		return (int) Math.max(window, 1);
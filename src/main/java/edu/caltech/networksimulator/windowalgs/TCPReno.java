@@ -72,6 +72,31 @@ public class TCPReno extends WindowAlgorithm{
 		}
 	}
 	
+	@Override
+	public Object saveState() {
+		return new Object[] { super.saveState(), window, phase, ssthresh, responded };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		super.restoreState(saved[0]);
+		window = (Double) saved[1];
+		phase = (RenoPhase) saved[2];
+		ssthresh = (Integer) saved[3];
+		responded = (Boolean) saved[4];
+	}
+	
+	/**
+	 * Congestion avoidance gains one a round trip from newRTT and about one
+	 * more from the ACKs of the window, and each loss halves the window. Slow
+	 * start ends at a window of two, so is left out.
+	 */
+	@Override
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		return 2.0 / rtt - lossRate * window / 2.0;
+	}
+	
 	@Override
 	// getter for the window size
 	public int getW() {
@@ -60,6 +60,31 @@ public class TCPTahoe extends WindowAlgorithm{
 		}
 	}
 	
+	@Override
+	public Object saveState() {
+		return new Object[] { super.saveState(), window, phase, ssthresh, responded };
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		super.restoreState(saved[0]);
+		window = (Double) saved[1];
+		phase = (TahoePhase) saved[2];
+		ssthresh = (Integer) saved[3];
+		responded = (Boolean) saved[4];
+	}
+	
+	/**
+	 * Congestion avoidance gains one a round trip. A loss drops the window
+	 * to one, but slow start gets back to half of it within a few round
+	 * trips, so each loss is taken as halving the window.
+	 */
+	@Override
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		return 1.0 / rtt - lossRate * window / 2.0;
+	}
+	
 	@Override
 	// getter for the window size
 	public int getW() {
@@ -2,7 +2,11 @@ package edu.caltech.networksimulator.windowalgs;
 
 import java.util.ArrayList;
 
+import edu.caltech.networksimulator.NetworkException;
 import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.clock.RealTimeClock;
+import edu.caltech.networksimulator.clock.SimClock;
+import edu.caltech.networksimulator.engine.StateSaving;
 
 /**
  * @author Carly
@@ -14,15 +18,34 @@ import edu.caltech.networksimulator.Packet;
  * Detection of a dropped packet is left to the flow, but this interface keeps W.
  */
 
-public abstract class WindowAlgorithm {
+public abstract class WindowAlgorithm implements StateSaving {
 	
 	private final String name;
 	protected int window;
 	public boolean FR; // whether the algorithm supports fast response/ fast retransmit on 3 dupACKs
+	private SimClock clock;
 	
 	public WindowAlgorithm(String name){
 		this.name = name;
 		this.FR = false;
+		this.clock = new RealTimeClock();
+	}
+	
+	/**
+	 * Sets the clock used to time packets, which should be the clock of the
+	 * flow using this algorithm
+	 * @param clock A non-null clock
+	 */
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * Gets the clock used to time packets
+	 * @return The clock
+	 */
+	protected SimClock getClock() {
+		return clock;
 	}
 	
 	/**
@@ -38,6 +61,20 @@ public abstract class WindowAlgorithm {
 		return window;
 	}
 	
+	/**
+	 * Saves the window. Algorithms with more state should save it along with
+	 * this.
+	 */
+	@Override
+	public Object saveState() {
+		return window;
+	}
+
+	@Override
+	public void restoreState(Object state) {
+		this.window = (Integer) state;
+	}
+
 	// Every round trip time, do something
 	public abstract void newRTT();
 	
@@ -46,4 +83,18 @@ public abstract class WindowAlgorithm {
 	
 	// Notified of an ack packet
 	public abstract void ACKPacket(Packet p);
+	
+	/**
+	 * How fast the window changes in a fluid simulation, where packets are
+	 * not sent one by one and the window changes smoothly with the rates of
+	 * ACKs and losses. Algorithms without a fluid model cannot be used in one.
+	 * @param window The window, in packets
+	 * @param rtt The round trip time now, in seconds
+	 * @param baseRTT The shortest round trip time of the flow, in seconds
+	 * @param lossRate Packets lost a second
+	 * @return Change in the window a second
+	 */
+	public double fluidRate(double window, double rtt, double baseRTT, double lossRate) {
+		throw new NetworkException(name + " has no fluid model");
+	}
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Fair sharing between flows by deficit round robin
+ */
+public class DeficitRoundRobinTest {
+
+	// As links do, at least the largest packet
+	private static final int QUANTUM = Packet.PACKET_SIZE;
+
+	@Test
+	public void sharesBytesNotPackets() {
+		DeficitRoundRobin drr = new DeficitRoundRobin(false, 0, Long.MAX_VALUE, QUANTUM, false);
+		for (int i = 0; i < 10; i++)
+			assertTrue(drr.offer(data(0, i, 1000), i));
+		for (int i = 0; i < 20; i++)
+			assertTrue(drr.offer(data(1, i, 500), i));
+		assertEquals(30, drr.size());
+
+		// A big packet, then two small ones, every round
+		long[] bytes = new long[2];
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 3; i++) {
+				Packet p = drr.poll();
+				bytes[p.getFlowId()] += p.getPacketSize();
+			}
+			assertEquals(bytes[0], bytes[1]);
+		}
+		assertNull(drr.poll());
+		assertTrue(drr.isEmpty());
+	}
+
+	@Test
+	public void keepsOrderWithinAFlow() {
+		DeficitRoundRobin drr = new DeficitRoundRobin(false, 0, Long.MAX_VALUE, QUANTUM, false);
+		for (int i = 0; i < 5; i++) {
+			drr.offer(data(0, i, 300), i);
+			drr.offer(data(1, i, 700), i);
+		}
+
+		int[] next = new int[2];
+		Packet p;
+		while ((p = drr.poll()) != null)
+			assertEquals(next[p.getFlowId()]++, p.getSeqNum());
+		assertEquals(5, next[0]);
+		assertEquals(5, next[1]);
+	}
+
+	@Test
+	public void limitsEachFlow() {
+		DeficitRoundRobin drr = new DeficitRoundRobin(false, 0, 1500, QUANTUM, false);
+		assertTrue(drr.offer(data(0, 0, 1000), 0));
+		assertFalse(drr.offer(data(0, 1, 1000), 1));
+		// Another flow has room of its own
+		assertTrue(drr.offer(data(1, 0, 1000), 1));
+		assertEquals(2, drr.size());
+	}
+
+	@Test
+	public void controlPacketsTakeTurns() {
+		DeficitRoundRobin drr = new DeficitRoundRobin(false, 0, Long.MAX_VALUE, QUANTUM, false);
+		for (int i = 0; i < 4; i++)
+			drr.offer(data(0, i, 1000), i);
+		drr.offer(Packet.obtain(Packet.Type.ROUTING, 8, -1, Router.ROUTING_PACKET_HEADER), 4);
+
+		assertEquals(0, drr.poll().getFlowId());
+		// Not stuck behind the rest of the flow
+		assertEquals(Packet.Type.ROUTING, drr.poll().getType());
+	}
+
+	@Test
+	public void oneBucketIsFirstInFirstOut() {
+		DeficitRoundRobin sfq = new DeficitRoundRobin(true, 1, Long.MAX_VALUE, QUANTUM, false);
+		for (int i = 0; i < 6; i++)
+			sfq.offer(data(i % 3, i, 1000), i);
+
+		for (int i = 0; i < 6; i++)
+			assertEquals(i, sfq.poll().getSeqNum());
+		assertEquals(5, sfq.lastArrival());
+	}
+
+	private static Packet data(int flowId, int seqNum, int size) {
+		Packet p = Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, seqNum, "Flow" + flowId, flowId);
+		p.setPacketSize(size);
+		return p;
+	}
+
+}
@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.caltech.networksimulator.NetworkSimulator.ExecutionMode;
+import edu.caltech.networksimulator.experiment.FlowResult;
+
+/**
+ * The event driven modes must all give the same answer: the parallel ones
+ * only change how the events are run, not which events happen.
+ */
+public class ExecutionModeTest {
+
+	@Test
+	public void case3SameInEveryEventMode() {
+		NetworkSimulator sequential = run(ExecutionMode.DISCRETE_EVENT);
+		List<FlowResult> expected = FlowResult.ofAll(sequential);
+
+		for (ExecutionMode mode : new ExecutionMode[] { ExecutionMode.PARALLEL_EVENT,
+				ExecutionMode.OPTIMISTIC_EVENT }) {
+			NetworkSimulator sim = run(mode);
+			assertEquals(mode + " events", sequential.getEventsProcessed(), sim.getEventsProcessed());
+			assertSameResults(mode.toString(), expected, FlowResult.ofAll(sim));
+		}
+	}
+
+	private static NetworkSimulator run(ExecutionMode mode) {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(mode);
+		if (mode != ExecutionMode.DISCRETE_EVENT)
+			sim.setPartitions(2);
+		SimulationRunner.setupCase(3, sim, "TCPReno", null);
+		sim.run();
+		return sim;
+	}
+
+	static void assertSameResults(String what, List<FlowResult> expected, List<FlowResult> actual) {
+		assertEquals(what + " flows", expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			FlowResult e = expected.get(i);
+			FlowResult a = actual.get(i);
+			assertEquals(what, e.getFlow(), a.getFlow());
+			assertEquals(what + " " + e.getFlow() + " throughput", e.getThroughput(), a.getThroughput(), 0);
+			assertEquals(what + " " + e.getFlow() + " RTT", e.getRTT(), a.getRTT(), 0);
+			assertEquals(what + " " + e.getFlow() + " loss", e.getLoss(), a.getLoss(), 0);
+		}
+	}
+
+}
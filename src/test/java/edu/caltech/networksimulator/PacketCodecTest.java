@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Round trips of packets through PacketCodec, and what happens when a buffer
+ * is not what it should be.
+ */
+public class PacketCodecTest {
+
+	@Test
+	public void dataRoundTrip() {
+		Packet p = Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, 42, "Flow1", 3);
+		p.setSentTime(123456789L);
+		p.setPacketSize(512);
+
+		Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 2 * "Flow1".length());
+		assertSamePacket(p, read);
+	}
+
+	@Test
+	public void ackRoundTrip() {
+		Packet data = Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, 42, "Flow1", 3);
+		data.setSentTime(987654321L);
+		Packet ack = data.getACK(43);
+
+		Packet read = roundTrip(ack, PacketCodec.HEADER_SIZE + 2 * "Flow1".length());
+		assertSamePacket(ack, read);
+		assertEquals(Packet.ACK_PAYLOAD, read.getPayload());
+	}
+
+	@Test
+	public void routingRoundTripPacked() {
+		String payload = Router.ROUTING_PACKET_HEADER + " 5:1.0 6:2.5 -7:0.125";
+		Packet p = Packet.obtain(Packet.Type.ROUTING, 8, -1, payload);
+		p.setSentTime(5L);
+
+		// Count, then an address and a cost for each route
+		Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 4 + 3 * 16);
+		assertSamePacket(p, read);
+	}
+
+	@Test
+	public void routingRoundTripEmpty() {
+		Packet p = Packet.obtain(Packet.Type.ROUTING, 8, -1, Router.ROUTING_PACKET_HEADER);
+
+		Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 4);
+		assertSamePacket(p, read);
+	}
+
+	@Test
+	public void routingRoundTripText() {
+		// Not as Router writes them, so kept as text
+		String[] payloads = { Router.ROUTING_PACKET_HEADER + " 5:1 6:2.5",
+				Router.ROUTING_PACKET_HEADER + " 5:1.0  6:2.5", Router.ROUTING_PACKET_HEADER + " five:1.0",
+				Router.ROUTING_PACKET_HEADER + " 5", Router.ROUTING_PACKET_HEADER + "5:1.0" };
+		for (String payload : payloads) {
+			Packet p = Packet.obtain(Packet.Type.ROUTING, 8, -1, payload);
+
+			Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 4 + 2 * payload.length());
+			assertSamePacket(p, read);
+		}
+	}
+
+	@Test
+	public void helloRoundTrip() {
+		Packet p = Packet.obtain(Packet.Type.HELLO, 9, -1, Router.IDENTITY_REQUEST_HEADER);
+
+		Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 4 + 2 * p.getPayload().length());
+		assertSamePacket(p, read);
+	}
+
+	@Test
+	public void hiRoundTrip() {
+		String payload = Router.IDENTITY_REQUEST_RESPONSE_HEADER + " " + Router.ComponentType.SWITCH;
+		Packet p = Packet.obtain(Packet.Type.HI, 9, 10, payload);
+
+		Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 4 + 2 * payload.length());
+		assertSamePacket(p, read);
+	}
+
+	@Test
+	public void textRoundTrip() {
+		String[] payloads = { "", "anything at all", "DOOM!", "ACK ", "café ✓ 😀" };
+		for (String payload : payloads) {
+			Packet p = Packet.obtain(Packet.Type.DATA, 11, 12, payload, 7, "Flowé", 4);
+			p.setSentTime(Long.MAX_VALUE);
+
+			Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 2 * "Flowé".length() + 4
+					+ 2 * payload.length());
+			assertSamePacket(p, read);
+		}
+	}
+
+	@Test
+	public void noSequenceId() {
+		Packet p = Packet.obtain(12, 13, "not part of a flow");
+
+		Packet read = roundTrip(p, PacketCodec.HEADER_SIZE + 4 + 2 * p.getPayload().length());
+		assertSamePacket(p, read);
+		assertNull(read.getSeqID());
+	}
+
+	@Test
+	public void severalInOneBuffer() {
+		Packet[] packets = { Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, 1, "Flow1", 0),
+				Packet.obtain(Packet.Type.ROUTING, 3, -1, Router.ROUTING_PACKET_HEADER + " 1:2.0"),
+				Packet.obtain(Packet.Type.ACK, 2, 1, Packet.ACK_PAYLOAD, 2, "Flow1", 0) };
+
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		for (Packet p : packets)
+			PacketCodec.write(p, buf);
+		buf.flip();
+
+		// Skip the first without reading it
+		buf.position(buf.position() + PacketCodec.length(buf));
+		for (int i = 1; i < packets.length; i++)
+			assertSamePacket(packets[i], PacketCodec.read(buf));
+		assertEquals(0, buf.remaining());
+	}
+
+	@Test
+	public void littleEndian() {
+		Packet p = Packet.obtain(Packet.Type.ROUTING, 8, -1, Router.ROUTING_PACKET_HEADER + " 5:1.0");
+		p.setSentTime(77L);
+
+		ByteBuffer buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+		PacketCodec.write(p, buf);
+		buf.flip();
+		assertSamePacket(p, PacketCodec.read(buf));
+	}
+
+	@Test
+	public void wrongVersion() {
+		ByteBuffer buf = write(Packet.obtain(Packet.Type.ACK, 2, 1, Packet.ACK_PAYLOAD, 2, "Flow1", 0));
+		buf.put(0, (byte) (PacketCodec.VERSION + 1));
+
+		try {
+			PacketCodec.read(buf);
+			fail("Read a packet of another version");
+		} catch (NetworkException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void truncatedRead() {
+		Packet p = Packet.obtain(Packet.Type.HI, 9, 10, Router.IDENTITY_REQUEST_RESPONSE_HEADER + " HOST");
+		ByteBuffer whole = write(p);
+
+		// Cut short in the header, the sequence ID and the body
+		for (int length : new int[] { 1, 20, PacketCodec.HEADER_SIZE, whole.limit() - 1 }) {
+			ByteBuffer buf = whole.duplicate();
+			buf.limit(length);
+			try {
+				PacketCodec.read(buf);
+				fail("Read a packet cut short at " + length + " bytes");
+			} catch (BufferUnderflowException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void writeTooSmall() {
+		Packet p = Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, 42, "Flow1", 3);
+		ByteBuffer buf = ByteBuffer.allocate(PacketCodec.size(p) - 1);
+
+		try {
+			PacketCodec.write(p, buf);
+			fail("Wrote a packet into too small a buffer");
+		} catch (BufferOverflowException e) {
+			// Nothing is written
+			assertEquals(0, buf.position());
+		}
+	}
+
+	/*
+	 * Write a packet and read it back, checking it took the expected bytes
+	 */
+	private static Packet roundTrip(Packet p, int expectedSize) {
+		assertEquals(expectedSize, PacketCodec.size(p));
+
+		ByteBuffer buf = write(p);
+		assertEquals(expectedSize, buf.remaining());
+		assertEquals(expectedSize, PacketCodec.length(buf));
+
+		Packet read = PacketCodec.read(buf);
+		assertEquals(0, buf.remaining());
+		return read;
+	}
+
+	/*
+	 * A buffer holding just the packet, ready to read
+	 */
+	private static ByteBuffer write(Packet p) {
+		ByteBuffer buf = ByteBuffer.allocate(PacketCodec.size(p) + 16);
+		PacketCodec.write(p, buf);
+		buf.flip();
+		return buf;
+	}
+
+	private static void assertSamePacket(Packet expected, Packet actual) {
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getSrc(), actual.getSrc());
+		assertEquals(expected.getDest(), actual.getDest());
+		assertEquals(expected.getSeqNum(), actual.getSeqNum());
+		assertEquals(expected.getSeqID(), actual.getSeqID());
+		assertEquals(expected.getFlowId(), actual.getFlowId());
+		assertEquals(expected.getPacketSize(), actual.getPacketSize());
+		assertEquals(expected.getSentTime(), actual.getSentTime());
+		assertEquals(expected.getUID(), actual.getUID());
+		assertEquals(expected.getPayload(), actual.getPayload());
+	}
+
+}
@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Reusing packets through the pool
+ */
+public class PacketTest {
+
+	@Test
+	public void releasingTwiceThrows() {
+		Packet p = Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, 1, "Flow1", 0);
+		p.release();
+		try {
+			p.release();
+			fail("Released a packet twice");
+		} catch (NetworkException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void releasedPacketIsReused() {
+		Packet p = Packet.obtain(Packet.Type.DATA, 1, 2, Packet.DATA_PAYLOAD, 1, "Flow1", 0);
+		p.setPacketSize(512);
+		long reuses = Packet.getReuses();
+		p.release();
+
+		Packet q = Packet.obtain(Packet.Type.ACK, 3, 4, Packet.ACK_PAYLOAD, 5, "Flow2", 1);
+		assertSame(p, q);
+		assertEquals(reuses + 1, Packet.getReuses());
+
+		// Nothing left over from before
+		assertEquals(Packet.Type.ACK, q.getType());
+		assertEquals(3, q.getSrc());
+		assertEquals(4, q.getDest());
+		assertEquals(5, q.getSeqNum());
+		assertEquals("Flow2", q.getSeqID());
+		assertEquals(1, q.getFlowId());
+		assertEquals(Packet.Type.ACK.size(), q.getPacketSize());
+
+		// And it can be released again
+		q.release();
+	}
+
+}
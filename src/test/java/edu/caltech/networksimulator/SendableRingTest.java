@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * The ring threaded links queue packets in, offered to from many threads at
+ * once and taken from by one.
+ */
+public class SendableRingTest {
+
+	@Test
+	public void manyProducers() throws InterruptedException {
+		// Small, so producers often find it full and the taker often waits
+		final SendableRing ring = new SendableRing(16);
+		final int producers = 4;
+		final long each = 200000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final int producer = i;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						// The send time says who sent it and in what order
+						for (long n = 0; n < each; n++) {
+							while (!ring.offer(producer * each + n, null, null))
+								Thread.yield();
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			}, "Producer" + i);
+			threads[i].start();
+		}
+
+		long[] next = new long[producers];
+		Link.Sendable into = new Link.Sendable();
+		for (long taken = 0; taken < producers * each; taken++) {
+			assertTrue("Nothing turned up after " + taken, ring.poll(into, TimeUnit.SECONDS.toNanos(10)));
+			int producer = (int) (into.sendNET / each);
+			assertEquals("Out of order from producer " + producer, producer * each + next[producer], into.sendNET);
+			next[producer]++;
+		}
+
+		for (Thread t : threads)
+			t.join();
+		assertEquals(null, failure.get());
+		for (int i = 0; i < producers; i++)
+			assertEquals(each, next[i]);
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void fullRingRefuses() {
+		SendableRing ring = new SendableRing(4);
+		for (int i = 0; i < 4; i++)
+			assertTrue(ring.offer(i, null, null));
+		assertFalse(ring.offer(4, null, null));
+
+		Link.Sendable into = new Link.Sendable();
+		assertTrue(ring.poll(into, 0));
+		assertEquals(0, into.sendNET);
+		assertTrue(ring.offer(4, null, null));
+	}
+
+	@Test
+	public void pollTimesOut() {
+		SendableRing ring = new SendableRing(4);
+		assertTrue(ring.isEmpty());
+		assertFalse(ring.poll(new Link.Sendable(), TimeUnit.MILLISECONDS.toNanos(1)));
+	}
+
+	@Test
+	public void wakesWaitingTaker() throws InterruptedException {
+		final SendableRing ring = new SendableRing(4);
+		Thread producer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				ring.offer(7, null, null);
+			}
+		});
+		producer.start();
+
+		Link.Sendable into = new Link.Sendable();
+		long start = System.nanoTime();
+		assertTrue(ring.poll(into, TimeUnit.SECONDS.toNanos(10)));
+		// Woken by the offer rather than waiting out the timeout
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertEquals(7, into.sendNET);
+		producer.join();
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.networksimulator.engine.Snapshot;
+import edu.caltech.networksimulator.experiment.FlowResult;
+
+/**
+ * A simulation saved part way and restored must carry on exactly as it would
+ * have without stopping.
+ */
+public class SnapshotTest {
+
+	private static final long SAVE_AT = 15000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void restoredFromFileMatchesUninterrupted() throws IOException {
+		List<FlowResult> whole = FlowResult.ofAll(run(null, null));
+
+		File file = folder.newFile("case3.snapshot");
+		NetworkSimulator saving = newSimulation();
+		saving.setSnapshot(SAVE_AT, file);
+		saving.run();
+		// Saving does not change the run it is taken from
+		ExecutionModeTest.assertSameResults("saving", whole, FlowResult.ofAll(saving));
+
+		ExecutionModeTest.assertSameResults("restored", whole, FlowResult.ofAll(run(null, file)));
+	}
+
+	@Test
+	public void restoredFromMemoryMatchesUninterrupted() {
+		List<FlowResult> whole = FlowResult.ofAll(run(null, null));
+
+		NetworkSimulator saving = newSimulation();
+		saving.setSnapshot(SAVE_AT, null);
+		saving.run();
+		Snapshot snapshot = saving.getSnapshot();
+		assertNotNull(snapshot);
+
+		ExecutionModeTest.assertSameResults("restored", whole, FlowResult.ofAll(run(snapshot, null)));
+	}
+
+	@Test
+	public void fileRoundTrip() throws IOException {
+		NetworkSimulator saving = newSimulation();
+		saving.setSnapshot(SAVE_AT, null);
+		saving.setSimulatedTimeBudget(SAVE_AT);
+		saving.run();
+		Snapshot snapshot = saving.getSnapshot();
+		assertNotNull(snapshot);
+		assertEquals(SAVE_AT, TimeUnit.NANOSECONDS.toMillis(snapshot.getTime()), 1000);
+
+		File file = folder.newFile("round.snapshot");
+		snapshot.write(file);
+		Snapshot read = Snapshot.read(file);
+		assertEquals(snapshot.getTime(), read.getTime());
+		assertEquals(snapshot.size(), read.size());
+
+		ExecutionModeTest.assertSameResults("read back", FlowResult.ofAll(run(snapshot, null)),
+				FlowResult.ofAll(run(read, null)));
+	}
+
+	private static NetworkSimulator newSimulation() {
+		NetworkSimulator sim = new NetworkSimulator();
+		sim.setExecutionMode(NetworkSimulator.ExecutionMode.DISCRETE_EVENT);
+		SimulationRunner.setupCase(3, sim, "TCPReno", null);
+		return sim;
+	}
+
+	private static NetworkSimulator run(Snapshot snapshot, File file) {
+		NetworkSimulator sim = newSimulation();
+		if (snapshot != null)
+			sim.setRestore(snapshot);
+		if (file != null)
+			sim.setRestore(file);
+		sim.run();
+		return sim;
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package edu.caltech.networksimulator.queuedisciplines;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.caltech.networksimulator.NetworkException;
+import edu.caltech.networksimulator.Packet;
+import edu.caltech.networksimulator.random.RandomStream;
+
+/**
+ * When the queue disciplines drop packets
+ */
+public class QueueDisciplineTest {
+
+	private static final long BUFFER = 64000;
+
+	private final Packet packet = Packet.obtain(Packet.Type.DATA, 1, 2, "DOOM", 1, "Flow1", 0);
+	private final RandomStream random = new RandomStream(1);
+
+	@Test
+	public void forName() {
+		for (String name : new String[] { "DropTail", "RED", "CoDel", "PIE" })
+			assertEquals(name, QueueDiscipline.forName(name, BUFFER).getName());
+		try {
+			QueueDiscipline.forName("Nonsense", BUFFER);
+			fail("Made a discipline that does not exist");
+		} catch (NetworkException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void dropTailKeepsWhatFits() {
+		QueueDiscipline d = QueueDiscipline.forName("DropTail", BUFFER);
+		for (long t = 0; t < 1000; t++) {
+			assertFalse(d.dropOnEnqueue(packet, BUFFER - packet.getPacketSize(), t, random));
+			assertFalse(d.dropOnDequeue(packet, TimeUnit.SECONDS.toNanos(1), BUFFER, t));
+		}
+	}
+
+	@Test
+	public void redDropsOnceTheAverageIsHigh() {
+		QueueDiscipline d = QueueDiscipline.forName("RED", BUFFER);
+		for (long t = 0; t < 1000; t++)
+			assertFalse(d.dropOnEnqueue(packet, 0, t, random));
+
+		// The average takes a while to catch up with a full buffer
+		boolean dropped = false;
+		for (long t = 1000; t < 3000; t++)
+			dropped |= d.dropOnEnqueue(packet, BUFFER, t, random);
+		assertTrue(dropped);
+		// Past the upper threshold, everything goes
+		assertTrue(d.dropOnEnqueue(packet, BUFFER, 3000, random));
+	}
+
+	@Test
+	public void coDelDropsAfterAnIntervalAboveTarget() {
+		QueueDiscipline d = QueueDiscipline.forName("CoDel", BUFFER);
+		long slow = TimeUnit.MILLISECONDS.toNanos(20);
+		long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+		assertFalse(d.dropOnEnqueue(packet, BUFFER, 0, random));
+		// Above target, but not yet for a whole interval
+		for (long t = 0; t < 100; t++)
+			assertFalse(d.dropOnDequeue(packet, slow, BUFFER, t * ms));
+		assertTrue(d.dropOnDequeue(packet, slow, BUFFER, 100 * ms));
+
+		// Stops once a packet waits less than the target
+		assertFalse(d.dropOnDequeue(packet, ms, BUFFER, 101 * ms));
+		assertFalse(d.dropOnDequeue(packet, slow, BUFFER, 102 * ms));
+	}
+
+	@Test
+	public void stateRoundTrip() {
+		QueueDiscipline d = QueueDiscipline.forName("RED", BUFFER);
+		for (long t = 0; t < 3000; t++)
+			d.dropOnEnqueue(packet, BUFFER, t, random);
+		Object saved = d.saveState();
+
+		QueueDiscipline restored = QueueDiscipline.forName("RED", BUFFER);
+		restored.restoreState(saved);
+		RandomStream first = new RandomStream(2);
+		RandomStream second = new RandomStream(2);
+		for (long t = 3000; t < 3100; t++)
+			assertEquals(d.dropOnEnqueue(packet, BUFFER / 4, t, first),
+					restored.dropOnEnqueue(packet, BUFFER / 4, t, second));
+	}
+
+}